@@ -0,0 +1,131 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import com.sun.identity.authentication.callbacks.HiddenValueCallback;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.util.i18n.PreferredLocales;
+
+/**
+ * Representative tree contexts for the node benchmarks.
+ */
+final class BenchmarkContexts
+{
+    static final String PASSWORD = "correct horse battery staple";
+    static final String TSDATA = syntheticTsData(PASSWORD.length(), 42);
+
+    private BenchmarkContexts()
+    {
+    }
+
+    /**
+     * The first visit to a collector node, before any callbacks were sent.
+     */
+    static TreeContext firstVisit(String username)
+    {
+        JsonValue sharedState = state();
+        if (username != null)
+            sharedState.put(USERNAME, username);
+        return new TreeContext(sharedState, state(), request(), Collections.<Callback>emptyList());
+    }
+
+    /**
+     * A login form submission to the login collector node.
+     */
+    static TreeContext loginSubmission(String username)
+    {
+        NameCallback name = new NameCallback("User Name");
+        name.setName(username);
+        return new TreeContext(state(), state(), request(), submittedCallbacks(name));
+    }
+
+    /**
+     * A password submission to the password collector node.
+     */
+    static TreeContext passwordSubmission(String username)
+    {
+        JsonValue sharedState = state();
+        sharedState.put(USERNAME, username);
+        return new TreeContext(sharedState, state(), request(), submittedCallbacks(null));
+    }
+
+    /**
+     * The state the KeyID node receives after a collector node.
+     */
+    static TreeContext evaluation(String username)
+    {
+        JsonValue sharedState = state();
+        sharedState.put(USERNAME, username);
+        sharedState.put(Constants.TSDATA, TSDATA);
+        return new TreeContext(sharedState, state(), request(), Collections.<Callback>emptyList());
+    }
+
+    /**
+     * The context the next node in the tree receives after the given action.
+     */
+    static TreeContext next(Action action)
+    {
+        return new TreeContext(action.sharedState, action.transientState, request(),
+                               Collections.<Callback>emptyList());
+    }
+
+    private static List<Callback> submittedCallbacks(NameCallback name)
+    {
+        PasswordCallback password = new PasswordCallback("Password", false);
+        password.setPassword(PASSWORD.toCharArray());
+        HiddenValueCallback tsData = new HiddenValueCallback(Constants.TSDATA);
+        tsData.setValue(TSDATA);
+
+        List<Callback> callbacks = new ArrayList<>();
+        if (name != null)
+            callbacks.add(name);
+        callbacks.add(password);
+        callbacks.add(tsData);
+        return callbacks;
+    }
+
+    private static JsonValue state()
+    {
+        return new JsonValue(new LinkedHashMap<String, Object>());
+    }
+
+    private static ExternalRequestContext request()
+    {
+        return new ExternalRequestContext.Builder().locales(new PreferredLocales()).build();
+    }
+
+    /**
+     * Builds tsData of a realistic size: a key code, press time and release time per keystroke.
+     */
+    private static String syntheticTsData(int keystrokes, long seed)
+    {
+        Random random = new Random(seed);
+        StringBuilder tsData = new StringBuilder();
+        long time = 1514764800000L;
+
+        for (int i = 0; i < keystrokes; i++)
+        {
+            time += 80 + random.nextInt(160);
+            tsData.append(65 + random.nextInt(26)).append(',')
+                  .append(time).append(',')
+                  .append(time + 60 + random.nextInt(60)).append('|');
+        }
+
+        return tsData.toString();
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler so the reports include the allocation rate per operation. Accepts the
+ * usual JMH command line options.
+ */
+public final class KeyIDBenchmarks
+{
+    private KeyIDBenchmarks()
+    {
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build()).run();
+    }
+}
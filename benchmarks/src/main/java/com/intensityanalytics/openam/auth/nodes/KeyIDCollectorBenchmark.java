@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import java.util.concurrent.TimeUnit;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of the collector nodes: building the callbacks on the first visit and reading the submitted callbacks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyIDCollectorBenchmark
+{
+    private static final String USERNAME = "match-user";
+
+    private final KeyIDLoginCollectorNode.Config loginConfig = new KeyIDLoginCollectorNode.Config()
+    {
+        @Override
+        public String library()
+        {
+            return "https://keyid.example.com/tickstream.keyid.js";
+        }
+    };
+
+    private final KeyIDPasswordCollectorNode.Config passwordConfig = new KeyIDPasswordCollectorNode.Config()
+    {
+        @Override
+        public String library()
+        {
+            return "https://keyid.example.com/tickstream.keyid.js";
+        }
+    };
+
+    private TreeContext loginFirstVisit;
+    private TreeContext loginSubmission;
+    private TreeContext passwordFirstVisit;
+    private TreeContext passwordSubmission;
+
+    @Setup
+    public void setUp()
+    {
+        loginFirstVisit = BenchmarkContexts.firstVisit(null);
+        loginSubmission = BenchmarkContexts.loginSubmission(USERNAME);
+        passwordFirstVisit = BenchmarkContexts.firstVisit(USERNAME);
+        passwordSubmission = BenchmarkContexts.passwordSubmission(USERNAME);
+    }
+
+    @Benchmark
+    public Action loginCollectorFirstVisit() throws NodeProcessException
+    {
+        return new KeyIDLoginCollectorNode(loginConfig, null).process(loginFirstVisit);
+    }
+
+    @Benchmark
+    public Action loginCollectorSubmission() throws NodeProcessException
+    {
+        return new KeyIDLoginCollectorNode(loginConfig, null).process(loginSubmission);
+    }
+
+    @Benchmark
+    public Action passwordCollectorFirstVisit() throws NodeProcessException
+    {
+        return new KeyIDPasswordCollectorNode(passwordConfig, null).process(passwordFirstVisit);
+    }
+
+    @Benchmark
+    public Action passwordCollectorSubmission() throws NodeProcessException
+    {
+        return new KeyIDPasswordCollectorNode(passwordConfig, null).process(passwordSubmission);
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+
+/**
+ * End-to-end load test of the login flow: KeyIDLoginCollectorNode first visit, its form submission, then KeyIDNode,
+ * each step receiving the state the previous one produced. KeyIDNode calls a KeyIDStandIn over HTTP through the KeyID
+ * client it uses in AM, so the client's requests, connections and response handling are part of the measurement.
+ *
+ * Options, given as key=value arguments:
+ * concurrency (64), duration (60 s), warmup (10 s), users (1000), timeout (5000 ms), grantOnError (false),
+ * circuitBreaker (false), profileCache (false), mode (ACTIVE_ACTIVE), hedgeDelay (0 ms), batch (false) to batch logins
+ * through the /batch endpoint of the first stand-in, batchDelay (5 ms), batchSize (32), and url to use stand-ins that
+ * are already running. Otherwise standIns (1) stand-ins are started in process and accept the KeyIDStandIn options.
+ */
+public final class KeyIDLoadTest
+{
+    private static final String LIBRARY = "https://keyid.example.com/tickstream.keyid.js";
+
+    private final Map<String, String> options;
+    private final KeyIDLoginCollectorNode.Config collectorConfig;
+    private final KeyIDNode.Config nodeConfig;
+    private final int users;
+    private final Map<String, LongAdder> results = new ConcurrentHashMap<>();
+    private final AtomicLong peakLoginsInFlight = new AtomicLong();
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+
+    private KeyIDLoadTest(Map<String, String> options, String url)
+    {
+        this.options = options;
+        this.users = Integer.parseInt(options.getOrDefault("users", "1000"));
+
+        int timeout = Integer.parseInt(options.getOrDefault("timeout", "5000"));
+        boolean grantOnError = Boolean.parseBoolean(options.getOrDefault("grantOnError", "false"));
+        boolean circuitBreaker = Boolean.parseBoolean(options.getOrDefault("circuitBreaker", "false"));
+        boolean profileCache = Boolean.parseBoolean(options.getOrDefault("profileCache", "false"));
+        int hedgeDelay = Integer.parseInt(options.getOrDefault("hedgeDelay", "0"));
+        String batchUrl = Boolean.parseBoolean(options.getOrDefault("batch", "false"))
+                          ? KeyIDRoutingBackend.parseEndpoints(url).get(0) + "/batch" : "";
+        int batchDelay = Integer.parseInt(options.getOrDefault("batchDelay", "5"));
+        int batchSize = Integer.parseInt(options.getOrDefault("batchSize", "32"));
+        KeyIDNode.ValidationEnrollmentMode mode =
+            KeyIDNode.ValidationEnrollmentMode.valueOf(options.getOrDefault("mode", "ACTIVE_ACTIVE"));
+
+        collectorConfig = new KeyIDLoginCollectorNode.Config()
+        {
+            @Override
+            public String library()
+            {
+                return LIBRARY;
+            }
+        };
+
+        nodeConfig = new KeyIDNode.Config()
+        {
+            @Override
+            public String url()
+            {
+                return url;
+            }
+
+            @Override
+            public Integer timeout()
+            {
+                return timeout;
+            }
+
+            @Override
+            public KeyIDNode.ValidationEnrollmentMode validationEnrollmentMode()
+            {
+                return mode;
+            }
+
+            @Override
+            public Boolean grantOnError()
+            {
+                return grantOnError;
+            }
+
+            @Override
+            public Boolean circuitBreaker()
+            {
+                return circuitBreaker;
+            }
+
+            @Override
+            public Boolean profileCache()
+            {
+                return profileCache;
+            }
+
+            @Override
+            public Integer hedgeDelay()
+            {
+                return hedgeDelay;
+            }
+
+            @Override
+            public String batchUrl()
+            {
+                return batchUrl;
+            }
+
+            @Override
+            public Integer batchDelay()
+            {
+                return batchDelay;
+            }
+
+            @Override
+            public Integer batchSize()
+            {
+                return batchSize;
+            }
+        };
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> options = LoadTestOptions.parse(args);
+        List<KeyIDStandIn> standIns = new ArrayList<>();
+        String url = options.get("url");
+
+        try
+        {
+            if (url == null)
+            {
+                int count = Integer.parseInt(options.getOrDefault("standIns", "1"));
+                options.put("port", "0");
+                StringBuilder urls = new StringBuilder();
+
+                for (int i = 0; i < count; i++)
+                {
+                    KeyIDStandIn standIn = new KeyIDStandIn(options);
+                    standIns.add(standIn);
+                    urls.append(i == 0 ? "" : ",").append(standIn.getUrl());
+                }
+
+                url = urls.toString();
+            }
+
+            new KeyIDLoadTest(options, url).run();
+        }
+        finally
+        {
+            for (KeyIDStandIn standIn : standIns)
+                standIn.close();
+        }
+    }
+
+    private void run() throws InterruptedException
+    {
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "64"));
+        long warmup = Long.parseLong(options.getOrDefault("warmup", "10")) * 1000;
+        long duration = Long.parseLong(options.getOrDefault("duration", "60")) * 1000;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        System.out.printf("Running %d concurrent logins for %d s after %d s warm-up against %s%n",
+                          concurrency, duration / 1000, warmup / 1000, nodeConfig.url());
+
+        List<Worker> workers = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(concurrency);
+
+        for (int i = 0; i < concurrency; i++)
+        {
+            Worker worker = new Worker(done);
+            workers.add(worker);
+            Thread thread = new Thread(worker, "KeyIDLoadTest-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        Thread.sleep(warmup);
+        threads.resetPeakThreadCount();
+        measuring = true;
+        long start = System.nanoTime();
+        long end = start + duration * 1000000L;
+
+        while (System.nanoTime() < end)
+        {
+            long inFlight = KeyIDMetrics.getInstance().getLoginsInFlight();
+            if (inFlight > peakLoginsInFlight.get())
+                peakLoginsInFlight.set(inFlight);
+            Thread.sleep(100);
+        }
+
+        measuring = false;
+        long elapsed = System.nanoTime() - start;
+        int liveThreads = threads.getThreadCount();
+        int peakThreads = threads.getPeakThreadCount();
+        running = false;
+        done.await();
+
+        report(workers, elapsed, liveThreads, peakThreads);
+    }
+
+    private void report(List<Worker> workers, long elapsed, int liveThreads, int peakThreads)
+    {
+        int count = 0;
+
+        for (Worker worker : workers)
+            count += worker.count;
+
+        long[] latencies = new long[count];
+        int offset = 0;
+
+        for (Worker worker : workers)
+        {
+            System.arraycopy(worker.latencies, 0, latencies, offset, worker.count);
+            offset += worker.count;
+        }
+
+        Arrays.sort(latencies);
+
+        System.out.printf("Logins:      %d%n", count);
+        System.out.printf("Throughput:  %.1f/s%n", count / (elapsed / 1e9));
+        System.out.printf("Latency ms:  p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+                          percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+                          percentile(latencies, 99.9), count == 0 ? 0 : latencies[count - 1] / 1e6);
+        System.out.printf("Threads:     live=%d peak=%d peakLoginsInFlight=%d%n",
+                          liveThreads, peakThreads, peakLoginsInFlight.get());
+        System.out.printf("Batches:     batches=%d logins=%d fallbacks=%d%n", KeyIDBatchingBackend.getBatches(),
+                          KeyIDBatchingBackend.getBatched(), KeyIDBatchingBackend.getFallbacks());
+        System.out.println("Results:     " + new TreeMap<>(results));
+    }
+
+    private static double percentile(long[] sorted, double percentile)
+    {
+        if (sorted.length == 0)
+            return 0;
+
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    private String login(String username) throws NodeProcessException
+    {
+        TreeContext firstVisit = BenchmarkContexts.firstVisit(null);
+        Action callbacks = new KeyIDLoginCollectorNode(collectorConfig, null).process(firstVisit);
+        if (!callbacks.sendingCallbacks())
+            throw new IllegalStateException("Collector did not send callbacks");
+
+        Action submitted = new KeyIDLoginCollectorNode(collectorConfig, null)
+            .process(BenchmarkContexts.loginSubmission(username));
+        Action evaluated = new KeyIDNode(nodeConfig, null).process(BenchmarkContexts.next(submitted));
+        return evaluated.outcome;
+    }
+
+    private final class Worker implements Runnable
+    {
+        private final CountDownLatch done;
+        private long[] latencies = new long[4096];
+        private int count;
+
+        private Worker(CountDownLatch done)
+        {
+            this.done = done;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (running)
+                {
+                    String username = "user" + ThreadLocalRandom.current().nextInt(users);
+                    long start = System.nanoTime();
+                    String result;
+
+                    try
+                    {
+                        result = login(username);
+                    }
+                    catch (Exception e)
+                    {
+                        result = e.getClass().getSimpleName();
+                    }
+
+                    long latency = System.nanoTime() - start;
+
+                    if (measuring)
+                    {
+                        if (count == latencies.length)
+                            latencies = Arrays.copyOf(latencies, count * 2);
+                        latencies[count++] = latency;
+                        results.computeIfAbsent(result, key -> new LongAdder()).increment();
+                    }
+                }
+            }
+            finally
+            {
+                done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import java.util.concurrent.TimeUnit;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of a KeyIDNode evaluation against the in-process stand-in, including node construction as AM creates a node
+ * for every evaluation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyIDNodeBenchmark
+{
+    /**
+     * The path through the node: match goes to true, nomatch to false and enroll to enroll.
+     */
+    @Param({"match", "nomatch", "enroll"})
+    public String path;
+
+    @Param({"ACTIVE_ACTIVE", "PASSIVE_PASSIVE"})
+    public KeyIDNode.ValidationEnrollmentMode mode;
+
+    private KeyIDNode.Config config;
+    private TreeContext context;
+
+    @Setup
+    public void setUp()
+    {
+        KeyIDClientRegistry.getInstance().setBackendFactory(settings -> new StubKeyIDBackend());
+        KeyIDNode.ValidationEnrollmentMode validationEnrollmentMode = mode;
+        config = new KeyIDNode.Config()
+        {
+            @Override
+            public String url()
+            {
+                return "http://localhost/keyid";
+            }
+
+            @Override
+            public KeyIDNode.ValidationEnrollmentMode validationEnrollmentMode()
+            {
+                return validationEnrollmentMode;
+            }
+        };
+        context = BenchmarkContexts.evaluation(path + "-user");
+    }
+
+    @Benchmark
+    public Action process() throws NodeProcessException
+    {
+        return new KeyIDNode(config, null).process(context);
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of parsing a KeyID login response and reading the fields KeyIDNode uses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyIDResultBenchmark
+{
+    private static final String RESPONSE = "{\"Error\":\"\",\"Match\":true,\"IsReady\":true,\"Confidence\":92.5," +
+                                           "\"Fidelity\":81.0,\"Profiles\":12}";
+
+    private final JsonParser parser = new JsonParser();
+
+    @Benchmark
+    public void parseLoginResult(Blackhole blackhole)
+    {
+        JsonObject result = parser.parse(RESPONSE).getAsJsonObject();
+        blackhole.consume(result.get("Error").getAsString().isEmpty());
+        blackhole.consume(result.get("Match").getAsBoolean());
+        blackhole.consume(result.get("IsReady").getAsBoolean());
+        blackhole.consume(result.get("Confidence").getAsDouble());
+        blackhole.consume(result.get("Fidelity").getAsDouble());
+        blackhole.consume(result.get("Profiles").getAsInt());
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Local stand-in for the KeyID web service with configurable latency, error rates and match behavior.
+ *
+ * It serves the REST resources the KeyID client calls, so the nodes reach it through the client they use in AM:
+ * /evaluation/ answers an evaluation of the sample, /profile/ profile information, saves and deletions, and /token/
+ * nonces and profile tokens. Parameters are read from the query string and form encoded bodies, and the entity from
+ * the entityID parameter or the last path segment. POST /batch takes the JSON batches of KeyIDBatchingBackend, gzip
+ * compressed or not, and answers with a result for each login, taking the latency of a single call. Every request
+ * waits for a latency following a log-normal distribution described by its median and 99th percentile.
+ *
+ * Options, given as key=value arguments when run on its own:
+ * port (8089), latencyMedian (20 ms), latencyP99 (200 ms), errorRate (0), serviceErrorRate (0), matchRate (0.9),
+ * readyRate (0.95).
+ */
+public class KeyIDStandIn implements AutoCloseable
+{
+    private static final double Z_99 = 2.326;
+
+    static
+    {
+        // without TCP_NODELAY small responses wait for delayed ACKs, adding about 40 ms to every call
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final double latencyMedian;
+    private final double latencySigma;
+    private final double errorRate;
+    private final double serviceErrorRate;
+    private final double matchRate;
+    private final double readyRate;
+    private final AtomicLong requests = new AtomicLong();
+
+    public KeyIDStandIn(Map<String, String> options) throws IOException
+    {
+        latencyMedian = Double.parseDouble(options.getOrDefault("latencyMedian", "20"));
+        double latencyP99 = Double.parseDouble(options.getOrDefault("latencyP99", "200"));
+        latencySigma = latencyP99 > latencyMedian ? Math.log(latencyP99 / latencyMedian) / Z_99 : 0;
+        errorRate = Double.parseDouble(options.getOrDefault("errorRate", "0"));
+        serviceErrorRate = Double.parseDouble(options.getOrDefault("serviceErrorRate", "0"));
+        matchRate = Double.parseDouble(options.getOrDefault("matchRate", "0.9"));
+        readyRate = Double.parseDouble(options.getOrDefault("readyRate", "0.95"));
+
+        int port = Integer.parseInt(options.getOrDefault("port", "8089"));
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/evaluation", exchange -> handle(exchange, Resource.EVALUATION));
+        server.createContext("/profile", exchange -> handle(exchange, Resource.PROFILE));
+        server.createContext("/token", exchange -> handle(exchange, Resource.TOKEN));
+        server.createContext("/batch", this::handleBatch);
+        server.start();
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        KeyIDStandIn standIn = new KeyIDStandIn(LoadTestOptions.parse(args));
+        System.out.println("KeyID stand-in listening on " + standIn.getUrl());
+    }
+
+    public String getUrl()
+    {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange, Resource resource) throws IOException
+    {
+        requests.incrementAndGet();
+        Map<String, String> parameters = parseForm(exchange.getRequestURI().getRawQuery());
+        parameters.putAll(parseForm(readBody(exchange.getRequestBody())));
+
+        if (!delay())
+        {
+            respond(exchange, 500, "{\"Error\":\"Internal Server Error\"}");
+            return;
+        }
+
+        String entity = entity(exchange.getRequestURI().getPath(), parameters);
+
+        switch (resource)
+        {
+            case EVALUATION:
+                respond(exchange, 200, result(true, entity).toString());
+                break;
+            case PROFILE:
+                respond(exchange, 200, "GET".equals(exchange.getRequestMethod()) ? profile(entity).toString()
+                                                                                : result(false, entity).toString());
+                break;
+            default:
+                JsonObject token = result(false, entity);
+                token.addProperty("Token", Long.toHexString(ThreadLocalRandom.current().nextLong()));
+                respond(exchange, 200, token.toString());
+        }
+    }
+
+    /**
+     * Entity of a request, given as a parameter or as the last segment of the resource path.
+     */
+    private static String entity(String path, Map<String, String> parameters)
+    {
+        for (Map.Entry<String, String> parameter : parameters.entrySet())
+        {
+            if (parameter.getKey().equalsIgnoreCase("entityID"))
+                return parameter.getValue();
+        }
+
+        String[] segments = path.split("/");
+        return segments.length > 2 ? segments[segments.length - 1] : "";
+    }
+
+    private void handleBatch(HttpExchange exchange) throws IOException
+    {
+        requests.incrementAndGet();
+        InputStream body = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))
+                           ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody();
+        JsonObject batch = new JsonParser().parse(readBody(body)).getAsJsonObject();
+
+        if (!delay())
+        {
+            respond(exchange, 500, "{\"Error\":\"Internal Server Error\"}");
+            return;
+        }
+
+        JsonArray results = new JsonArray();
+
+        for (JsonElement request : batch.getAsJsonArray("Requests"))
+            results.add(result(true, request.getAsJsonObject().get("Username").getAsString()));
+
+        JsonObject response = new JsonObject();
+        response.add("Results", results);
+        respond(exchange, 200, response.toString());
+    }
+
+    /**
+     * Waits for the simulated latency.
+     * @return false if the call should fail with an HTTP error
+     */
+    private boolean delay()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        try
+        {
+            Thread.sleep((long) (latencyMedian * Math.exp(latencySigma * random.nextGaussian())));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        return random.nextDouble() >= errorRate;
+    }
+
+    private JsonObject result(boolean login, String username)
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        JsonObject result = new JsonObject();
+        result.addProperty("Error", random.nextDouble() < serviceErrorRate ? "Stand-in service error" : "");
+
+        if (login)
+        {
+            boolean ready = random.nextDouble() < readyRate;
+            boolean match = ready && random.nextDouble() < matchRate;
+            result.addProperty("Match", match);
+            result.addProperty("IsReady", ready);
+            result.addProperty("Confidence", match ? 70 + random.nextDouble() * 30 : random.nextDouble() * 70);
+            result.addProperty("Fidelity", 40 + random.nextDouble() * 60);
+            result.addProperty("Profiles", ready ? 10 + random.nextInt(20) : random.nextInt(10));
+            result.addProperty("EntityID", username);
+        }
+
+        return result;
+    }
+
+    /**
+     * Profile information of an entity, with the profile count the evaluations report.
+     */
+    private JsonArray profile(String entity)
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        JsonObject profile = new JsonObject();
+        profile.addProperty("EntityID", entity);
+        profile.addProperty("Profiles", random.nextDouble() < readyRate ? 10 + random.nextInt(20) : random.nextInt(10));
+
+        JsonArray profiles = new JsonArray();
+        profiles.add(profile);
+        return profiles;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(bytes);
+        }
+    }
+
+    private static String readBody(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+
+        while ((read = in.read(buffer)) != -1)
+            body.write(buffer, 0, read);
+
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> parseForm(String body) throws IOException
+    {
+        Map<String, String> form = new HashMap<>();
+
+        if (body == null)
+            return form;
+
+        for (String pair : body.split("&"))
+        {
+            int separator = pair.indexOf('=');
+            if (separator > 0)
+                form.put(URLDecoder.decode(pair.substring(0, separator), "UTF-8"),
+                         URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+        }
+
+        return form;
+    }
+
+    private enum Resource
+    {
+        EVALUATION, PROFILE, TOKEN
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parses key=value command line options. A single argument is split on whitespace, so options can be passed through
+ * one Maven property.
+ */
+final class LoadTestOptions
+{
+    private LoadTestOptions()
+    {
+    }
+
+    static Map<String, String> parse(String[] args)
+    {
+        if (args.length == 1)
+            args = args[0].trim().split("\\s+");
+
+        Map<String, String> options = new LinkedHashMap<>();
+
+        for (String arg : args)
+        {
+            int separator = arg.indexOf('=');
+            if (separator > 0)
+                options.put(arg.substring(0, separator), arg.substring(separator + 1));
+            else if (!arg.isEmpty())
+                throw new IllegalArgumentException("Expected key=value but got " + arg);
+        }
+
+        return options;
+    }
+}
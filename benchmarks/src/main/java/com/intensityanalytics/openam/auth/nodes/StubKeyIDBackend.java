@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * In-process stand-in for the KeyID web service. The result depends on the username: users starting with "enroll"
+ * have a profile that is not ready, users starting with "nomatch" do not match, and all other users match.
+ *
+ * Results are parsed from JSON text on every call so the benchmarks include the response handling the KeyID client
+ * performs.
+ */
+public class StubKeyIDBackend implements KeyIDBackend
+{
+    private static final String MATCH = "{\"Error\":\"\",\"Match\":true,\"IsReady\":true,\"Confidence\":92.5," +
+                                        "\"Fidelity\":81.0,\"Profiles\":12}";
+    private static final String NO_MATCH = "{\"Error\":\"\",\"Match\":false,\"IsReady\":true,\"Confidence\":31.0," +
+                                           "\"Fidelity\":64.5,\"Profiles\":12}";
+    private static final String ENROLL = "{\"Error\":\"\",\"Match\":false,\"IsReady\":false,\"Confidence\":0.0," +
+                                         "\"Fidelity\":0.0,\"Profiles\":2}";
+    private static final String REMOVED = "{\"Error\":\"\"}";
+
+    private final JsonParser parser = new JsonParser();
+
+    @Override
+    public Future<JsonObject> login(String username, String tsData, long deadline)
+    {
+        String response = username.startsWith("enroll") ? ENROLL : username.startsWith("nomatch") ? NO_MATCH : MATCH;
+        return CompletableFuture.completedFuture(parser.parse(response).getAsJsonObject());
+    }
+
+    @Override
+    public Future<JsonObject> removeProfile(String username, String tsData, long deadline)
+    {
+        return CompletableFuture.completedFuture(parser.parse(REMOVED).getAsJsonObject());
+    }
+}
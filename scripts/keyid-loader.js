@@ -0,0 +1,57 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ *
+ * Loader for the TickStream.KeyID collector nodes. Host this file under a versioned name, for example
+ * keyid-loader-1.1.0.js, with a long cache lifetime and set its URL as the Hosted Loader Script URL of the nodes.
+ * The nodes pass the KeyID JavaScript library URL in the data-library attribute, and data-compact when the typing data
+ * is posted in the compact encoding decoded by TsDataCodec.
+ */
+(function () {
+  function keyIDCompact(s) {
+    var data = unescape(encodeURIComponent(s));
+    var alphabet = 'ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_';
+    var dict = {}, next = 256, width = 9, codes = 0, acc = 0, bits = 0, out = ['kz1.'], w = '';
+    function emit(code) {
+      acc = (acc << width) | code;
+      bits += width;
+      while (bits >= 6) {
+        bits -= 6;
+        out.push(alphabet.charAt((acc >>> bits) & 63));
+      }
+      acc &= (1 << bits) - 1;
+      codes++;
+      if (256 + codes >= 1 << width && width < 16) width++;
+    }
+    function code(w) { return w.length == 1 ? w.charCodeAt(0) : dict[w]; }
+    for (var i = 0; i < data.length; i++) {
+      var c = data.charAt(i);
+      if (w === '' || dict.hasOwnProperty(w + c)) {
+        w += c;
+        continue;
+      }
+      emit(code(w));
+      if (next < 65536) dict[w + c] = next++;
+      w = c;
+    }
+    if (w !== '') emit(code(w));
+    if (bits > 0) out.push(alphabet.charAt((acc << (6 - bits)) & 63));
+    return out.join('');
+  }
+
+  var loader = document.currentScript;
+  var compact = loader.getAttribute('data-compact') === 'true';
+  var script = document.createElement('script');
+  script.onload = function () {
+    document.querySelector("input[name='callback_1']").id = 'idToken1';
+    tsBindControl('idToken1', bandType.KeyID, true);
+    document.querySelector('#loginButton_0').addEventListener('click', function (e) {
+      populateControlWithKeyDataConcatenated('tsData');
+      if (compact) {
+        var tsData = document.getElementById('tsData');
+        tsData.value = keyIDCompact(tsData.value);
+      }
+    });
+  };
+  script.src = loader.getAttribute('data-library');
+  document.body.appendChild(script);
+})();
@@ -7,15 +7,59 @@ package com.intensityanalytics.openam.auth.nodes;
 public final class Constants
 {
     public static final String TSDATA = "tsData";
+    public static final String TSDATA_HANDLE = "tsDataHandle";
+    public static final String SUBMITTED = "keyIDSubmitted";
+    public static final String TRACE = "keyIDTrace";
+    public static final String TRUST = "keyIDTrust";
+    public static final String CALLBACKS_SENT = "keyIDCallbacksSent";
     public static final String KEYIDSCRIPT = "var script = document.createElement('script');\n" +
                                              "script.onload = function () {\n" +
                                              "  document.querySelector(\"input[name='callback_1']\").id = 'idToken1';\n" +
                                              "  tsBindControl('idToken1', bandType.KeyID, true);\n" +
                                              "  document.querySelector('#loginButton_0').addEventListener('click', function (e) {\n" +
                                              "    populateControlWithKeyDataConcatenated('tsData');\n" +
+                                             "%2$s" +
                                              "  });" +
                                              "};\n" +
-                                             "script.src = '%s'\n" +
+                                             "script.src = '%1$s'\n" +
                                              "\n" +
                                              "document.body.appendChild(script);";
+    public static final String KEYIDLOADER = "var script = document.createElement('script');\n" +
+                                             "script.setAttribute('data-library', '%2$s');\n" +
+                                             "script.setAttribute('data-compact', '%3$b');\n" +
+                                             "script.src = '%1$s';\n" +
+                                             "document.body.appendChild(script);";
+    public static final String KEYIDCOMPACTCALL = "    var tsData = document.getElementById('tsData');\n" +
+                                                  "    tsData.value = keyIDCompact(tsData.value);\n";
+    public static final String KEYIDCOMPACT =
+        "function keyIDCompact(s) {\n" +
+        "  var data = unescape(encodeURIComponent(s));\n" +
+        "  var alphabet = 'ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_';\n" +
+        "  var dict = {}, next = 256, width = 9, codes = 0, acc = 0, bits = 0, out = ['kz1.'], w = '';\n" +
+        "  function emit(code) {\n" +
+        "    acc = (acc << width) | code;\n" +
+        "    bits += width;\n" +
+        "    while (bits >= 6) {\n" +
+        "      bits -= 6;\n" +
+        "      out.push(alphabet.charAt((acc >>> bits) & 63));\n" +
+        "    }\n" +
+        "    acc &= (1 << bits) - 1;\n" +
+        "    codes++;\n" +
+        "    if (256 + codes >= 1 << width && width < 16) width++;\n" +
+        "  }\n" +
+        "  function code(w) { return w.length == 1 ? w.charCodeAt(0) : dict[w]; }\n" +
+        "  for (var i = 0; i < data.length; i++) {\n" +
+        "    var c = data.charAt(i);\n" +
+        "    if (w === '' || dict.hasOwnProperty(w + c)) {\n" +
+        "      w += c;\n" +
+        "      continue;\n" +
+        "    }\n" +
+        "    emit(code(w));\n" +
+        "    if (next < 65536) dict[w + c] = next++;\n" +
+        "    w = c;\n" +
+        "  }\n" +
+        "  if (w !== '') emit(code(w));\n" +
+        "  if (bits > 0) out.push(alphabet.charAt((acc << (6 - bits)) & 63));\n" +
+        "  return out.join('');\n" +
+        "}\n";
 }
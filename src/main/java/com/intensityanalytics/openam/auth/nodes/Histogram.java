@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Fixed bucket histogram. Recording a value does not allocate or lock, which keeps it cheap on the login path.
+ */
+public final class Histogram
+{
+    private final double[] bounds;
+    private final AtomicLongArray counts;
+    private final DoubleAdder sum = new DoubleAdder();
+
+    /**
+     * @param bounds    ascending upper bounds of the buckets, values above the last bound fall into an overflow bucket
+     */
+    public Histogram(double... bounds)
+    {
+        this.bounds = bounds.clone();
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void record(double value)
+    {
+        int bucket = 0;
+
+        while (bucket < bounds.length && value > bounds[bucket])
+            bucket++;
+
+        counts.incrementAndGet(bucket);
+        sum.add(value);
+    }
+
+    public long getCount()
+    {
+        long count = 0;
+
+        for (int i = 0; i < counts.length(); i++)
+            count += counts.get(i);
+
+        return count;
+    }
+
+    public double getSum()
+    {
+        return sum.sum();
+    }
+
+    /**
+     * Estimates a percentile as the upper bound of the bucket it falls into.
+     * @param percentile    percentile between 0 and 100
+     * @return              estimated value, infinity if it falls into the overflow bucket, 0 if nothing was recorded
+     */
+    public double getPercentile(double percentile)
+    {
+        long count = getCount();
+
+        if (count == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+
+        for (int i = 0; i < bounds.length; i++)
+        {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return bounds[i];
+        }
+
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Writes the histogram in the Prometheus text exposition format.
+     */
+    void writeTo(StringBuilder out, String name, String labels)
+    {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+
+        for (int i = 0; i < bounds.length; i++)
+        {
+            cumulative += counts.get(i);
+            out.append(name).append("_bucket{").append(prefix).append("le=\"").append(bounds[i]).append("\"} ")
+               .append(cumulative).append('\n');
+        }
+
+        cumulative += counts.get(bounds.length);
+        out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(name).append("_sum{").append(labels).append("} ").append(getSum()).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+    }
+}
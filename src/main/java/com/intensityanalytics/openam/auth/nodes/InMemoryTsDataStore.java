@@ -0,0 +1,129 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * TsDataStore local to this AM server. Entries expire after a time to live, and the oldest entries are evicted when
+ * either the entry count or the total tsData size exceeds its limit.
+ */
+public class InMemoryTsDataStore implements TsDataStore
+{
+    private static final int HANDLE_BYTES = 16;
+
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final int maxEntries;
+    private final long maxChars;
+    private final long ttl;
+    private long chars;
+
+    /**
+     * @param maxEntries    maximum number of stored entries
+     * @param maxBytes      maximum total size of the stored tsData in bytes
+     * @param ttl           time to live of an entry in milliseconds
+     */
+    public InMemoryTsDataStore(int maxEntries, long maxBytes, long ttl)
+    {
+        this.maxEntries = maxEntries;
+        this.maxChars = maxBytes / 2;
+        this.ttl = ttl;
+    }
+
+    @Override
+    public String put(String tsData)
+    {
+        byte[] bytes = new byte[HANDLE_BYTES];
+        random.nextBytes(bytes);
+        String handle = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        long now = System.currentTimeMillis();
+
+        synchronized (entries)
+        {
+            entries.put(handle, new Entry(tsData, now + ttl));
+            chars += tsData.length();
+            evict(now);
+        }
+
+        return handle;
+    }
+
+    @Override
+    public String take(String handle)
+    {
+        synchronized (entries)
+        {
+            Entry entry = entries.get(handle);
+
+            if (entry == null)
+                return null;
+
+            discard(handle);
+            return entry.expires < System.currentTimeMillis() ? null : entry.tsData;
+        }
+    }
+
+    @Override
+    public void remove(String handle)
+    {
+        synchronized (entries)
+        {
+            discard(handle);
+        }
+    }
+
+    public int size()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    private void discard(String handle)
+    {
+        Entry entry = entries.remove(handle);
+
+        if (entry != null)
+            chars -= entry.tsData.length();
+    }
+
+    /**
+     * Entries are kept in insertion order and share one time to live, so expired and oversize entries are always at
+     * the head of the map.
+     */
+    private void evict(long now)
+    {
+        Iterator<Entry> iterator = entries.values().iterator();
+
+        while (iterator.hasNext())
+        {
+            Entry entry = iterator.next();
+
+            if (entry.expires >= now && entries.size() <= maxEntries && chars <= maxChars)
+                break;
+
+            iterator.remove();
+            chars -= entry.tsData.length();
+        }
+    }
+
+    private static final class Entry
+    {
+        private final String tsData;
+        private final long expires;
+
+        private Entry(String tsData, long expires)
+        {
+            this.tsData = tsData;
+            this.expires = expires;
+        }
+    }
+}
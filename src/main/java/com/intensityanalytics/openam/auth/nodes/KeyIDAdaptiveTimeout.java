@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Derives the timeout of KeyID Login calls from their recent latency.
+ *
+ * The latencies of the last {@value #WINDOW} calls to an endpoint are kept in a ring. The timeout is a percentile of
+ * them times a multiplier, clamped between a floor and a ceiling. Calls that time out are recorded with the time they
+ * were given, so a slowdown raises the percentile and with it the timeout. Until {@value #MIN_SAMPLES} calls were
+ * recorded the ceiling applies. The sorted snapshot the percentile is read from is refreshed at most every
+ * {@value #REFRESH_SAMPLES} calls or {@value #REFRESH_MS} milliseconds.
+ */
+public final class KeyIDAdaptiveTimeout
+{
+    private static final int WINDOW = 1024;
+    private static final int MIN_SAMPLES = 50;
+    private static final int REFRESH_SAMPLES = 64;
+    private static final long REFRESH_MS = 1000;
+    private static final Map<String, KeyIDAdaptiveTimeout> TIMEOUTS = new ConcurrentHashMap<>();
+
+    private final String endpoint;
+    private final double[] samples = new double[WINDOW];
+    private int next;
+    private int size;
+    private int sinceSnapshot;
+    private long snapshotTime;
+    private volatile double[] snapshot = new double[0];
+    private volatile long effectiveTimeout;
+
+    private KeyIDAdaptiveTimeout(String endpoint)
+    {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Returns the latency tracker of a KeyID endpoint, shared by every node that calls it.
+     * @param endpoint  KeyID web service URL
+     * @return          adaptive timeout
+     */
+    public static KeyIDAdaptiveTimeout forEndpoint(String endpoint)
+    {
+        return TIMEOUTS.computeIfAbsent(endpoint, KeyIDAdaptiveTimeout::new);
+    }
+
+    /**
+     * Adaptive timeouts of every endpoint in use.
+     */
+    public static Collection<KeyIDAdaptiveTimeout> getAll()
+    {
+        return TIMEOUTS.values();
+    }
+
+    public String getEndpoint()
+    {
+        return endpoint;
+    }
+
+    /**
+     * The timeout most recently given to a call, in milliseconds.
+     */
+    public long getEffectiveTimeout()
+    {
+        return effectiveTimeout;
+    }
+
+    /**
+     * Records the latency of a call.
+     * @param latencyMs milliseconds the call took, or was given if it timed out
+     */
+    public synchronized void record(double latencyMs)
+    {
+        samples[next] = latencyMs;
+        next = (next + 1) % WINDOW;
+        size = Math.min(size + 1, WINDOW);
+        sinceSnapshot++;
+    }
+
+    /**
+     * Computes the timeout for the next call.
+     * @param percentile    percentile of the recent latencies, between 0 and 100
+     * @param multiplier    factor applied to the percentile
+     * @param floor         minimum timeout in milliseconds
+     * @param ceiling       maximum timeout in milliseconds
+     * @return              timeout in milliseconds
+     */
+    public long timeout(int percentile, double multiplier, long floor, long ceiling)
+    {
+        double[] sorted = snapshot();
+        long timeout;
+
+        if (sorted.length < MIN_SAMPLES)
+        {
+            timeout = ceiling;
+        }
+        else
+        {
+            int rank = (int) Math.ceil(sorted.length * Math.min(Math.max(percentile, 0), 100) / 100.0);
+            double value = sorted[Math.max(rank - 1, 0)] * multiplier;
+            timeout = Math.max(floor, Math.min(ceiling, (long) Math.ceil(value)));
+        }
+
+        effectiveTimeout = timeout;
+        return timeout;
+    }
+
+    private double[] snapshot()
+    {
+        long now = System.currentTimeMillis();
+
+        synchronized (this)
+        {
+            if (sinceSnapshot >= REFRESH_SAMPLES || (sinceSnapshot > 0 && now - snapshotTime >= REFRESH_MS))
+            {
+                double[] sorted = Arrays.copyOf(samples, size);
+                Arrays.sort(sorted);
+                snapshot = sorted;
+                sinceSnapshot = 0;
+                snapshotTime = now;
+            }
+        }
+
+        return snapshot;
+    }
+}
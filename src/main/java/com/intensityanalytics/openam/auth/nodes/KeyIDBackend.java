@@ -0,0 +1,35 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.google.gson.JsonObject;
+import java.util.concurrent.Future;
+
+/**
+ * The KeyID web service operations used by the nodes. KeyIDClientBackend implements them with the KeyID client; other
+ * implementations let the nodes run against an in-process stand-in, for example in benchmarks.
+ */
+public interface KeyIDBackend
+{
+    /**
+     * Evaluates, and depending on the settings enrolls, a tsData sample.
+     * @param username  username
+     * @param tsData    tsData
+     * @param deadline  time in epoch milliseconds by which the result is needed, an implementation that waits on the
+     *                  calling thread returns by then
+     * @return          KeyID login result
+     */
+    Future<JsonObject> login(String username, String tsData, long deadline);
+
+    /**
+     * Removes a user's profile.
+     * @param username  username
+     * @param tsData    tsData
+     * @param deadline  time in epoch milliseconds by which the result is needed, an implementation that waits on the
+     *                  calling thread returns by then
+     * @return          KeyID remove profile result
+     */
+    Future<JsonObject> removeProfile(String username, String tsData, long deadline);
+}
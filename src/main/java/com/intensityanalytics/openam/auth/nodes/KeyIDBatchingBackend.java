@@ -0,0 +1,458 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import static com.intensityanalytics.openam.auth.nodes.Utility.daemonThreadFactory;
+
+/**
+ * KeyIDBackend gathering concurrent Login calls into batches sent to a batch endpoint in a single request.
+ *
+ * A dispatcher thread collects logins until the batch is full or the first one has waited the batch delay, then posts
+ * them as JSON: the client settings plus a Requests array of Username and tsData objects. The endpoint answers with a
+ * Results array holding a KeyID login result for each request, in order. A login arriving when no other login has
+ * arrived within the batch delay has nothing to be batched with, so it goes to the delegate directly, as do batches of
+ * one and profile removals. The read timeout of a batch ends at the earliest deadline of its logins.
+ *
+ * If the batch endpoint cannot be reached or does not exist, the logins of the batch are sent to the delegate one by
+ * one and batching is suspended for {@value #UNAVAILABLE_MS} milliseconds. Other failures fail the logins of the
+ * batch, as the endpoint may already have enrolled their samples.
+ *
+ * Batches larger than {@value #COMPRESS_BYTES} bytes are sent gzip compressed, and compressed responses are accepted.
+ * If the endpoint answers HTTP 415 to a compressed batch, the batch is sent again uncompressed and compression stays
+ * off for the endpoint.
+ */
+public class KeyIDBatchingBackend implements KeyIDBackend, AutoCloseable
+{
+    private static final KeyIDLog debug = KeyIDLog.getInstance("KeyIDNode");
+    private static final int MAX_QUEUED = 4096;
+    private static final int MAX_SENDERS = 8;
+    private static final long UNAVAILABLE_MS = 60000;
+    private static final int COMPRESS_BYTES = 1024;
+    private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+    private static final LongAdder BATCHES = new LongAdder();
+    private static final LongAdder BATCHED = new LongAdder();
+    private static final LongAdder FALLBACKS = new LongAdder();
+
+    private final KeyIDBackend delegate;
+    private final String url;
+    private final JsonObject settings;
+    private final int timeout;
+    private final long delayNanos;
+    private final int size;
+    private final BlockingQueue<Request> queue = new ArrayBlockingQueue<>(MAX_QUEUED);
+    private final ThreadPoolExecutor senders;
+    private final Thread dispatcher;
+    private volatile long lastArrival;
+    private volatile long unavailableUntil;
+    private volatile boolean compress = true;
+    private volatile boolean closed;
+
+    /**
+     * @param delegate  backend for profile removals and logins that are not batched
+     * @param url       batch endpoint URL
+     * @param settings  client settings sent with every batch
+     * @param timeout   maximum connect and read timeout of a batch in milliseconds
+     * @param delay     milliseconds a login waits for others to join its batch
+     * @param size      maximum number of logins in a batch
+     */
+    public KeyIDBatchingBackend(KeyIDBackend delegate, String url, JsonObject settings, int timeout, int delay,
+                                int size)
+    {
+        this.delegate = delegate;
+        this.url = url;
+        this.settings = settings;
+        this.timeout = timeout;
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delay);
+        this.size = Math.max(size, 1);
+        this.lastArrival = System.nanoTime() - delayNanos - 1;
+
+        // a full pool makes the dispatcher send the batch itself, so batches grow while the endpoint is busy
+        senders = new ThreadPoolExecutor(0, MAX_SENDERS, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                                         daemonThreadFactory("KeyIDBatchSender"),
+                                         new ThreadPoolExecutor.CallerRunsPolicy());
+        dispatcher = daemonThreadFactory("KeyIDBatchDispatcher").newThread(this::dispatch);
+        dispatcher.start();
+    }
+
+    /**
+     * Number of batches sent to batch endpoints.
+     */
+    public static long getBatches()
+    {
+        return BATCHES.sum();
+    }
+
+    /**
+     * Number of logins evaluated in batches.
+     */
+    public static long getBatched()
+    {
+        return BATCHED.sum();
+    }
+
+    /**
+     * Number of logins sent individually because a batch endpoint was unavailable.
+     */
+    public static long getFallbacks()
+    {
+        return FALLBACKS.sum();
+    }
+
+    /**
+     * Waits on the calling thread for the batch, at most until the deadline.
+     */
+    @Override
+    public Future<JsonObject> login(String username, String tsData, long deadline)
+    {
+        Request request = new Request(username, tsData, deadline);
+        long now = System.nanoTime();
+        boolean alone = now - lastArrival > delayNanos && queue.isEmpty();
+        lastArrival = now;
+
+        if (alone || closed || System.currentTimeMillis() < unavailableUntil || !queue.offer(request))
+            return delegate.login(username, tsData, deadline);
+        if (closed)
+            releaseQueued();
+
+        try
+        {
+            return CompletableFuture.completedFuture(request.result.get(deadline - System.currentTimeMillis(),
+                                                                        TimeUnit.MILLISECONDS));
+        }
+        catch (TimeoutException e)
+        {
+            request.result.cancel(false);
+            return failed(new KeyIDTimeoutException("KeyID batched login did not complete before the deadline"));
+        }
+        catch (InterruptedException e)
+        {
+            request.result.cancel(false);
+            Thread.currentThread().interrupt();
+            return failed(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof BatchUnavailableException)
+                return delegate.login(username, tsData, deadline);
+
+            return failed(e.getCause());
+        }
+    }
+
+    @Override
+    public Future<JsonObject> removeProfile(String username, String tsData, long deadline)
+    {
+        return delegate.removeProfile(username, tsData, deadline);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        dispatcher.interrupt();
+        senders.shutdown();
+        releaseQueued();
+
+        if (!(delegate instanceof AutoCloseable))
+            return;
+
+        try
+        {
+            ((AutoCloseable) delegate).close();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException("Unable to close KeyID backend", e);
+        }
+    }
+
+    private void dispatch()
+    {
+        List<Request> batch = new ArrayList<>(size);
+
+        while (!closed)
+        {
+            try
+            {
+                batch.add(queue.take());
+                long due = System.nanoTime() + delayNanos;
+
+                while (batch.size() < size)
+                {
+                    if (queue.drainTo(batch, size - batch.size()) > 0)
+                        continue;
+
+                    Request request = queue.poll(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+                    if (request == null)
+                        break;
+
+                    batch.add(request);
+                }
+
+                batch.removeIf(request -> request.result.isDone());
+
+                if (closed)
+                    break;
+
+                if (!batch.isEmpty())
+                {
+                    List<Request> ready = new ArrayList<>(batch);
+                    senders.execute(() -> send(ready));
+                }
+
+                batch.clear();
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+            catch (RuntimeException e)
+            {
+                debug.error("KeyID batch dispatch failed", e);
+                release(batch);
+                batch.clear();
+            }
+        }
+
+        release(batch);
+    }
+
+    private void send(List<Request> batch)
+    {
+        if (batch.size() == 1)
+        {
+            batch.get(0).result.completeExceptionally(new BatchUnavailableException());
+            return;
+        }
+
+        long deadline = Long.MAX_VALUE;
+
+        for (Request request : batch)
+            deadline = Math.min(deadline, request.deadline);
+
+        int batchTimeout = (int) Math.max(1, Math.min(timeout, deadline - System.currentTimeMillis()));
+
+        try
+        {
+            JsonArray results = post(batch, batchTimeout);
+
+            if (results.size() != batch.size())
+            {
+                throw new KeyIDServiceException("KeyID batch endpoint returned " + results.size() +
+                                                " results for " + batch.size() + " logins");
+            }
+
+            BATCHES.increment();
+            BATCHED.add(batch.size());
+
+            for (int i = 0; i < batch.size(); i++)
+                batch.get(i).result.complete(results.get(i).getAsJsonObject());
+        }
+        catch (BatchUnavailableException e)
+        {
+            debug.warning("KeyID batch endpoint %s unavailable, sending logins individually: %s", url,
+                          e.getMessage());
+            unavailableUntil = System.currentTimeMillis() + UNAVAILABLE_MS;
+            FALLBACKS.add(batch.size());
+            release(batch);
+        }
+        catch (Exception e)
+        {
+            for (Request request : batch)
+                request.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Posts a batch.
+     * @param timeout   connect and read timeout in milliseconds
+     */
+    private JsonArray post(List<Request> batch, int timeout) throws Exception
+    {
+        JsonObject body = new JsonObject();
+        JsonArray requests = new JsonArray();
+
+        for (Map.Entry<String, JsonElement> setting : settings.entrySet())
+            body.add(setting.getKey(), setting.getValue());
+
+        for (Request request : batch)
+        {
+            JsonObject item = new JsonObject();
+            item.addProperty("Username", request.username);
+            item.addProperty("tsData", request.tsData);
+            requests.add(item);
+        }
+
+        body.add("Requests", requests);
+
+        byte[] content = body.toString().getBytes(StandardCharsets.UTF_8);
+        boolean compressed = compress && content.length > COMPRESS_BYTES;
+        HttpURLConnection connection;
+        int status;
+
+        try
+        {
+            connection = post(content, compressed, timeout);
+            status = connection.getResponseCode();
+
+            // the endpoint rejected the batch without reading it, so it can be sent again
+            if (compressed && status == HTTP_UNSUPPORTED_MEDIA_TYPE)
+            {
+                debug.warning("KeyID batch endpoint %s does not accept compressed batches", url);
+                compress = false;
+                connection.disconnect();
+                connection = post(content, false, timeout);
+                status = connection.getResponseCode();
+            }
+        }
+        catch (ConnectException e)
+        {
+            throw new BatchUnavailableException(e.getMessage());
+        }
+        catch (SocketTimeoutException e)
+        {
+            throw new KeyIDTimeoutException("KeyID batch did not complete within " + timeout + " ms");
+        }
+
+        if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_BAD_METHOD ||
+            status == HttpURLConnection.HTTP_NOT_IMPLEMENTED || status == HttpURLConnection.HTTP_UNAVAILABLE)
+        {
+            connection.disconnect();
+            throw new BatchUnavailableException("HTTP " + status);
+        }
+
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+
+        if (status >= 400)
+        {
+            if (in != null)
+                in.close();
+            throw new KeyIDServiceException("KeyID batch endpoint returned HTTP " + status);
+        }
+
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding()))
+            in = new GZIPInputStream(in);
+
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8))
+        {
+            return new JsonParser().parse(reader).getAsJsonObject().getAsJsonArray("Results");
+        }
+    }
+
+    private HttpURLConnection post(byte[] content, boolean compressed, int timeout) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+
+        if (compressed)
+            connection.setRequestProperty("Content-Encoding", "gzip");
+
+        try (OutputStream out = compressed ? new GZIPOutputStream(connection.getOutputStream())
+                                           : connection.getOutputStream())
+        {
+            out.write(content);
+        }
+
+        return connection;
+    }
+
+    /**
+     * Hands the logins back to their callers to send individually.
+     */
+    private static void release(Iterable<Request> requests)
+    {
+        for (Request request : requests)
+            request.result.completeExceptionally(new BatchUnavailableException());
+    }
+
+    /**
+     * Hands the queued logins back to their callers to send individually.
+     */
+    private void releaseQueued()
+    {
+        List<Request> pending = new ArrayList<>();
+        queue.drainTo(pending);
+        release(pending);
+    }
+
+    private static Future<JsonObject> failed(Throwable cause)
+    {
+        CompletableFuture<JsonObject> result = new CompletableFuture<>();
+        result.completeExceptionally(cause);
+        return result;
+    }
+
+    private static final class Request
+    {
+        private final String username;
+        private final String tsData;
+        private final long deadline;
+        private final CompletableFuture<JsonObject> result = new CompletableFuture<>();
+
+        private Request(String username, String tsData, long deadline)
+        {
+            this.username = username;
+            this.tsData = tsData;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * The batch was not sent, so its logins may be sent individually.
+     */
+    private static final class BatchUnavailableException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private BatchUnavailableException()
+        {
+            super("KeyID login not batched");
+        }
+
+        private BatchUnavailableException(String message)
+        {
+            super(message);
+        }
+    }
+}
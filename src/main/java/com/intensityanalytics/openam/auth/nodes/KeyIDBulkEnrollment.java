@@ -0,0 +1,407 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import static com.intensityanalytics.openam.auth.nodes.Utility.daemonThreadFactory;
+import static com.intensityanalytics.openam.auth.nodes.Utility.isConnectFailure;
+
+/**
+ * Enrolls or removes KeyID profiles in bulk from a file of historical samples, for example to onboard users or to
+ * rebuild their profiles on a new web service.
+ *
+ * The file holds one sample per line, the username and the tsData separated by a tab. It is streamed, so memory use
+ * does not depend on its size. Samples are sent by a bounded pool of workers at a limited rate and retried with
+ * exponential backoff: removals after any failure, enrollments only when the connection failed, as KeyID may already
+ * have enrolled a sample whose call failed later on. The number of lines below which every sample is done is
+ * checkpointed, so an interrupted run resumes where it stopped; samples in flight when it was interrupted are sent
+ * again. Samples that still fail are reported in the failures file by line number, username and error, without the
+ * tsData.
+ *
+ * Options, given as key=value arguments:
+ * file, url and authKey (required), operation (enroll or reset, enroll), concurrency (8), rate (20 samples/s, 0 for no
+ * limit), timeout (10000 ms), attempts (3), customThreshold (false), thresholdConfidence (70), thresholdFidelity (50),
+ * checkpoint (file.checkpoint) and failures (file.failures).
+ */
+public final class KeyIDBulkEnrollment implements AutoCloseable
+{
+    private static final long CHECKPOINT_INTERVAL_MS = 1000;
+    private static final long REPORT_INTERVAL_MS = 10000;
+    private static final long INITIAL_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 60000;
+
+    private final Path file;
+    private final Path checkpoint;
+    private final Path failures;
+    private final KeyIDBackend client;
+    private final boolean reset;
+    private final int timeout;
+    private final int attempts;
+    private final long interval;
+    private final ExecutorService workers;
+    private final Semaphore slots;
+    private final ScheduledExecutorService checkpointer =
+        Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("KeyIDBulkEnrollment-checkpoint"));
+    private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Writer failureLog;
+    private volatile long read;
+
+    private KeyIDBulkEnrollment(Map<String, String> options) throws IOException
+    {
+        this(options, createClient(options));
+    }
+
+    /**
+     * @param options   options, of which url and authKey are not used
+     * @param client    backend the samples are sent to
+     */
+    KeyIDBulkEnrollment(Map<String, String> options, KeyIDBackend client) throws IOException
+    {
+        this.client = client;
+        file = Paths.get(required(options, "file"));
+        checkpoint = Paths.get(options.getOrDefault("checkpoint", file + ".checkpoint"));
+        failures = Paths.get(options.getOrDefault("failures", file + ".failures"));
+        reset = parseOperation(options.getOrDefault("operation", "enroll"));
+        timeout = Integer.parseInt(options.getOrDefault("timeout", "10000"));
+        attempts = Integer.parseInt(options.getOrDefault("attempts", "3"));
+
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "8"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "20"));
+        interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+
+        // a sample waits for a free slot before it is read, so at most two per worker are held in memory
+        workers = Executors.newFixedThreadPool(concurrency, daemonThreadFactory("KeyIDBulkEnrollment"));
+        slots = new Semaphore(concurrency * 2);
+        failureLog = Files.newBufferedWriter(failures, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                                             StandardOpenOption.APPEND);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        KeyIDBulkEnrollment enrollment;
+
+        try
+        {
+            enrollment = new KeyIDBulkEnrollment(parse(args));
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: KeyIDBulkEnrollment file=<samples> url=<web service URL> authKey=<key> " +
+                               "[operation=enroll|reset] [concurrency=8] [rate=20] [timeout=10000] [attempts=3] " +
+                               "[checkpoint=<file>.checkpoint] [failures=<file>.failures]");
+            System.exit(1);
+            return;
+        }
+
+        long failed;
+
+        try
+        {
+            failed = enrollment.run();
+        }
+        finally
+        {
+            enrollment.close();
+        }
+
+        System.exit(failed == 0 ? 0 : 2);
+    }
+
+    /**
+     * Creates a client with the same settings as a KeyID node enrolling on login.
+     */
+    private static KeyIDClientBackend createClient(Map<String, String> options)
+    {
+        KeyIDClientRegistry.ClientKey key =
+            new KeyIDClientRegistry.ClientKey(required(options, "url"),
+                                              required(options, "authKey"),
+                                              Integer.parseInt(options.getOrDefault("timeout", "10000")),
+                                              Boolean.parseBoolean(options.getOrDefault("customThreshold", "false")),
+                                              Integer.parseInt(options.getOrDefault("thresholdConfidence", "70")),
+                                              Integer.parseInt(options.getOrDefault("thresholdFidelity", "50")),
+                                              true, 0, "", 0, 0, null);
+        return new KeyIDClientBackend(key.createSettings());
+    }
+
+    /**
+     * Sends every sample after the checkpoint and waits for them to complete.
+     * @return number of samples that failed
+     */
+    long run() throws IOException, InterruptedException
+    {
+        long skip = readCheckpoint();
+        long start = System.nanoTime();
+        long next = start;
+        long reported = start;
+        long line = 0;
+
+        if (skip > 0)
+            System.out.printf("Resuming %s after line %d%n", file, skip);
+
+        checkpointer.scheduleWithFixedDelay(this::writeCheckpoint, CHECKPOINT_INTERVAL_MS, CHECKPOINT_INTERVAL_MS,
+                                            TimeUnit.MILLISECONDS);
+
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+        {
+            String record;
+
+            while ((record = in.readLine()) != null)
+            {
+                line++;
+
+                if (line <= skip || record.isEmpty())
+                {
+                    read = line;
+                    continue;
+                }
+
+                if (interval > 0)
+                {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0)
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    next = Math.max(next, System.nanoTime() - interval) + interval;
+                }
+
+                slots.acquire();
+                long number = line;
+                String sample = record;
+                inFlight.add(number);
+                read = number;
+                workers.execute(() -> process(number, sample));
+
+                if (System.nanoTime() - reported > TimeUnit.MILLISECONDS.toNanos(REPORT_INTERVAL_MS))
+                {
+                    reported = System.nanoTime();
+                    report(line - skip, reported - start);
+                }
+            }
+        }
+
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        checkpointer.shutdown();
+        checkpointer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        writeCheckpoint();
+        report(line - skip, System.nanoTime() - start);
+
+        if (failed.get() > 0)
+            System.out.printf("Failed samples are listed in %s%n", failures);
+
+        return failed.get();
+    }
+
+    private void process(long line, String record)
+    {
+        try
+        {
+            int separator = record.indexOf('\t');
+
+            if (separator <= 0)
+            {
+                fail(line, "", "expected a username and tsData separated by a tab");
+                return;
+            }
+
+            String username = record.substring(0, separator);
+            String tsData = record.substring(separator + 1);
+
+            for (int attempt = 1; ; attempt++)
+            {
+                try
+                {
+                    JsonObject result = call(username, tsData);
+                    JsonElement error = result == null ? null : result.get("Error");
+
+                    if (error != null && !error.isJsonNull() && !error.getAsString().isEmpty())
+                        fail(line, username, "KeyID Error: " + error.getAsString());
+                    else
+                        succeeded.incrementAndGet();
+                    return;
+                }
+                catch (Exception e)
+                {
+                    boolean retryable = reset || isConnectFailure(e);
+
+                    if (e instanceof InterruptedException || !retryable || attempt >= attempts)
+                    {
+                        fail(line, username, e.getClass().getSimpleName() + ": " + e.getMessage());
+                        return;
+                    }
+
+                    Thread.sleep(Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << (attempt - 1)));
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            inFlight.remove(line);
+            slots.release();
+        }
+    }
+
+    private JsonObject call(String username, String tsData) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        Future<JsonObject> future = reset ? client.removeProfile(username, tsData, deadline)
+                                          : client.login(username, tsData, deadline);
+
+        try
+        {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    private void fail(long line, String username, String error)
+    {
+        failed.incrementAndGet();
+
+        synchronized (failureLog)
+        {
+            try
+            {
+                failureLog.write(line + "\t" + username + "\t" + error.replace('\n', ' ') + "\n");
+                failureLog.flush();
+            }
+            catch (IOException e)
+            {
+                System.err.printf("Unable to record the failure of line %d: %s%n", line, e.getMessage());
+            }
+        }
+    }
+
+    private void report(long lines, long elapsed)
+    {
+        double seconds = Math.max(1e-9, elapsed / 1e9);
+        System.out.printf("%d lines, %d succeeded, %d failed, %.1f samples/s%n", lines, succeeded.get(),
+                          failed.get(), (succeeded.get() + failed.get()) / seconds);
+    }
+
+    /**
+     * @return number of lines already processed by an earlier run
+     */
+    private long readCheckpoint() throws IOException
+    {
+        if (!Files.exists(checkpoint))
+            return 0;
+
+        return Long.parseLong(new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim());
+    }
+
+    /**
+     * Records the number of lines below which every sample is done. The line is read before the lowest sample in
+     * flight, which was added before the line was advanced, so no sample in flight is ever counted as done.
+     */
+    private void writeCheckpoint()
+    {
+        long last = read;
+        Long lowest = inFlight.isEmpty() ? null : inFlight.first();
+        long done = lowest == null ? last : Math.min(last, lowest - 1);
+
+        try
+        {
+            Path temp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+            Files.write(temp, Long.toString(done).getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            System.err.printf("Unable to write checkpoint %s: %s%n", checkpoint, e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        workers.shutdownNow();
+        checkpointer.shutdownNow();
+        failureLog.close();
+
+        if (!(client instanceof AutoCloseable))
+            return;
+
+        try
+        {
+            ((AutoCloseable) client).close();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException("Unable to close KeyID backend", e);
+        }
+    }
+
+    private static boolean parseOperation(String operation)
+    {
+        if (operation.equals("enroll"))
+            return false;
+        if (operation.equals("reset"))
+            return true;
+
+        throw new IllegalArgumentException("Expected operation=enroll or operation=reset but got " + operation);
+    }
+
+    private static String required(Map<String, String> options, String name)
+    {
+        String value = options.get(name);
+
+        if (value == null || value.isEmpty())
+            throw new IllegalArgumentException("Missing option " + name);
+
+        return value;
+    }
+
+    private static Map<String, String> parse(String[] args)
+    {
+        Map<String, String> options = new LinkedHashMap<>();
+
+        for (String arg : args)
+        {
+            int separator = arg.indexOf('=');
+            if (separator > 0)
+                options.put(arg.substring(0, separator), arg.substring(separator + 1));
+            else if (!arg.isEmpty())
+                throw new IllegalArgumentException("Expected key=value but got " + arg);
+        }
+
+        return options;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of AM request threads waiting on KeyID calls.
+ *
+ * A bulkhead admits a maximum number of concurrent calls. Further calls wait, up to a maximum number of them and no
+ * longer than their deadline, for a call to finish. A token bucket optionally limits the rate at which calls are
+ * started; a call takes its token only when it is given a slot. Calls that cannot be admitted are rejected with a
+ * KeyIDBulkheadException. The global bulkhead is configured with system properties and applies to every node; each
+ * realm also has a bulkhead using the settings of the most recently configured node in the realm.
+ */
+public final class KeyIDBulkhead
+{
+    public static final String MAX_CONCURRENT_PROPERTY = "com.intensityanalytics.keyid.bulkhead.maxConcurrent";
+    public static final String MAX_WAITING_PROPERTY = "com.intensityanalytics.keyid.bulkhead.maxWaiting";
+    private static final Map<String, KeyIDBulkhead> REALMS = new ConcurrentHashMap<>();
+    private static final KeyIDBulkhead GLOBAL =
+        new KeyIDBulkhead("global", new Settings(Integer.getInteger(MAX_CONCURRENT_PROPERTY, 0),
+                                                 Integer.getInteger(MAX_WAITING_PROPERTY, 0), 0, 0));
+
+    private final String name;
+    private volatile Settings settings;
+    private int active;
+    private int waiting;
+    private double tokens;
+    private long refilled = System.nanoTime();
+    private final LongAdder rejectedFull = new LongAdder();
+    private final LongAdder rejectedWait = new LongAdder();
+    private final LongAdder rejectedRate = new LongAdder();
+
+    public enum Rejection
+    {
+        FULL,
+        WAIT,
+        RATE
+    }
+
+    private KeyIDBulkhead(String name, Settings settings)
+    {
+        this.name = name;
+        this.settings = settings;
+        this.tokens = settings.burst;
+    }
+
+    /**
+     * The bulkhead shared by every node, unlimited unless the system properties set a maximum.
+     */
+    public static KeyIDBulkhead global()
+    {
+        return GLOBAL;
+    }
+
+    /**
+     * Returns the bulkhead of a realm, using the given settings from now on.
+     * @param realm     realm
+     * @param settings  limits
+     * @return          bulkhead
+     */
+    public static KeyIDBulkhead forRealm(String realm, Settings settings)
+    {
+        KeyIDBulkhead bulkhead = REALMS.computeIfAbsent(realm, r -> new KeyIDBulkhead(r, settings));
+        bulkhead.updateSettings(settings);
+        return bulkhead;
+    }
+
+    /**
+     * Bulkheads of every realm in use.
+     */
+    public static Collection<KeyIDBulkhead> getRealms()
+    {
+        return REALMS.values();
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Whether the bulkhead limits anything.
+     */
+    public boolean isEnabled()
+    {
+        Settings current = settings;
+        return current.maxConcurrent > 0 || current.rate > 0;
+    }
+
+    public synchronized int getActive()
+    {
+        return active;
+    }
+
+    public synchronized int getWaiting()
+    {
+        return waiting;
+    }
+
+    public long getRejected(Rejection rejection)
+    {
+        switch (rejection)
+        {
+            case FULL:
+                return rejectedFull.sum();
+            case WAIT:
+                return rejectedWait.sum();
+            default:
+                return rejectedRate.sum();
+        }
+    }
+
+    /**
+     * Admits a call, waiting for a running call to finish if the bulkhead is full. Every admitted call must be
+     * followed by release.
+     * @param deadline  time in epoch milliseconds after which the call is no longer waited for
+     * @throws KeyIDBulkheadException if the call is rejected
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized void acquire(long deadline) throws KeyIDBulkheadException, InterruptedException
+    {
+        Settings current = settings;
+
+        if (current.maxConcurrent <= 0 || active < current.maxConcurrent)
+        {
+            admit();
+            return;
+        }
+
+        if (waiting >= current.maxWaiting)
+        {
+            rejectedFull.increment();
+            throw new KeyIDBulkheadException(String.format("KeyID call rejected, %s bulkhead of %d calls is full",
+                                                           name, current.maxConcurrent));
+        }
+
+        waiting++;
+
+        try
+        {
+            while (settings.maxConcurrent > 0 && active >= settings.maxConcurrent)
+            {
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0)
+                {
+                    rejectedWait.increment();
+                    throw new KeyIDBulkheadException(String.format("KeyID call rejected, no %s bulkhead slot freed " +
+                                                                   "before the deadline", name));
+                }
+
+                wait(remaining);
+            }
+
+            admit();
+        }
+        finally
+        {
+            waiting--;
+        }
+    }
+
+    /**
+     * Admits a call once a slot is free, taking a rate token only then so a rejected call does not use up the rate.
+     */
+    private void admit() throws KeyIDBulkheadException
+    {
+        Settings current = settings;
+
+        if (current.rate > 0 && !takeToken(current))
+        {
+            // the slot stays free for another waiting call
+            notify();
+            rejectedRate.increment();
+            throw new KeyIDBulkheadException(String.format("KeyID call rejected, %s rate limit of %d/s reached",
+                                                           name, current.rate));
+        }
+
+        active++;
+    }
+
+    /**
+     * Releases an admitted call.
+     */
+    public synchronized void release()
+    {
+        active--;
+        notify();
+    }
+
+    private boolean takeToken(Settings current)
+    {
+        long now = System.nanoTime();
+        double refill = (now - refilled) * current.rate / (double) TimeUnit.SECONDS.toNanos(1);
+        tokens = Math.min(current.burst, tokens + refill);
+        refilled = now;
+
+        if (tokens < 1)
+            return false;
+
+        tokens--;
+        return true;
+    }
+
+    private synchronized void updateSettings(Settings settings)
+    {
+        if (settings.equals(this.settings))
+            return;
+
+        this.settings = settings;
+        tokens = Math.min(tokens, settings.burst);
+        notifyAll();
+    }
+
+    /**
+     * Bulkhead limits.
+     */
+    public static final class Settings
+    {
+        private final int maxConcurrent;
+        private final int maxWaiting;
+        private final int rate;
+        private final int burst;
+
+        /**
+         * @param maxConcurrent maximum number of concurrent calls, 0 for no limit
+         * @param maxWaiting    maximum number of calls waiting for a slot
+         * @param rate          calls started per second, 0 for no limit
+         * @param burst         calls that may be started at once after an idle period
+         */
+        public Settings(int maxConcurrent, int maxWaiting, int rate, int burst)
+        {
+            this.maxConcurrent = maxConcurrent;
+            this.maxWaiting = Math.max(0, maxWaiting);
+            this.rate = rate;
+            this.burst = Math.max(1, burst);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+            if (!(o instanceof Settings))
+                return false;
+
+            Settings other = (Settings) o;
+            return maxConcurrent == other.maxConcurrent &&
+                   maxWaiting == other.maxWaiting &&
+                   rate == other.rate &&
+                   burst == other.burst;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * (31 * (31 * maxConcurrent + maxWaiting) + rate) + burst;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.sun.identity.shared.debug.Debug;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Circuit breaker guarding calls to a KeyID web service endpoint.
+ *
+ * The breaker records the outcome of the most recent calls in a count based sliding window. When the failure rate or
+ * the slow call rate of a full window reaches its threshold the breaker opens and calls fail fast; a threshold of 0
+ * disables its check.
+ *
+ * Breakers are kept per endpoint URL. A node listing several replicas has a breaker per replica, used by the routing
+ * between them. After the open
+ * duration the breaker lets a limited number of trial calls through and closes again if they all succeed.
+ *
+ * Each permission carries the generation of the state it was granted in, and outcomes are only recorded for the
+ * current generation, so a call that started while the breaker was closed cannot count as a trial call.
+ */
+public final class KeyIDCircuitBreaker
+{
+    private final static String DEBUG_FILE = "KeyIDNode";
+    private static final Debug debug = Debug.getInstance(DEBUG_FILE);
+    private static final Map<String, KeyIDCircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+    private static final List<Listener> LISTENERS = new CopyOnWriteArrayList<>();
+
+    private final String endpoint;
+    private volatile Settings settings;
+
+    private State state = State.CLOSED;
+    private boolean[] failed;
+    private boolean[] slow;
+    private int calls;
+    private int next;
+    private int failures;
+    private int slowCalls;
+    private long openUntil;
+    private int trialsPermitted;
+    private int trialsSucceeded;
+    private long generation;
+
+    public enum State
+    {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Notified when a breaker changes state.
+     */
+    public interface Listener
+    {
+        void onStateTransition(String endpoint, State from, State to);
+    }
+
+    private KeyIDCircuitBreaker(String endpoint, Settings settings)
+    {
+        this.endpoint = endpoint;
+        this.settings = settings;
+        resetWindow();
+    }
+
+    /**
+     * Returns the breaker for a KeyID endpoint. Breakers are shared by every node that calls the endpoint and use the
+     * settings of the most recently configured node.
+     * @param endpoint  KeyID web service URL
+     * @param settings  breaker thresholds
+     * @return          circuit breaker
+     */
+    public static KeyIDCircuitBreaker forEndpoint(String endpoint, Settings settings)
+    {
+        KeyIDCircuitBreaker breaker = BREAKERS.computeIfAbsent(endpoint, e -> new KeyIDCircuitBreaker(e, settings));
+        breaker.updateSettings(settings);
+        return breaker;
+    }
+
+    public static void addListener(Listener listener)
+    {
+        LISTENERS.add(listener);
+    }
+
+    public String getEndpoint()
+    {
+        return endpoint;
+    }
+
+    public synchronized State getState()
+    {
+        return state;
+    }
+
+    /**
+     * Checks whether a call may be made. Every permitted call must be followed by onSuccess, onError or onIgnored.
+     * @return permission to pass to the outcome, or -1 if the call should fail fast
+     */
+    public synchronized long tryAcquirePermission()
+    {
+        if (state == State.OPEN)
+        {
+            if (System.currentTimeMillis() < openUntil)
+                return -1;
+            transitionTo(State.HALF_OPEN);
+        }
+
+        if (state == State.HALF_OPEN)
+        {
+            if (trialsPermitted >= settings.halfOpenCalls)
+                return -1;
+            trialsPermitted++;
+        }
+
+        return generation;
+    }
+
+    /**
+     * Records a call that received a response.
+     * @param permission    permission the call was made with
+     * @param durationMs    call duration in milliseconds
+     */
+    public synchronized void onSuccess(long permission, long durationMs)
+    {
+        if (permission != generation)
+            return;
+
+        boolean isSlow = durationMs >= settings.slowCallDuration;
+
+        if (state == State.HALF_OPEN)
+        {
+            if (isSlow)
+                open();
+            else if (++trialsSucceeded >= settings.halfOpenCalls)
+                transitionTo(State.CLOSED);
+        }
+        else if (state == State.CLOSED)
+            record(false, isSlow);
+    }
+
+    /**
+     * Records a call that failed or timed out.
+     * @param permission    permission the call was made with
+     * @param durationMs    call duration in milliseconds
+     */
+    public synchronized void onError(long permission, long durationMs)
+    {
+        if (permission != generation)
+            return;
+
+        if (state == State.HALF_OPEN)
+            open();
+        else if (state == State.CLOSED)
+            record(true, durationMs >= settings.slowCallDuration);
+    }
+
+    /**
+     * Records a permitted call that failed before reaching the endpoint, which says nothing about its health. A trial
+     * call is returned so another call can take its place.
+     * @param permission    permission the call was made with
+     */
+    public synchronized void onIgnored(long permission)
+    {
+        if (permission == generation && state == State.HALF_OPEN)
+            trialsPermitted--;
+    }
+
+    private void record(boolean isFailure, boolean isSlow)
+    {
+        if (calls == failed.length)
+        {
+            if (failed[next])
+                failures--;
+            if (slow[next])
+                slowCalls--;
+        }
+        else
+            calls++;
+
+        failed[next] = isFailure;
+        slow[next] = isSlow;
+        next = (next + 1) % failed.length;
+
+        if (isFailure)
+            failures++;
+        if (isSlow)
+            slowCalls++;
+
+        if (calls == failed.length &&
+            ((settings.failureRate > 0 && failures * 100 >= settings.failureRate * calls) ||
+             (settings.slowCallRate > 0 && slowCalls * 100 >= settings.slowCallRate * calls)))
+        {
+            open();
+        }
+    }
+
+    private void open()
+    {
+        openUntil = System.currentTimeMillis() + settings.openDuration;
+        transitionTo(State.OPEN);
+    }
+
+    private void transitionTo(State to)
+    {
+        State from = state;
+        state = to;
+        generation++;
+        trialsPermitted = 0;
+        trialsSucceeded = 0;
+
+        if (to == State.CLOSED)
+            resetWindow();
+
+        debug.error(String.format("KeyID circuit breaker for %s changed from %s to %s", endpoint, from, to));
+
+        for (Listener listener : LISTENERS)
+            listener.onStateTransition(endpoint, from, to);
+    }
+
+    private synchronized void updateSettings(Settings settings)
+    {
+        if (settings.equals(this.settings))
+            return;
+
+        boolean resize = settings.windowSize != this.settings.windowSize;
+        this.settings = settings;
+
+        if (resize)
+            resetWindow();
+    }
+
+    private void resetWindow()
+    {
+        failed = new boolean[settings.windowSize];
+        slow = new boolean[settings.windowSize];
+        calls = 0;
+        next = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+
+    /**
+     * Circuit breaker thresholds.
+     */
+    public static final class Settings
+    {
+        private final int failureRate;
+        private final int slowCallDuration;
+        private final int slowCallRate;
+        private final int windowSize;
+        private final int openDuration;
+        private final int halfOpenCalls;
+
+        /**
+         * @param failureRate       failure rate percentage that opens the breaker, 0 to ignore failures
+         * @param slowCallDuration  duration in milliseconds above which a call is slow
+         * @param slowCallRate      slow call rate percentage that opens the breaker, 0 to ignore slow calls
+         * @param windowSize        number of calls in the sliding window
+         * @param openDuration      milliseconds the breaker stays open before trial calls are permitted
+         * @param halfOpenCalls     number of trial calls made while half-open
+         */
+        public Settings(int failureRate, int slowCallDuration, int slowCallRate, int windowSize, int openDuration,
+                        int halfOpenCalls)
+        {
+            this.failureRate = failureRate;
+            this.slowCallDuration = slowCallDuration;
+            this.slowCallRate = slowCallRate;
+            this.windowSize = Math.max(1, windowSize);
+            this.openDuration = openDuration;
+            this.halfOpenCalls = Math.max(1, halfOpenCalls);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+            if (!(o instanceof Settings))
+                return false;
+
+            Settings other = (Settings) o;
+            return failureRate == other.failureRate &&
+                   slowCallDuration == other.slowCallDuration &&
+                   slowCallRate == other.slowCallRate &&
+                   windowSize == other.windowSize &&
+                   openDuration == other.openDuration &&
+                   halfOpenCalls == other.halfOpenCalls;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = failureRate;
+            result = 31 * result + slowCallDuration;
+            result = 31 * result + slowCallRate;
+            result = 31 * result + windowSize;
+            result = 31 * result + openDuration;
+            result = 31 * result + halfOpenCalls;
+            return result;
+        }
+    }
+}
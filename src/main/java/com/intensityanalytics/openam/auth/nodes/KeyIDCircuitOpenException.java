@@ -0,0 +1,20 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+
+/**
+ * Thrown instead of calling the KeyID web service while its circuit breaker is open.
+ */
+public class KeyIDCircuitOpenException extends NodeProcessException
+{
+    private static final long serialVersionUID = 1L;
+
+    public KeyIDCircuitOpenException(String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.google.gson.JsonObject;
+import com.intensityanalytics.keyid.KeyIDClient;
+import com.intensityanalytics.keyid.KeyIDSettings;
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+/**
+ * KeyIDBackend calling the KeyID web service with the KeyID client.
+ */
+public class KeyIDClientBackend implements KeyIDBackend, AutoCloseable
+{
+    private final KeyIDClient client;
+
+    public KeyIDClientBackend(KeyIDSettings settings)
+    {
+        client = new KeyIDClient(settings);
+    }
+
+    @Override
+    public Future<JsonObject> login(String username, String tsData, long deadline)
+    {
+        return client.Login(username, tsData, "");
+    }
+
+    @Override
+    public Future<JsonObject> removeProfile(String username, String tsData, long deadline)
+    {
+        return client.RemoveProfile(username, tsData, "");
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (!(client instanceof AutoCloseable))
+            return;
+
+        try
+        {
+            ((AutoCloseable) client).close();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException("Unable to close KeyID client", e);
+        }
+    }
+}
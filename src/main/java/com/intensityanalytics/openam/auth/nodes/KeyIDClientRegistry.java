@@ -0,0 +1,312 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.google.gson.JsonObject;
+import com.intensityanalytics.keyid.KeyIDSettings;
+import com.sun.identity.shared.debug.Debug;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import static com.intensityanalytics.openam.auth.nodes.Utility.daemonThreadFactory;
+
+/**
+ * Process-wide registry of shared KeyID clients.
+ *
+ * AM creates a new node instance for every evaluation, so clients are keyed by the effective client settings and
+ * shared across node instances and trees. Clients whose settings are no longer used, because the node configuration
+ * changed or the tree was removed, are retired after an idle period.
+ */
+public final class KeyIDClientRegistry
+{
+    private final static String DEBUG_FILE = "KeyIDNode";
+    private static final Debug debug = Debug.getInstance(DEBUG_FILE);
+    private static final int MAX_CLIENTS = 64;
+    private static final long IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final long SWEEP_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long RETIRE_GRACE_MS = TimeUnit.SECONDS.toMillis(60);
+    private static final KeyIDClientRegistry INSTANCE = new KeyIDClientRegistry();
+
+    private final Map<ClientKey, Entry> clients = new ConcurrentHashMap<>();
+    private volatile Function<KeyIDSettings, KeyIDBackend> backendFactory = KeyIDClientBackend::new;
+    private final ScheduledExecutorService sweeper =
+        Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("KeyIDClientRegistry"));
+
+    private KeyIDClientRegistry()
+    {
+        sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static KeyIDClientRegistry getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the shared client for the given settings, creating it on first use.
+     * @param key       effective client settings
+     * @param settings  supplies the KeyIDSettings when a new client must be created
+     * @return          shared, thread-safe client
+     */
+    public KeyIDBackend acquire(ClientKey key, Supplier<KeyIDSettings> settings)
+    {
+        Entry entry = clients.get(key);
+
+        if (entry == null)
+        {
+            if (clients.size() >= MAX_CLIENTS)
+                evictLeastRecentlyUsed();
+
+            entry = clients.computeIfAbsent(key, k -> {
+                debug.message("Creating shared KeyID client for " + k);
+                return new Entry(createBackend(k, settings));
+            });
+        }
+
+        entry.lastUsed = System.currentTimeMillis();
+        return entry.client;
+    }
+
+    /**
+     * Creates the backend for a key, batching logins if the key has a batch URL, and warms up its endpoints.
+     */
+    private KeyIDBackend createBackend(ClientKey key, Supplier<KeyIDSettings> settings)
+    {
+        KeyIDBackend backend = createEndpointBackend(key, settings);
+        KeyIDWarmup.getInstance().warmEndpoints(key.url);
+
+        if (key.batchUrl == null || key.batchUrl.isEmpty())
+            return backend;
+
+        KeyIDWarmup.getInstance().warmEndpoints(key.batchUrl);
+
+        JsonObject batchSettings = new JsonObject();
+        batchSettings.addProperty("License", key.authKey);
+        batchSettings.addProperty("CustomThreshold", key.customThreshold);
+        batchSettings.addProperty("ThresholdConfidence", key.thresholdConfidence);
+        batchSettings.addProperty("ThresholdFidelity", key.thresholdFidelity);
+        batchSettings.addProperty("LoginEnrollment", key.loginEnrollment);
+
+        return new KeyIDBatchingBackend(backend, key.batchUrl, batchSettings, key.timeout, key.batchDelay,
+                                        key.batchSize);
+    }
+
+    /**
+     * Creates the backend calling the endpoints of a key, routing over them if the key has more than one URL.
+     */
+    private KeyIDBackend createEndpointBackend(ClientKey key, Supplier<KeyIDSettings> settings)
+    {
+        List<String> endpoints = KeyIDRoutingBackend.parseEndpoints(key.url);
+
+        if (endpoints.size() <= 1)
+            return backendFactory.apply(settings.get());
+
+        Map<String, KeyIDBackend> clients = new LinkedHashMap<>();
+
+        for (String endpoint : endpoints)
+        {
+            KeyIDSettings endpointSettings = settings.get();
+            endpointSettings.setUrl(endpoint);
+            clients.put(endpoint, backendFactory.apply(endpointSettings));
+        }
+
+        return new KeyIDRoutingBackend(clients, key.loginEnrollment, key.hedgeDelay, key.breakerSettings);
+    }
+
+    /**
+     * Replaces the factory creating clients for new settings, for example with an in-process stand-in of the KeyID
+     * web service. Clients already created are not affected.
+     * @param factory   creates a client from its settings
+     */
+    public void setBackendFactory(Function<KeyIDSettings, KeyIDBackend> factory)
+    {
+        backendFactory = factory;
+    }
+
+    /**
+     * Number of clients currently held by the registry.
+     */
+    public int size()
+    {
+        return clients.size();
+    }
+
+    private void sweep()
+    {
+        long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT_MS;
+
+        for (Map.Entry<ClientKey, Entry> e : clients.entrySet())
+        {
+            if (e.getValue().lastUsed < cutoff)
+                retire(e.getKey(), RETIRE_GRACE_MS);
+        }
+    }
+
+    private void evictLeastRecentlyUsed()
+    {
+        ClientKey oldest = null;
+        long oldestUse = Long.MAX_VALUE;
+
+        for (Map.Entry<ClientKey, Entry> e : clients.entrySet())
+        {
+            if (e.getValue().lastUsed < oldestUse)
+            {
+                oldest = e.getKey();
+                oldestUse = e.getValue().lastUsed;
+            }
+        }
+
+        if (oldest != null)
+            retire(oldest, RETIRE_GRACE_MS);
+    }
+
+    /**
+     * Removes a client from the registry and closes it once in-flight calls have had time to complete.
+     */
+    private void retire(ClientKey key, long graceMs)
+    {
+        Entry entry = clients.remove(key);
+
+        if (entry == null)
+            return;
+
+        debug.message("Retiring shared KeyID client for " + key);
+
+        if (entry.client instanceof AutoCloseable)
+        {
+            Runnable close = () -> {
+                try
+                {
+                    ((AutoCloseable) entry.client).close();
+                }
+                catch (Exception e)
+                {
+                    debug.warning("Unable to close KeyID client: " + e.getMessage());
+                }
+            };
+
+            sweeper.schedule(close, graceMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static final class Entry
+    {
+        private final KeyIDBackend client;
+        private volatile long lastUsed;
+
+        private Entry(KeyIDBackend client)
+        {
+            this.client = client;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * The effective settings that identify a shared client.
+     */
+    public static final class ClientKey
+    {
+        private final String url;
+        private final String authKey;
+        private final int timeout;
+        private final boolean customThreshold;
+        private final int thresholdConfidence;
+        private final int thresholdFidelity;
+        private final boolean loginEnrollment;
+        private final int hedgeDelay;
+        private final String batchUrl;
+        private final int batchDelay;
+        private final int batchSize;
+        private final KeyIDCircuitBreaker.Settings breakerSettings;
+
+        /**
+         * @param breakerSettings   thresholds of the breaker kept for each of several endpoints, or null for none
+         */
+        public ClientKey(String url, String authKey, int timeout, boolean customThreshold, int thresholdConfidence,
+                         int thresholdFidelity, boolean loginEnrollment, int hedgeDelay, String batchUrl,
+                         int batchDelay, int batchSize, KeyIDCircuitBreaker.Settings breakerSettings)
+        {
+            this.url = url;
+            this.authKey = authKey;
+            this.timeout = timeout;
+            this.customThreshold = customThreshold;
+            this.thresholdConfidence = thresholdConfidence;
+            this.thresholdFidelity = thresholdFidelity;
+            this.loginEnrollment = loginEnrollment;
+            this.hedgeDelay = hedgeDelay;
+            this.batchUrl = batchUrl;
+            this.batchDelay = batchDelay;
+            this.batchSize = batchSize;
+            this.breakerSettings = breakerSettings;
+        }
+
+        /**
+         * Creates the KeyID client settings for the key. Batching and hedging are applied around the client.
+         * @return KeyIDSettings object
+         */
+        public KeyIDSettings createSettings()
+        {
+            KeyIDSettings settings = new KeyIDSettings();
+            settings.setUrl(url);
+            settings.setLicense(authKey);
+            settings.setCustomThreshold(customThreshold);
+            settings.setThresholdConfidence(thresholdConfidence);
+            settings.setThresholdFidelity(thresholdFidelity);
+            settings.setTimeout(timeout);
+            settings.setLoginEnrollment(loginEnrollment);
+            return settings;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+            if (!(o instanceof ClientKey))
+                return false;
+
+            ClientKey other = (ClientKey) o;
+            return timeout == other.timeout &&
+                   customThreshold == other.customThreshold &&
+                   thresholdConfidence == other.thresholdConfidence &&
+                   thresholdFidelity == other.thresholdFidelity &&
+                   loginEnrollment == other.loginEnrollment &&
+                   hedgeDelay == other.hedgeDelay &&
+                   batchDelay == other.batchDelay &&
+                   batchSize == other.batchSize &&
+                   Objects.equals(url, other.url) &&
+                   Objects.equals(authKey, other.authKey) &&
+                   Objects.equals(batchUrl, other.batchUrl) &&
+                   Objects.equals(breakerSettings, other.breakerSettings);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(url, authKey, timeout, customThreshold, thresholdConfidence, thresholdFidelity,
+                                loginEnrollment, hedgeDelay, batchUrl, batchDelay, batchSize, breakerSettings);
+        }
+
+        /**
+         * Describes the key without exposing the authentication key.
+         */
+        @Override
+        public String toString()
+        {
+            return String.format("url=%s, timeout=%d, customThreshold=%b, confidence=%d, fidelity=%d, " +
+                                 "loginEnrollment=%b, hedgeDelay=%d, batchUrl=%s, batchDelay=%d, batchSize=%d, " +
+                                 "endpointBreakers=%b", url, timeout, customThreshold, thresholdConfidence,
+                                 thresholdFidelity, loginEnrollment, hedgeDelay, batchUrl, batchDelay, batchSize,
+                                 breakerSettings != null);
+        }
+    }
+}
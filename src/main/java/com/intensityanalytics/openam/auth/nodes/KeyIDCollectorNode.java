@@ -0,0 +1,263 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.node.api.Action.send;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.PASSWORD;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static com.intensityanalytics.openam.auth.nodes.Constants.*;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.ResourceBundle;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.PasswordCallback;
+import com.sun.identity.authentication.callbacks.HiddenValueCallback;
+import org.forgerock.guava.common.base.Strings;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.*;
+
+/**
+ * Base of the nodes that collect a password together with the KeyID typing data.
+ *
+ * The script and the localized prompts are rendered once per locale and configuration and cached, so the first visit
+ * only creates the callbacks. A configuration change renders into a new cache entry, old entries are evicted as the
+ * least recently used.
+ *
+ * When the authentication is sampled for tracing, the collector starts its trace and keeps the trace id in shared
+ * state for the KeyID node.
+ */
+public abstract class KeyIDCollectorNode extends SingleOutcomeNode
+{
+    private static final int MAX_RENDERED = 256;
+    private static final Map<RenderKey, Rendered> RENDERED =
+        new LinkedHashMap<RenderKey, Rendered>(64, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<RenderKey, Rendered> eldest)
+            {
+                return size() > MAX_RENDERED;
+            }
+        };
+
+    protected final KeyIDLog debug;
+    private final String name;
+    private final String bundle;
+    private final String library;
+    private final String loaderScript;
+    private final boolean serverSideTsData;
+    private final boolean compactTsData;
+
+    /**
+     * @param name              name of the submission in log messages
+     * @param debugFile         debug file
+     * @param bundle            resource bundle with the prompts
+     * @param library           URL of the KeyID JavaScript library
+     * @param loaderScript      URL of a hosted loader script, or empty to inline the loader
+     * @param serverSideTsData  whether to keep the tsData on the server
+     * @param compactTsData     whether the script posts the tsData in the compact encoding
+     */
+    protected KeyIDCollectorNode(String name, String debugFile, String bundle, String library, String loaderScript,
+                                 boolean serverSideTsData, boolean compactTsData)
+    {
+        this.debug = KeyIDLog.getInstance(debugFile);
+        this.name = name;
+        this.bundle = bundle;
+        this.library = library;
+        this.loaderScript = loaderScript;
+        this.serverSideTsData = serverSideTsData;
+        this.compactTsData = compactTsData;
+    }
+
+    @Override
+    public Action process(TreeContext context)
+    {
+        JsonValue sharedState = context.sharedState.copy();
+        JsonValue transientState = context.transientState.copy();
+        String traceId = sharedState.get(TRACE).isNull() ? null : sharedState.get(TRACE).asString();
+
+        collectUsername(context, sharedState);
+
+        context.getCallback(PasswordCallback.class)
+        .map(PasswordCallback::getPassword)
+        .map(String::new)
+        .filter(password -> !Strings.isNullOrEmpty(password))
+        .map(password -> transientState.put(PASSWORD, password));
+
+        context.getCallback(HiddenValueCallback.class)
+        .map(HiddenValueCallback::getValue)
+        .filter(tsData -> !Strings.isNullOrEmpty(tsData))
+        .map(tsData -> storeTsData(sharedState, tsData));
+
+        if (transientState.get(PASSWORD).isNotNull() &&
+            sharedState.get(USERNAME).isNotNull() &&
+            (sharedState.get(TSDATA).isNotNull() || sharedState.get(TSDATA_HANDLE).isNotNull()))
+        {
+            long submitted = System.currentTimeMillis();
+            transientState.put(SUBMITTED, submitted);
+            KeyIDMetrics.getInstance().recordSubmission();
+            debug.warning("%s submitted for user %s", name, sharedState.get(USERNAME));
+            traceSubmission(traceId, sharedState, submitted);
+            return goToNext().replaceSharedState(sharedState).replaceTransientState(transientState).build();
+        }
+
+        // the trace starts with the first visit, so the time the user spends typing is part of it
+        if (traceId == null)
+        {
+            traceId = KeyIDTracer.getInstance().startTrace();
+            if (traceId != null)
+                sharedState.put(TRACE, traceId);
+        }
+
+        KeyIDTracer.Span span = KeyIDTracer.getInstance().start(traceId, "keyid.collector.render")
+                                .setAttribute("keyid.collector", name);
+        Rendered rendered = render(context);
+        KeyIDMetrics.getInstance().recordCallbacksSent();
+        List<Callback> callbacks = createCallbacks(rendered.prompts, rendered.script);
+        span.end();
+
+        if (traceId == null)
+            return send(callbacks).build();
+
+        sharedState.put(CALLBACKS_SENT, System.currentTimeMillis());
+        return send(callbacks).replaceSharedState(sharedState).build();
+    }
+
+    /**
+     * Records the time from sending the callbacks to the submission, which is mostly the user typing.
+     * @param traceId       trace id, or null if the authentication is not traced
+     * @param sharedState   shared state
+     * @param submitted     submission time in epoch milliseconds
+     */
+    private void traceSubmission(String traceId, JsonValue sharedState, long submitted)
+    {
+        JsonValue sent = sharedState.get(CALLBACKS_SENT);
+        sharedState.remove(CALLBACKS_SENT);
+
+        if (traceId == null || sent.isNull())
+            return;
+
+        KeyIDTracer.getInstance().start(traceId, "keyid.collector.input", sent.asLong())
+        .setAttribute("keyid.collector", name)
+        .setAttribute("keyid.tsdata.server_side", serverSideTsData)
+        .end();
+    }
+
+    /**
+     * Reads the username from the submitted callbacks, if the node collects it.
+     * @param context       tree context
+     * @param sharedState   shared state
+     */
+    protected void collectUsername(TreeContext context, JsonValue sharedState)
+    {
+    }
+
+    /**
+     * Creates the callbacks sent on the first visit.
+     * @param prompts   localized prompts
+     * @param script    script that binds the KeyID library to the password field
+     * @return          callbacks
+     */
+    protected abstract List<Callback> createCallbacks(ResourceBundle prompts, String script);
+
+    private Rendered render(TreeContext context)
+    {
+        List<Locale> locales = context.request.locales.getLocales();
+        RenderKey key = new RenderKey(bundle, locales, library, loaderScript, compactTsData);
+        Rendered rendered;
+
+        synchronized (RENDERED)
+        {
+            rendered = RENDERED.get(key);
+        }
+
+        if (rendered == null)
+        {
+            debug.message("Rendering %s callbacks for locales %s", name, locales);
+            ResourceBundle prompts = context.request.locales.getBundleInPreferredLocale(bundle,
+                                                                                       getClass().getClassLoader());
+            String script = !Strings.isNullOrEmpty(loaderScript)
+                            ? String.format(KEYIDLOADER, loaderScript, library, compactTsData)
+                            : compactTsData ? KEYIDCOMPACT + String.format(KEYIDSCRIPT, library, KEYIDCOMPACTCALL)
+                                            : String.format(KEYIDSCRIPT, library, "");
+            rendered = new Rendered(prompts, script);
+
+            synchronized (RENDERED)
+            {
+                RENDERED.put(key, rendered);
+            }
+        }
+
+        return rendered;
+    }
+
+    /**
+     * Puts the tsData into shared state, or only a handle to it when the tsData is kept on the server.
+     */
+    private JsonValue storeTsData(JsonValue sharedState, String tsData)
+    {
+        if (serverSideTsData)
+        {
+            sharedState.remove(TSDATA);
+            return sharedState.put(TSDATA_HANDLE, TsDataStores.getStore().put(tsData));
+        }
+
+        sharedState.remove(TSDATA_HANDLE);
+        return sharedState.put(TSDATA, tsData);
+    }
+
+    private static final class Rendered
+    {
+        private final ResourceBundle prompts;
+        private final String script;
+
+        private Rendered(ResourceBundle prompts, String script)
+        {
+            this.prompts = prompts;
+            this.script = script;
+        }
+    }
+
+    private static final class RenderKey
+    {
+        private final String bundle;
+        private final List<Locale> locales;
+        private final String library;
+        private final String loaderScript;
+        private final boolean compactTsData;
+
+        private RenderKey(String bundle, List<Locale> locales, String library, String loaderScript,
+                          boolean compactTsData)
+        {
+            this.bundle = bundle;
+            this.locales = locales;
+            this.library = library;
+            this.loaderScript = loaderScript;
+            this.compactTsData = compactTsData;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+            if (!(o instanceof RenderKey))
+                return false;
+            RenderKey other = (RenderKey) o;
+            return compactTsData == other.compactTsData && bundle.equals(other.bundle) &&
+                   Objects.equals(locales, other.locales) &&
+                   Objects.equals(library, other.library) && Objects.equals(loaderScript, other.loaderScript);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(bundle, locales, library, loaderScript, compactTsData);
+        }
+    }
+}
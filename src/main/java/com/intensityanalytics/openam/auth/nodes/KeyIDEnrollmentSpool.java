@@ -0,0 +1,546 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.google.gson.JsonObject;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import static com.intensityanalytics.openam.auth.nodes.Utility.daemonThreadFactory;
+import static com.intensityanalytics.openam.auth.nodes.Utility.isConnectFailure;
+
+/**
+ * Durable spool of enrollment samples that could not be sent to KeyID, replayed once the service is reachable again.
+ *
+ * Each spool is a memory-mapped file of bounded size holding a ring of records of username, tsData and submission
+ * time, encrypted by a KeyIDSpoolCipher. Samples are raw biometric data, so nothing is spooled unless both the
+ * {@value #DIRECTORY_PROPERTY} and {@value #CIPHER_PROPERTY} system properties are set, and spool files are readable
+ * by their owner only where the file system supports it. Records are written before the header offsets that publish
+ * them, so a spool survives an AM restart. Samples that arrive while the spool is full are dropped and counted. A
+ * background thread replays the oldest record at the configured rate, backs off while calls fail, and discards records
+ * KeyID rejects or that are older than the maximum age. A spool file is locked by the AM server using it.
+ */
+public final class KeyIDEnrollmentSpool implements AutoCloseable
+{
+    public static final String DIRECTORY_PROPERTY = "com.intensityanalytics.keyid.spool.directory";
+    public static final String MAX_BYTES_PROPERTY = "com.intensityanalytics.keyid.spool.maxBytes";
+    public static final String RATE_PROPERTY = "com.intensityanalytics.keyid.spool.rate";
+    public static final String MAX_AGE_PROPERTY = "com.intensityanalytics.keyid.spool.maxAge";
+    public static final String CIPHER_PROPERTY = "com.intensityanalytics.keyid.spool.cipher";
+
+    private final static String DEBUG_FILE = "KeyIDNode";
+    private static final KeyIDLog debug = KeyIDLog.getInstance(DEBUG_FILE);
+    private static final int MAGIC = 0x4b494453;
+    private static final int HEADER = 16;
+    private static final int READ_OFFSET = 4;
+    private static final int WRITE_OFFSET = 8;
+    private static final int COUNT = 12;
+    private static final int WRAP = -1;
+    private static final long IDLE_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 60000;
+    private static final Map<String, KeyIDEnrollmentSpool> SPOOLS = new ConcurrentHashMap<>();
+    private static final LongAdder APPENDED = new LongAdder();
+    private static final LongAdder DROPPED = new LongAdder();
+    private static final LongAdder REPLAYED = new LongAdder();
+    private static final LongAdder DISCARDED = new LongAdder();
+    private static final AtomicBoolean UNCONFIGURED_LOGGED = new AtomicBoolean();
+
+    private final String name;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final KeyIDSpoolCipher cipher;
+    private final Supplier<KeyIDBackend> client;
+    private final KeyIDCircuitBreaker breaker;
+    private final int timeout;
+    private final long intervalMs = 1000 / Math.max(1, Integer.getInteger(RATE_PROPERTY, 10));
+    private final long maxAgeMs = Long.getLong(MAX_AGE_PROPERTY, TimeUnit.DAYS.toMillis(7));
+    private final Thread replayer;
+    private volatile boolean closed;
+
+    private KeyIDEnrollmentSpool(String name, Path file, KeyIDSpoolCipher cipher, Supplier<KeyIDBackend> client,
+                                 KeyIDCircuitBreaker breaker, int timeout) throws IOException
+    {
+        this.name = name;
+        this.cipher = cipher;
+        this.client = client;
+        this.breaker = breaker;
+        this.timeout = timeout;
+
+        Files.createDirectories(file.getParent(), ownerOnly(file, "rwx------"));
+        channel = FileChannel.open(file, EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE), ownerOnly(file, "rw-------"));
+
+        try
+        {
+            lock = channel.tryLock();
+
+            if (lock == null)
+                throw new IOException("Enrollment spool " + file + " is in use by another process");
+
+            long size = channel.size();
+            boolean existing = size >= HEADER;
+            capacity = (int) Math.min(Integer.MAX_VALUE, existing ? size : Long.getLong(MAX_BYTES_PROPERTY,
+                                                                                       16L * 1024 * 1024));
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+            if (!existing || buffer.getInt(0) != MAGIC)
+            {
+                if (existing)
+                    debug.error("Enrollment spool %s is not a spool file, discarding its contents", file);
+
+                buffer.putInt(READ_OFFSET, HEADER);
+                buffer.putInt(WRITE_OFFSET, HEADER);
+                buffer.putInt(COUNT, 0);
+                buffer.putInt(0, MAGIC);
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+
+        replayer = daemonThreadFactory("KeyIDEnrollmentSpool-" + name).newThread(this::replay);
+        replayer.start();
+    }
+
+    /**
+     * Returns the spool of a KeyID web service account, opening it and starting its replay on first use.
+     * @param url       KeyID web service URL
+     * @param authKey   KeyID authentication key
+     * @param client    supplies the client samples are replayed with
+     * @param breaker   circuit breaker for the endpoint, or null
+     * @param timeout   timeout in milliseconds for a replayed call
+     * @return          spool, or null if spooling is not configured or the spool cannot be opened
+     */
+    public static KeyIDEnrollmentSpool forClient(String url, String authKey, Supplier<KeyIDBackend> client,
+                                                 KeyIDCircuitBreaker breaker, int timeout)
+    {
+        String name = name(url, authKey);
+        KeyIDEnrollmentSpool spool = SPOOLS.get(name);
+
+        if (spool != null)
+            return spool;
+
+        synchronized (SPOOLS)
+        {
+            spool = SPOOLS.get(name);
+
+            if (spool == null)
+            {
+                String directory = System.getProperty(DIRECTORY_PROPERTY);
+                String cipherName = System.getProperty(CIPHER_PROPERTY);
+
+                if (directory == null || directory.isEmpty() || cipherName == null || cipherName.isEmpty())
+                {
+                    if (UNCONFIGURED_LOGGED.compareAndSet(false, true))
+                        debug.error("KeyID enrollment samples are not spooled, %s and %s must both be set",
+                                    DIRECTORY_PROPERTY, CIPHER_PROPERTY);
+                    return null;
+                }
+
+                try
+                {
+                    spool = new KeyIDEnrollmentSpool(name, Paths.get(directory).resolve(name + ".spool"),
+                                                     createCipher(cipherName), client, breaker, timeout);
+                    SPOOLS.put(name, spool);
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    debug.error("Unable to open KeyID enrollment spool", e);
+                }
+            }
+
+            return spool;
+        }
+    }
+
+    /**
+     * Whether a call failed without reaching KeyID, so spooling its sample cannot enroll it twice.
+     * @param e exception the call failed with
+     */
+    public static boolean isUnsent(Throwable e)
+    {
+        if (e instanceof KeyIDCircuitOpenException || e instanceof KeyIDBulkheadException ||
+            e instanceof RejectedExecutionException)
+            return true;
+
+        return isConnectFailure(e);
+    }
+
+    /**
+     * Number of samples spooled.
+     */
+    public static long getAppended()
+    {
+        return APPENDED.sum();
+    }
+
+    /**
+     * Number of samples dropped because a spool was full or they could not be encrypted.
+     */
+    public static long getDropped()
+    {
+        return DROPPED.sum();
+    }
+
+    /**
+     * Number of spooled samples replayed to KeyID.
+     */
+    public static long getReplayed()
+    {
+        return REPLAYED.sum();
+    }
+
+    /**
+     * Number of spooled samples discarded because KeyID rejected them, they expired or could not be read.
+     */
+    public static long getDiscarded()
+    {
+        return DISCARDED.sum();
+    }
+
+    /**
+     * Number of samples waiting in all spools.
+     */
+    public static long getPending()
+    {
+        long pending = 0;
+
+        for (KeyIDEnrollmentSpool spool : SPOOLS.values())
+            pending += spool.size();
+
+        return pending;
+    }
+
+    /**
+     * Number of samples waiting in this spool.
+     */
+    public synchronized int size()
+    {
+        return closed ? 0 : buffer.getInt(COUNT);
+    }
+
+    /**
+     * Spools a sample.
+     * @param username  username
+     * @param tsData    tsData
+     * @return          false if the sample was dropped
+     */
+    public boolean append(String username, String tsData)
+    {
+        byte[] record;
+
+        try
+        {
+            record = cipher.encrypt(serialize(username, tsData));
+        }
+        catch (IOException | GeneralSecurityException e)
+        {
+            DROPPED.increment();
+            debug.error("Unable to spool KeyID enrollment sample", e);
+            return false;
+        }
+
+        synchronized (this)
+        {
+            int position = reserve(4 + record.length);
+
+            if (position < 0)
+            {
+                DROPPED.increment();
+                debug.warning("KeyID enrollment spool %s is full, sample for %s dropped", name, username);
+                return false;
+            }
+
+            ByteBuffer view = buffer.duplicate();
+            view.position(position);
+            view.putInt(record.length);
+            view.put(record);
+
+            buffer.putInt(WRITE_OFFSET, position + 4 + record.length);
+            buffer.putInt(COUNT, buffer.getInt(COUNT) + 1);
+        }
+
+        APPENDED.increment();
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (this)
+        {
+            if (closed)
+                return;
+
+            closed = true;
+            buffer.force();
+        }
+
+        replayer.interrupt();
+        SPOOLS.remove(name, this);
+        lock.release();
+        channel.close();
+    }
+
+    /**
+     * Finds room for a record of the given length, wrapping to the start of the ring if it does not fit at the end.
+     * @return position to write the record at, or -1 if the spool is full
+     */
+    private int reserve(int length)
+    {
+        int read = buffer.getInt(READ_OFFSET);
+        int write = buffer.getInt(WRITE_OFFSET);
+        int count = buffer.getInt(COUNT);
+
+        if (closed || (count > 0 && read == write))
+            return -1;
+
+        if (write >= read)
+        {
+            if (capacity - write >= length)
+                return write;
+            if (read - HEADER < length)
+                return -1;
+            if (capacity - write >= 4)
+                buffer.putInt(write, WRAP);
+            return HEADER;
+        }
+
+        return read - write >= length ? write : -1;
+    }
+
+    /**
+     * Position of the oldest record, past a wrap marker.
+     */
+    private int head()
+    {
+        int read = buffer.getInt(READ_OFFSET);
+        return capacity - read < 4 || buffer.getInt(read) == WRAP ? HEADER : read;
+    }
+
+    private synchronized byte[] peek()
+    {
+        if (closed || buffer.getInt(COUNT) == 0)
+            return null;
+
+        int position = head();
+        byte[] record = new byte[buffer.getInt(position)];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + 4);
+        view.get(record);
+        return record;
+    }
+
+    private synchronized void remove()
+    {
+        if (closed)
+            return;
+
+        int position = head();
+        int count = buffer.getInt(COUNT) - 1;
+
+        if (count == 0)
+        {
+            buffer.putInt(READ_OFFSET, HEADER);
+            buffer.putInt(WRITE_OFFSET, HEADER);
+        }
+        else
+        {
+            buffer.putInt(READ_OFFSET, position + 4 + buffer.getInt(position));
+        }
+
+        buffer.putInt(COUNT, count);
+    }
+
+    private void replay()
+    {
+        long backoff = 0;
+
+        while (!closed)
+        {
+            try
+            {
+                byte[] record = peek();
+
+                if (record == null)
+                {
+                    Thread.sleep(IDLE_MS);
+                    continue;
+                }
+
+                if (replay(record))
+                {
+                    remove();
+                    backoff = 0;
+                    Thread.sleep(intervalMs);
+                }
+                else
+                {
+                    backoff = Math.min(Math.max(backoff * 2, IDLE_MS), MAX_BACKOFF_MS);
+                    Thread.sleep(backoff);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Replays a record.
+     * @return true if the record is done with, false if it should be retried later
+     */
+    private boolean replay(byte[] record) throws InterruptedException
+    {
+        String username;
+        String tsData;
+        long submitted;
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(cipher.decrypt(record))))
+        {
+            submitted = in.readLong();
+            username = in.readUTF();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            tsData = new String(bytes, StandardCharsets.UTF_8);
+        }
+        catch (IOException | GeneralSecurityException e)
+        {
+            DISCARDED.increment();
+            debug.error("Discarding unreadable KeyID enrollment spool record", e);
+            return true;
+        }
+
+        if (System.currentTimeMillis() - submitted > maxAgeMs)
+        {
+            DISCARDED.increment();
+            debug.warning("Discarding expired KeyID enrollment sample for %s", username);
+            return true;
+        }
+
+        try
+        {
+            JsonObject result = KeyIDGateway.getInstance().login(client.get(), breaker, username, tsData,
+                                                                 System.currentTimeMillis() + timeout);
+
+            if (!result.get("Error").getAsString().isEmpty())
+            {
+                DISCARDED.increment();
+                debug.warning("KeyID rejected spooled enrollment sample for %s: %s", username,
+                              result.get("Error").getAsString());
+            }
+            else
+            {
+                REPLAYED.increment();
+            }
+
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            debug.message("KeyID enrollment spool replay failed: %s", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Names the spool file of an account without revealing the authentication key.
+     */
+    private static String name(String url, String authKey)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                                         .digest((url + "\n" + authKey).getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder("keyid-");
+
+            for (int i = 0; i < 8; i++)
+                name.append(String.format("%02x", digest[i]));
+
+            return name.toString();
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] serialize(String username, String tsData) throws IOException
+    {
+        byte[] bytes = tsData.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + username.length() + 16);
+
+        try (DataOutputStream out = new DataOutputStream(record))
+        {
+            out.writeLong(System.currentTimeMillis());
+            out.writeUTF(username);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        return record.toByteArray();
+    }
+
+    /**
+     * Creates the cipher named by {@value #CIPHER_PROPERTY}.
+     * @throws IOException if the cipher cannot be created, so samples are never written unencrypted
+     */
+    private static KeyIDSpoolCipher createCipher(String className) throws IOException
+    {
+        try
+        {
+            return (KeyIDSpoolCipher) Class.forName(className).newInstance();
+        }
+        catch (ReflectiveOperationException | ClassCastException e)
+        {
+            throw new IOException("Unable to create KeyID enrollment spool cipher " + className, e);
+        }
+    }
+
+    /**
+     * Restricts a new spool file or directory to its owner where the file system has POSIX permissions.
+     */
+    private static FileAttribute<?>[] ownerOnly(Path file, String permissions)
+    {
+        if (!file.getFileSystem().supportedFileAttributeViews().contains("posix"))
+            return new FileAttribute<?>[0];
+
+        return new FileAttribute<?>[] {
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(permissions))
+        };
+    }
+}
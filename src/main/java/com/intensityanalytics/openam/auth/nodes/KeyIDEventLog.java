@@ -0,0 +1,179 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.sun.identity.shared.debug.Debug;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import static com.intensityanalytics.openam.auth.nodes.Utility.daemonThreadFactory;
+
+/**
+ * Structured log of KeyID evaluations, written as one JSON object per line to the KeyIDEvents debug file at warning
+ * level.
+ *
+ * Recording an event only places it in a bounded ring buffer, a background thread formats and writes it. Events are
+ * dropped and counted when the buffer is full. Users are identified by a truncated SHA-256 hash of the username,
+ * salted with the {@value #SALT_PROPERTY} system property, and tsData is never part of an event.
+ */
+public final class KeyIDEventLog
+{
+    public static final String SALT_PROPERTY = "com.intensityanalytics.keyid.events.salt";
+    private static final String DEBUG_FILE = "KeyIDEvents";
+    private static final int CAPACITY = Integer.getInteger("com.intensityanalytics.keyid.events.capacity", 8192);
+    private static final int BATCH_SIZE = 256;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final KeyIDEventLog INSTANCE = new KeyIDEventLog(Debug.getInstance(DEBUG_FILE), CAPACITY).start();
+
+    private final Debug debug;
+    private final byte[] salt = System.getProperty(SALT_PROPERTY, "").getBytes(StandardCharsets.UTF_8);
+    private final BlockingQueue<Event> buffer;
+    private final AtomicLong dropped = new AtomicLong();
+    private final MessageDigest digest;
+
+    /**
+     * Creates an event log that only buffers events until it is started.
+     */
+    KeyIDEventLog(Debug debug, int capacity)
+    {
+        this.debug = debug;
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private KeyIDEventLog start()
+    {
+        daemonThreadFactory("KeyIDEventLog").newThread(this::write).start();
+        return this;
+    }
+
+    public static KeyIDEventLog getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Records the outcome of a KeyID evaluation.
+     * @param username      username
+     * @param outcome       node outcome
+     * @param latencyNanos  time the node took
+     * @param confidence    KeyID confidence, or NaN if there was no KeyID result
+     * @param fidelity      KeyID fidelity, or NaN if there was no KeyID result
+     */
+    public void evaluation(String username, String outcome, long latencyNanos, double confidence, double fidelity)
+    {
+        if (!debug.warningEnabled())
+            return;
+
+        if (!buffer.offer(new Event(username, outcome, latencyNanos, confidence, fidelity)))
+            dropped.incrementAndGet();
+    }
+
+    /**
+     * Number of events dropped because the buffer was full.
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    private void write()
+    {
+        List<Event> batch = new ArrayList<>(BATCH_SIZE);
+        StringBuilder line = new StringBuilder(256);
+
+        while (true)
+        {
+            try
+            {
+                batch.add(buffer.take());
+                buffer.drainTo(batch, BATCH_SIZE - 1);
+
+                for (Event event : batch)
+                {
+                    line.setLength(0);
+                    event.appendTo(line, userHash(event.username));
+                    debug.warning(line.toString());
+                }
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            catch (RuntimeException e)
+            {
+                debug.error("Unable to write KeyID event: " + e);
+            }
+            finally
+            {
+                batch.clear();
+            }
+        }
+    }
+
+    private String userHash(String username)
+    {
+        if (username == null)
+            return "";
+
+        digest.reset();
+        digest.update(salt);
+        byte[] hash = digest.digest(username.getBytes(StandardCharsets.UTF_8));
+        char[] hex = new char[16];
+
+        for (int i = 0; i < 8; i++)
+        {
+            hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+        }
+
+        return new String(hex);
+    }
+
+    private static final class Event
+    {
+        private final long time = System.currentTimeMillis();
+        private final String username;
+        private final String outcome;
+        private final long latencyNanos;
+        private final double confidence;
+        private final double fidelity;
+
+        private Event(String username, String outcome, long latencyNanos, double confidence, double fidelity)
+        {
+            this.username = username;
+            this.outcome = outcome;
+            this.latencyNanos = latencyNanos;
+            this.confidence = confidence;
+            this.fidelity = fidelity;
+        }
+
+        private void appendTo(StringBuilder out, String userHash)
+        {
+            out.append("{\"event\":\"evaluation\",\"time\":").append(time)
+               .append(",\"user\":\"").append(userHash)
+               .append("\",\"outcome\":\"").append(outcome)
+               .append("\",\"latencyMs\":").append(latencyNanos / 1000000);
+
+            if (!Double.isNaN(confidence))
+                out.append(",\"confidence\":").append(confidence).append(",\"fidelity\":").append(fidelity);
+
+            out.append('}');
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Appends spans to a file for offline analysis, one OTLP/JSON ExportTraceServiceRequest per line. The file can be
+ * replayed to an OpenTelemetry collector or read directly.
+ */
+public class KeyIDFileSpanExporter implements KeyIDSpanExporter
+{
+    private final Path file;
+
+    /**
+     * @param file  file to append to, created if it does not exist
+     */
+    public KeyIDFileSpanExporter(String file) throws IOException
+    {
+        this.file = Paths.get(file);
+
+        if (this.file.getParent() != null)
+            Files.createDirectories(this.file.getParent());
+    }
+
+    @Override
+    public void export(List<KeyIDTracer.Span> spans) throws IOException
+    {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                                                  StandardOpenOption.APPEND))
+        {
+            out.write(KeyIDTracer.toOtlp(spans).toString());
+            out.write('\n');
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.google.gson.JsonObject;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongConsumer;
+import static com.intensityanalytics.openam.auth.nodes.Utility.isLocalFailure;
+
+/**
+ * Waits for KeyID web service calls on the calling AM request thread no longer than the deadline of the
+ * authentication. Calls that miss their deadline are cancelled.
+ */
+public final class KeyIDGateway
+{
+    private static final KeyIDGateway INSTANCE = new KeyIDGateway();
+
+    private KeyIDGateway()
+    {
+    }
+
+    public static KeyIDGateway getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Executes a KeyID login, waiting at most until the deadline.
+     * @param client    KeyID backend
+     * @param breaker   circuit breaker for the endpoint, or null
+     * @param username  username
+     * @param tsData    tsData
+     * @param deadline  time in epoch milliseconds by which the result is needed
+     * @return          KeyID login result
+     * @throws Exception if the call fails, is rejected or misses the deadline
+     */
+    public JsonObject login(KeyIDBackend client, KeyIDCircuitBreaker breaker, String username, String tsData,
+                            long deadline) throws Exception
+    {
+        KeyIDMetrics metrics = KeyIDMetrics.getInstance();
+
+        return call(() -> client.login(username, tsData, deadline), breaker, deadline, "Login",
+                    metrics::loginStarted, metrics::loginFinished);
+    }
+
+    /**
+     * Removes a KeyID profile, waiting at most until the deadline.
+     * @param client    KeyID backend
+     * @param breaker   circuit breaker for the endpoint, or null
+     * @param username  username
+     * @param tsData    tsData
+     * @param deadline  time in epoch milliseconds by which the result is needed
+     * @return          KeyID remove profile result
+     * @throws Exception if the call fails, is rejected or misses the deadline
+     */
+    public JsonObject removeProfile(KeyIDBackend client, KeyIDCircuitBreaker breaker, String username, String tsData,
+                                    long deadline) throws Exception
+    {
+        KeyIDMetrics metrics = KeyIDMetrics.getInstance();
+
+        return call(() -> client.removeProfile(username, tsData, deadline), breaker, deadline, "RemoveProfile",
+                    metrics::removeProfileStarted, metrics::removeProfileFinished);
+    }
+
+    /**
+     * Starts the call and waits for the client's result, cancelling the client request if the wait ends first. Only
+     * calls that reached the endpoint are recorded by the breaker.
+     */
+    private JsonObject call(Callable<Future<JsonObject>> remoteCall, KeyIDCircuitBreaker breaker, long deadline,
+                            String operation, Runnable started, LongConsumer finished) throws Exception
+    {
+        if (deadline - System.currentTimeMillis() <= 0)
+            throw new KeyIDTimeoutException("KeyID " + operation + " deadline expired before the call was made", false);
+
+        long permission = breaker == null ? 0 : breaker.tryAcquirePermission();
+
+        if (permission < 0)
+            throw new KeyIDCircuitOpenException(String.format("KeyID %s skipped, circuit breaker for %s is open",
+                                                              operation, breaker.getEndpoint()));
+
+        long start = System.nanoTime();
+        Future<JsonObject> future;
+        started.run();
+
+        try
+        {
+            future = remoteCall.call();
+        }
+        catch (Exception e)
+        {
+            finished.accept(System.nanoTime() - start);
+            if (breaker != null)
+                breaker.onIgnored(permission);
+            throw e;
+        }
+
+        try
+        {
+            JsonObject result = future.get(Math.max(0, deadline - System.currentTimeMillis()),
+                                           TimeUnit.MILLISECONDS);
+            if (breaker != null)
+                breaker.onSuccess(permission, elapsedMs(start));
+            return result;
+        }
+        catch (TimeoutException e)
+        {
+            future.cancel(true);
+            if (breaker != null)
+                breaker.onError(permission, elapsedMs(start));
+            throw new KeyIDTimeoutException(String.format("KeyID %s did not complete within %d ms", operation,
+                                                          elapsedMs(start)));
+        }
+        catch (InterruptedException e)
+        {
+            future.cancel(true);
+            if (breaker != null)
+                breaker.onIgnored(permission);
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+        catch (ExecutionException e)
+        {
+            if (breaker != null && isLocalFailure(e.getCause()))
+                breaker.onIgnored(permission);
+            else if (breaker != null)
+                breaker.onError(permission, elapsedMs(start));
+
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+        finally
+        {
+            finished.accept(System.nanoTime() - start);
+        }
+    }
+
+    private static long elapsedMs(long start)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+/**
+ * Scores tsData in-process against a local replica of the KeyID profiles, so a login need not wait for the web
+ * service. The replica and the comparison belong to the implementation, which is selected with the
+ * {@value KeyIDLocalScorers#SCORER_PROPERTY} system property and needs a public no-argument constructor.
+ *
+ * Scoring runs on the AM request thread, so it should not block or allocate more than it must. Logins the scorer
+ * cannot decide are evaluated by the web service.
+ */
+public interface KeyIDLocalScorer
+{
+    /**
+     * Scores a login.
+     * @param url           URL of the web service the profiles belong to, or its replica URLs sorted and separated
+     *                      by commas
+     * @param username      username
+     * @param tsData        tsData
+     * @param thresholds    thresholds the login must meet to match
+     * @param maxAge        maximum age in milliseconds of the local profile
+     * @return              score, or null if the profile is not replicated or older than maxAge
+     */
+    Score score(String url, String username, String tsData, Thresholds thresholds, long maxAge);
+
+    /**
+     * The thresholds configured in the node.
+     */
+    final class Thresholds
+    {
+        private final boolean custom;
+        private final int confidence;
+        private final int fidelity;
+
+        public Thresholds(boolean custom, int confidence, int fidelity)
+        {
+            this.custom = custom;
+            this.confidence = confidence;
+            this.fidelity = fidelity;
+        }
+
+        /**
+         * Whether the thresholds below apply, otherwise the web service defaults do.
+         */
+        public boolean isCustom()
+        {
+            return custom;
+        }
+
+        public int getConfidence()
+        {
+            return confidence;
+        }
+
+        public int getFidelity()
+        {
+            return fidelity;
+        }
+    }
+
+    /**
+     * The result of scoring a login, with the fields of a KeyID login result.
+     */
+    final class Score
+    {
+        private final boolean match;
+        private final double confidence;
+        private final double fidelity;
+        private final int profiles;
+        private final boolean ready;
+
+        public Score(boolean match, double confidence, double fidelity, int profiles, boolean ready)
+        {
+            this.match = match;
+            this.confidence = confidence;
+            this.fidelity = fidelity;
+            this.profiles = profiles;
+            this.ready = ready;
+        }
+
+        public boolean isMatch()
+        {
+            return match;
+        }
+
+        public double getConfidence()
+        {
+            return confidence;
+        }
+
+        public double getFidelity()
+        {
+            return fidelity;
+        }
+
+        public int getProfiles()
+        {
+            return profiles;
+        }
+
+        public boolean isReady()
+        {
+            return ready;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Provides the KeyIDLocalScorer used by the KeyID node and turns its scores into KeyID login results.
+ *
+ * No scorer ships with the node. Local scoring is off unless the {@value #SCORER_PROPERTY} system property names a
+ * KeyIDLocalScorer implementation with a public no-argument constructor, or a scorer is installed with setScorer.
+ * Profiles replicated longer ago than {@value #MAX_AGE_PROPERTY} seconds (default {@value #DEFAULT_MAX_AGE}) are not
+ * used.
+ */
+public final class KeyIDLocalScorers
+{
+    public static final String SCORER_PROPERTY = "com.intensityanalytics.keyid.localScorer";
+    public static final String MAX_AGE_PROPERTY = "com.intensityanalytics.keyid.localScorer.maxProfileAge";
+    private static final long DEFAULT_MAX_AGE = 3600;
+    private final static String DEBUG_FILE = "KeyIDNode";
+    private static final KeyIDLog debug = KeyIDLog.getInstance(DEBUG_FILE);
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong errors = new AtomicLong();
+    private static final Map<String, String> SERVICES = new ConcurrentHashMap<>();
+    private static volatile KeyIDLocalScorer scorer;
+    private static volatile boolean created;
+
+    private KeyIDLocalScorers()
+    {
+    }
+
+    /**
+     * @return the local scorer, or null if none is configured
+     */
+    public static KeyIDLocalScorer getScorer()
+    {
+        if (!created)
+        {
+            synchronized (KeyIDLocalScorers.class)
+            {
+                if (!created)
+                {
+                    scorer = createScorer();
+                    created = true;
+                }
+            }
+        }
+
+        return scorer;
+    }
+
+    /**
+     * @return maximum age in milliseconds of the profiles the scorer may use
+     */
+    public static long getMaxAge()
+    {
+        return TimeUnit.SECONDS.toMillis(Long.getLong(MAX_AGE_PROPERTY, DEFAULT_MAX_AGE));
+    }
+
+    public static void setScorer(KeyIDLocalScorer localScorer)
+    {
+        scorer = localScorer;
+        created = true;
+    }
+
+    /**
+     * Scores a login locally. The scorer is given the web service as its replica URLs, sorted and separated by commas,
+     * so nodes listing the same replicas in any order or spacing share the profiles they replicate.
+     * @param url           URL of the web service the profiles belong to, or its replica URLs separated by commas
+     * @param username      username
+     * @param tsData        tsData
+     * @param thresholds    thresholds the login must meet to match
+     * @param maxAge        maximum age in milliseconds of the local profile
+     * @return              KeyID login result, or null if the login must be evaluated by the web service
+     */
+    public static JsonObject login(String url, String username, String tsData, KeyIDLocalScorer.Thresholds thresholds,
+                                   long maxAge)
+    {
+        KeyIDLocalScorer current = getScorer();
+
+        if (current == null)
+            return null;
+
+        KeyIDLocalScorer.Score score;
+
+        try
+        {
+            score = current.score(service(url), username, tsData, thresholds, maxAge);
+        }
+        catch (RuntimeException e)
+        {
+            errors.incrementAndGet();
+            debug.error("KeyID local scoring failed, evaluating with the web service", e);
+            return null;
+        }
+
+        if (score == null)
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        JsonObject result = new JsonObject();
+        result.addProperty("Error", "");
+        result.addProperty("Match", score.isMatch());
+        result.addProperty("Confidence", score.getConfidence());
+        result.addProperty("Fidelity", score.getFidelity());
+        result.addProperty("Profiles", score.getProfiles());
+        result.addProperty("IsReady", score.isReady());
+        return result;
+    }
+
+    /**
+     * Identifies a web service by its sorted replica URLs.
+     */
+    private static String service(String url)
+    {
+        return SERVICES.computeIfAbsent(url, u ->
+        {
+            List<String> endpoints = new ArrayList<>(KeyIDRoutingBackend.parseEndpoints(u));
+            Collections.sort(endpoints);
+            return String.join(",", endpoints);
+        });
+    }
+
+    public static long getHits()
+    {
+        return hits.get();
+    }
+
+    public static long getMisses()
+    {
+        return misses.get();
+    }
+
+    public static long getErrors()
+    {
+        return errors.get();
+    }
+
+    private static KeyIDLocalScorer createScorer()
+    {
+        String className = System.getProperty(SCORER_PROPERTY);
+
+        if (className == null || className.isEmpty())
+            return null;
+
+        try
+        {
+            return (KeyIDLocalScorer) Class.forName(className).newInstance();
+        }
+        catch (Exception e)
+        {
+            debug.error("Unable to create KeyID local scorer %s, logins are evaluated by the web service: %s",
+                        className, e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.sun.identity.shared.debug.Debug;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Debug logging for the KeyID nodes that only formats a message when its level is enabled, and writes the stack trace
+ * of a repeated error at most once per {@value #STACK_INTERVAL} milliseconds.
+ *
+ * Messages are formatted with String.format. Never pass tsData as an argument.
+ */
+public final class KeyIDLog
+{
+    static final long STACK_INTERVAL = 60000;
+    private static final int MAX_STACK_KEYS = 1024;
+    private static final Map<String, KeyIDLog> LOGS = new ConcurrentHashMap<>();
+
+    private final Debug debug;
+    private final Map<String, StackSample> stacks = new ConcurrentHashMap<>();
+
+    private KeyIDLog(Debug debug)
+    {
+        this.debug = debug;
+    }
+
+    public static KeyIDLog getInstance(String debugFile)
+    {
+        return LOGS.computeIfAbsent(debugFile, name -> new KeyIDLog(Debug.getInstance(name)));
+    }
+
+    public boolean messageEnabled()
+    {
+        return debug.messageEnabled();
+    }
+
+    public boolean warningEnabled()
+    {
+        return debug.warningEnabled();
+    }
+
+    public void message(String message)
+    {
+        debug.message(message);
+    }
+
+    public void message(String format, Object arg)
+    {
+        if (debug.messageEnabled())
+            debug.message(String.format(format, arg));
+    }
+
+    public void message(String format, Object arg1, Object arg2)
+    {
+        if (debug.messageEnabled())
+            debug.message(String.format(format, arg1, arg2));
+    }
+
+    public void message(String format, Object... args)
+    {
+        if (debug.messageEnabled())
+            debug.message(String.format(format, args));
+    }
+
+    public void warning(String message)
+    {
+        debug.warning(message);
+    }
+
+    public void warning(String format, Object arg)
+    {
+        if (debug.warningEnabled())
+            debug.warning(String.format(format, arg));
+    }
+
+    public void warning(String format, Object arg1, Object arg2)
+    {
+        if (debug.warningEnabled())
+            debug.warning(String.format(format, arg1, arg2));
+    }
+
+    public void warning(String format, Object... args)
+    {
+        if (debug.warningEnabled())
+            debug.warning(String.format(format, args));
+    }
+
+    public void error(String message)
+    {
+        debug.error(message);
+    }
+
+    public void error(String format, Object arg)
+    {
+        if (debug.errorEnabled())
+            debug.error(String.format(format, arg));
+    }
+
+    public void error(String format, Object arg1, Object arg2)
+    {
+        if (debug.errorEnabled())
+            debug.error(String.format(format, arg1, arg2));
+    }
+
+    public void error(String format, Object... args)
+    {
+        if (debug.errorEnabled())
+            debug.error(String.format(format, args));
+    }
+
+    /**
+     * Logs an error with its stack trace. Errors thrown from the same place with the same type only include the stack
+     * trace once per interval, together with the number of stack traces left out since.
+     * @param message   message
+     * @param t         error
+     */
+    public void error(String message, Throwable t)
+    {
+        if (!debug.errorEnabled())
+            return;
+
+        StackTraceElement[] trace = t.getStackTrace();
+        String key = t.getClass().getName() + (trace.length > 0 ? "@" + trace[0] : "");
+
+        if (stacks.size() > MAX_STACK_KEYS)
+            stacks.clear();
+
+        StackSample sample = stacks.computeIfAbsent(key, k -> new StackSample());
+        long now = System.currentTimeMillis();
+        long last = sample.lastLogged.get();
+
+        if (now - last >= STACK_INTERVAL && sample.lastLogged.compareAndSet(last, now))
+        {
+            long suppressed = sample.suppressed.getAndSet(0);
+            debug.error(suppressed == 0 ? message : message + " (" + suppressed + " similar stack traces suppressed)", t);
+        }
+        else
+        {
+            sample.suppressed.incrementAndGet();
+            debug.error(message + ": " + t);
+        }
+    }
+
+    private static final class StackSample
+    {
+        private final AtomicLong lastLogged = new AtomicLong(Long.MIN_VALUE / 2);
+        private final AtomicLong suppressed = new AtomicLong();
+    }
+}
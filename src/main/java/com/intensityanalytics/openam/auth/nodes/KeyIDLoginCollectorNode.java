@@ -19,9 +19,7 @@
 
 package com.intensityanalytics.openam.auth.nodes;
 
-import static org.forgerock.openam.auth.node.api.Action.send;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
-import static org.forgerock.openam.auth.node.api.SharedStateConstants.PASSWORD;
 import static com.intensityanalytics.openam.auth.nodes.Constants.*;
 
 import java.util.List;
@@ -32,11 +30,9 @@ import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.NameCallback;
 import javax.security.auth.callback.PasswordCallback;
 import com.google.inject.assistedinject.Assisted;
-import com.sun.identity.shared.debug.Debug;
 import com.sun.identity.authentication.callbacks.HiddenValueCallback;
 import com.sun.identity.authentication.callbacks.ScriptTextOutputCallback;
 import org.forgerock.guava.common.base.Strings;
-import org.forgerock.http.util.Json;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.node.api.*;
@@ -47,13 +43,12 @@ import org.forgerock.openam.core.CoreWrapper;
  */
 @Node.Metadata(outcomeProvider = SingleOutcomeNode.OutcomeProvider.class,
 configClass = KeyIDLoginCollectorNode.Config.class)
-public class KeyIDLoginCollectorNode extends SingleOutcomeNode
+public class KeyIDLoginCollectorNode extends KeyIDCollectorNode
 {
     private final Config config;
     private final CoreWrapper coreWrapper;
     private static final String BUNDLE = "com/intensityanalytics/openam/auth/nodes/KeyIDLoginCollectorNode";
     private final static String DEBUG_FILE = "KeyIDLoginCollectorNode";
-    protected Debug debug = Debug.getInstance(DEBUG_FILE);
 
     interface Config
     {
@@ -62,6 +57,24 @@ public class KeyIDLoginCollectorNode extends SingleOutcomeNode
         {
             return "";
         }
+
+        @Attribute(order = 200)
+        default Boolean serverSideTsData()
+        {
+            return false;
+        }
+
+        @Attribute(order = 300)
+        default String loaderScript()
+        {
+            return "";
+        }
+
+        @Attribute(order = 400)
+        default Boolean compactTsData()
+        {
+            return false;
+        }
     }
 
     /**
@@ -73,6 +86,8 @@ public class KeyIDLoginCollectorNode extends SingleOutcomeNode
     @Inject
     public KeyIDLoginCollectorNode(@Assisted KeyIDLoginCollectorNode.Config config, CoreWrapper coreWrapper) throws NodeProcessException
     {
+        super("Login", DEBUG_FILE, BUNDLE, config.library(), config.loaderScript(), config.serverSideTsData(),
+              config.compactTsData());
         debug.message( "KeyIDLoginCollectorNode() called");
         this.config = config;
         this.coreWrapper = coreWrapper;
@@ -82,49 +97,27 @@ public class KeyIDLoginCollectorNode extends SingleOutcomeNode
     public Action process(TreeContext context)
     {
         debug.message("KeyIDLoginCollectorNode.process() called");
-        JsonValue sharedState = context.sharedState.copy();
-        JsonValue transientState = context.transientState.copy();
+        return super.process(context);
+    }
 
+    @Override
+    protected void collectUsername(TreeContext context, JsonValue sharedState)
+    {
         context.getCallback(NameCallback.class)
         .map(NameCallback::getName)
         .filter(name -> !Strings.isNullOrEmpty(name))
         .map(name -> sharedState.put(USERNAME, name));
-
-        context.getCallback(PasswordCallback.class)
-        .map(PasswordCallback::getPassword)
-        .map(String::new)
-        .filter(password -> !Strings.isNullOrEmpty(password))
-        .map(password -> transientState.put(PASSWORD, password));
-
-        context.getCallback(HiddenValueCallback.class)
-        .map(HiddenValueCallback::getValue)
-        .filter(tsData -> !Strings.isNullOrEmpty(tsData))
-        .map(tsData -> sharedState.put(TSDATA, tsData));
-
-        if (transientState.get(PASSWORD).isNotNull() &&
-            sharedState.get(USERNAME).isNotNull() &&
-            sharedState.get(TSDATA).isNotNull())
-        {
-            debug.warning(String.format("Login submitted for user %s", sharedState.get(USERNAME)));
-            debug.message(String.format("KeyID tsData: %s", sharedState.get(TSDATA)));
-            return goToNext().replaceSharedState(sharedState).replaceTransientState(transientState).build();
-        }
-        else
-        {
-            return collectUsernamePasswordData(context);
-        }
     }
 
-    private Action collectUsernamePasswordData(TreeContext context)
+    @Override
+    protected List<Callback> createCallbacks(ResourceBundle prompts, String script)
     {
-        debug.message("KeyIDLoginCollectorNode.collectUsernamePasswordData() called");
-        ResourceBundle bundle = context.request.locales.getBundleInPreferredLocale(BUNDLE, getClass().getClassLoader());
+        debug.message("KeyIDLoginCollectorNode.createCallbacks() called");
         List<Callback> callBackList = new ArrayList<>();
-        callBackList.add(new NameCallback(bundle.getString("callback.username")));
-        callBackList.add(new PasswordCallback(bundle.getString("callback.password"), false));
-        callBackList.add(new ScriptTextOutputCallback(String.format(KEYIDSCRIPT, config.library())));
+        callBackList.add(new NameCallback(prompts.getString("callback.username")));
+        callBackList.add(new PasswordCallback(prompts.getString("callback.password"), false));
+        callBackList.add(new ScriptTextOutputCallback(script));
         callBackList.add(new HiddenValueCallback(TSDATA));
-
-        return send(callBackList).build();
+        return callBackList;
     }
 }
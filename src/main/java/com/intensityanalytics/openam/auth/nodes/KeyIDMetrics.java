@@ -0,0 +1,500 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.sun.identity.shared.debug.Debug;
+import com.sun.net.httpserver.HttpServer;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+import static com.intensityanalytics.openam.auth.nodes.Utility.daemonThreadFactory;
+
+/**
+ * Metrics for the KeyID nodes: remote call latency, outcomes, errors and the state of the background components.
+ *
+ * Metrics are exported through JMX and, when the {@value #PORT_PROPERTY} system property is set, as Prometheus text
+ * on http://localhost:&lt;port&gt;/metrics. Recording only updates counters and does not allocate.
+ */
+public final class KeyIDMetrics implements KeyIDMetricsMXBean
+{
+    public static final String PORT_PROPERTY = "com.intensityanalytics.keyid.metrics.port";
+    private static final String OBJECT_NAME = "com.intensityanalytics.keyid:type=KeyIDMetrics";
+    private final static String DEBUG_FILE = "KeyIDNode";
+    private static final Debug debug = Debug.getInstance(DEBUG_FILE);
+    private static final double[] LATENCY_BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+    private static final double[] SCORE_BOUNDS = {10, 20, 30, 40, 50, 60, 70, 80, 90, 100};
+    private static final String[] OUTCOMES = {"true", "false", "enroll", "invalid"};
+    private static final KeyIDMetrics INSTANCE = new KeyIDMetrics();
+
+    public enum ErrorType
+    {
+        TIMEOUT,
+        CIRCUIT_OPEN,
+        REJECTED,
+        SERVICE,
+        OTHER
+    }
+
+    private final Histogram loginLatency = new Histogram(LATENCY_BOUNDS);
+    private final Histogram removeProfileLatency = new Histogram(LATENCY_BOUNDS);
+    private final Histogram confidence = new Histogram(SCORE_BOUNDS);
+    private final Histogram fidelity = new Histogram(SCORE_BOUNDS);
+    private final AtomicInteger loginsInFlight = new AtomicInteger();
+    private final AtomicInteger removeProfilesInFlight = new AtomicInteger();
+    private final LongAdder[] outcomes = adders(OUTCOMES.length);
+    private final LongAdder[] errors = adders(ErrorType.values().length);
+    private final LongAdder grantOnError = new LongAdder();
+    private final LongAdder callbacksSent = new LongAdder();
+    private final LongAdder submissions = new LongAdder();
+    private final Map<String, KeyIDCircuitBreaker.State> breakers = new ConcurrentHashMap<>();
+    private boolean registered;
+
+    private KeyIDMetrics()
+    {
+        KeyIDCircuitBreaker.addListener((endpoint, from, to) -> breakers.put(endpoint, to));
+    }
+
+    public static KeyIDMetrics getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the JMX bean and starts the text endpoint if a port is configured. Subsequent calls do nothing.
+     */
+    public synchronized void register()
+    {
+        if (registered)
+            return;
+        registered = true;
+
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        }
+        catch (Exception e)
+        {
+            debug.error("Unable to register KeyID metrics with JMX: " + e.getMessage());
+        }
+
+        Integer port = Integer.getInteger(PORT_PROPERTY);
+
+        if (port != null)
+            startHttpEndpoint(port);
+    }
+
+    private void startHttpEndpoint(int port)
+    {
+        try
+        {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = getText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody())
+                {
+                    out.write(body);
+                }
+            });
+            server.createContext("/ready", exchange -> {
+                boolean ready = isReady();
+                byte[] body = (ready ? "ready\n" : "warming up\n").getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(ready ? 200 : 503, body.length);
+                try (OutputStream out = exchange.getResponseBody())
+                {
+                    out.write(body);
+                }
+            });
+            server.setExecutor(Executors.newSingleThreadExecutor(daemonThreadFactory("KeyIDMetrics")));
+            server.start();
+            debug.message("KeyID metrics available on localhost port " + port);
+        }
+        catch (Exception e)
+        {
+            debug.error(String.format("Unable to start KeyID metrics endpoint on port %d: %s", port, e.getMessage()));
+        }
+    }
+
+    void loginStarted()
+    {
+        loginsInFlight.incrementAndGet();
+    }
+
+    void loginFinished(long nanos)
+    {
+        loginsInFlight.decrementAndGet();
+        loginLatency.record(nanos / 1e6);
+    }
+
+    void removeProfileStarted()
+    {
+        removeProfilesInFlight.incrementAndGet();
+    }
+
+    void removeProfileFinished(long nanos)
+    {
+        removeProfilesInFlight.decrementAndGet();
+        removeProfileLatency.record(nanos / 1e6);
+    }
+
+    void recordScores(double confidenceValue, double fidelityValue)
+    {
+        confidence.record(confidenceValue);
+        fidelity.record(fidelityValue);
+    }
+
+    void recordOutcome(String outcome)
+    {
+        for (int i = 0; i < OUTCOMES.length; i++)
+        {
+            if (OUTCOMES[i].equals(outcome))
+            {
+                outcomes[i].increment();
+                return;
+            }
+        }
+    }
+
+    void recordError(Exception e)
+    {
+        ErrorType type;
+
+        if (e instanceof KeyIDTimeoutException)
+            type = ErrorType.TIMEOUT;
+        else if (e instanceof KeyIDCircuitOpenException)
+            type = ErrorType.CIRCUIT_OPEN;
+        else if (e instanceof RejectedExecutionException || e instanceof KeyIDBulkheadException)
+            type = ErrorType.REJECTED;
+        else if (e instanceof KeyIDServiceException)
+            type = ErrorType.SERVICE;
+        else
+            type = ErrorType.OTHER;
+
+        errors[type.ordinal()].increment();
+    }
+
+    void recordGrantOnError()
+    {
+        grantOnError.increment();
+    }
+
+    void recordCallbacksSent()
+    {
+        callbacksSent.increment();
+    }
+
+    void recordSubmission()
+    {
+        submissions.increment();
+    }
+
+    public long getErrors(ErrorType type)
+    {
+        return errors[type.ordinal()].sum();
+    }
+
+    @Override
+    public long getLoginCount()
+    {
+        return loginLatency.getCount();
+    }
+
+    @Override
+    public double getLoginLatencyP50()
+    {
+        return loginLatency.getPercentile(50);
+    }
+
+    @Override
+    public double getLoginLatencyP99()
+    {
+        return loginLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getRemoveProfileCount()
+    {
+        return removeProfileLatency.getCount();
+    }
+
+    @Override
+    public double getRemoveProfileLatencyP99()
+    {
+        return removeProfileLatency.getPercentile(99);
+    }
+
+    @Override
+    public int getLoginsInFlight()
+    {
+        return loginsInFlight.get();
+    }
+
+    @Override
+    public int getRemoveProfilesInFlight()
+    {
+        return removeProfilesInFlight.get();
+    }
+
+    @Override
+    public long getTrueOutcomes()
+    {
+        return outcomes[0].sum();
+    }
+
+    @Override
+    public long getFalseOutcomes()
+    {
+        return outcomes[1].sum();
+    }
+
+    @Override
+    public long getEnrollOutcomes()
+    {
+        return outcomes[2].sum();
+    }
+
+    @Override
+    public long getInvalidOutcomes()
+    {
+        return outcomes[3].sum();
+    }
+
+    @Override
+    public long getGrantOnError()
+    {
+        return grantOnError.sum();
+    }
+
+    @Override
+    public long getErrors()
+    {
+        long total = 0;
+
+        for (LongAdder adder : errors)
+            total += adder.sum();
+
+        return total;
+    }
+
+    @Override
+    public boolean isReady()
+    {
+        return KeyIDWarmup.getInstance().isReady();
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text format: each family is preceded by its own TYPE line, the samples of a
+     * family are contiguous, and label values are escaped.
+     */
+    @Override
+    public String getText()
+    {
+        StringBuilder out = new StringBuilder(8192);
+
+        type(out, "keyid_remote_latency_ms", "histogram");
+        loginLatency.writeTo(out, "keyid_remote_latency_ms", label("operation", "Login"));
+        removeProfileLatency.writeTo(out, "keyid_remote_latency_ms", label("operation", "RemoveProfile"));
+        type(out, "keyid_remote_in_flight", "gauge");
+        sample(out, "keyid_remote_in_flight", loginsInFlight.get(), "operation", "Login");
+        sample(out, "keyid_remote_in_flight", removeProfilesInFlight.get(), "operation", "RemoveProfile");
+
+        type(out, "keyid_confidence", "histogram");
+        confidence.writeTo(out, "keyid_confidence", "");
+        type(out, "keyid_fidelity", "histogram");
+        fidelity.writeTo(out, "keyid_fidelity", "");
+
+        type(out, "keyid_outcomes_total", "counter");
+        for (int i = 0; i < OUTCOMES.length; i++)
+            sample(out, "keyid_outcomes_total", outcomes[i].sum(), "outcome", OUTCOMES[i]);
+
+        type(out, "keyid_errors_total", "counter");
+        for (ErrorType type : ErrorType.values())
+            sample(out, "keyid_errors_total", errors[type.ordinal()].sum(), "type", type.name().toLowerCase());
+        type(out, "keyid_grant_on_error_total", "counter");
+        sample(out, "keyid_grant_on_error_total", grantOnError.sum());
+
+        type(out, "keyid_collector_total", "counter");
+        sample(out, "keyid_collector_total", callbacksSent.sum(), "event", "callbacks");
+        sample(out, "keyid_collector_total", submissions.sum(), "event", "submissions");
+
+        type(out, "keyid_circuit_breaker_open", "gauge");
+        for (Map.Entry<String, KeyIDCircuitBreaker.State> breaker : breakers.entrySet())
+        {
+            sample(out, "keyid_circuit_breaker_open", breaker.getValue() == KeyIDCircuitBreaker.State.CLOSED ? 0 : 1,
+                   "endpoint", breaker.getKey());
+        }
+        type(out, "keyid_circuit_breaker_state", "gauge");
+        for (Map.Entry<String, KeyIDCircuitBreaker.State> breaker : breakers.entrySet())
+        {
+            for (KeyIDCircuitBreaker.State state : KeyIDCircuitBreaker.State.values())
+            {
+                sample(out, "keyid_circuit_breaker_state", breaker.getValue() == state ? 1 : 0, "endpoint",
+                       breaker.getKey(), "state", state.name().toLowerCase());
+            }
+        }
+
+        KeyIDProfileResetQueue resets = KeyIDProfileResetQueue.getInstance();
+        type(out, "keyid_profile_resets_total", "counter");
+        sample(out, "keyid_profile_resets_total", resets.getCompleted(), "result", "completed");
+        sample(out, "keyid_profile_resets_total", resets.getFailed(), "result", "failed");
+        sample(out, "keyid_profile_resets_total", resets.getRejected(), "result", "rejected");
+        type(out, "keyid_profile_resets_pending", "gauge");
+        sample(out, "keyid_profile_resets_pending", resets.getPending());
+
+        KeyIDShadowEvaluator shadow = KeyIDShadowEvaluator.getInstance();
+        type(out, "keyid_shadow_evaluations_total", "counter");
+        sample(out, "keyid_shadow_evaluations_total", shadow.getEvaluated(), "result", "evaluated");
+        sample(out, "keyid_shadow_evaluations_total", shadow.getMatched(), "result", "matched");
+        sample(out, "keyid_shadow_evaluations_total", shadow.getErrors(), "result", "error");
+        sample(out, "keyid_shadow_evaluations_total", shadow.getDropped(), "result", "dropped");
+
+        KeyIDProfileCache cache = KeyIDProfileCache.getInstance();
+        type(out, "keyid_profile_cache_total", "counter");
+        sample(out, "keyid_profile_cache_total", cache.getHits(), "result", "hit");
+        sample(out, "keyid_profile_cache_total", cache.getMisses(), "result", "miss");
+        type(out, "keyid_profile_cache_entries", "gauge");
+        sample(out, "keyid_profile_cache_entries", cache.size());
+
+        KeyIDTrustWindow trust = KeyIDTrustWindow.getInstance();
+        type(out, "keyid_trust_window_total", "counter");
+        sample(out, "keyid_trust_window_total", trust.getHits(), "result", "hit");
+        sample(out, "keyid_trust_window_total", trust.getMisses(), "result", "miss");
+        sample(out, "keyid_trust_window_total", trust.getInvalidations(), "result", "invalidated");
+        type(out, "keyid_trust_window_entries", "gauge");
+        sample(out, "keyid_trust_window_entries", trust.size());
+
+        Collection<KeyIDRoutingBackend.Endpoint> endpoints = KeyIDRoutingBackend.getEndpoints();
+        long now = System.currentTimeMillis();
+        type(out, "keyid_endpoint_latency_estimate_ms", "gauge");
+        for (KeyIDRoutingBackend.Endpoint endpoint : endpoints)
+        {
+            sample(out, "keyid_endpoint_latency_estimate_ms", Math.round(endpoint.getLatencyEstimate()), "endpoint",
+                   endpoint.getUrl());
+        }
+        type(out, "keyid_endpoint_outstanding", "gauge");
+        for (KeyIDRoutingBackend.Endpoint endpoint : endpoints)
+            sample(out, "keyid_endpoint_outstanding", endpoint.getOutstanding(), "endpoint", endpoint.getUrl());
+        type(out, "keyid_endpoint_calls_total", "counter");
+        for (KeyIDRoutingBackend.Endpoint endpoint : endpoints)
+            sample(out, "keyid_endpoint_calls_total", endpoint.getCalls(), "endpoint", endpoint.getUrl());
+        type(out, "keyid_endpoint_failures_total", "counter");
+        for (KeyIDRoutingBackend.Endpoint endpoint : endpoints)
+            sample(out, "keyid_endpoint_failures_total", endpoint.getFailures(), "endpoint", endpoint.getUrl());
+        type(out, "keyid_endpoint_ejected", "gauge");
+        for (KeyIDRoutingBackend.Endpoint endpoint : endpoints)
+            sample(out, "keyid_endpoint_ejected", endpoint.isEjected(now) ? 1 : 0, "endpoint", endpoint.getUrl());
+
+        type(out, "keyid_adaptive_timeout_ms", "gauge");
+        for (KeyIDAdaptiveTimeout timeout : KeyIDAdaptiveTimeout.getAll())
+            sample(out, "keyid_adaptive_timeout_ms", timeout.getEffectiveTimeout(), "endpoint", timeout.getEndpoint());
+
+        KeyIDSingleFlight<?> evaluations = KeyIDNode.evaluations();
+        type(out, "keyid_coalesced_total", "counter");
+        sample(out, "keyid_coalesced_total", evaluations.getJoinedInFlight(), "state", "in_flight");
+
+        List<KeyIDBulkhead> bulkheads = new ArrayList<>();
+        bulkheads.add(KeyIDBulkhead.global());
+        bulkheads.addAll(KeyIDBulkhead.getRealms());
+        type(out, "keyid_bulkhead_rejected_total", "counter");
+        for (KeyIDBulkhead bulkhead : bulkheads)
+        {
+            for (KeyIDBulkhead.Rejection rejection : KeyIDBulkhead.Rejection.values())
+            {
+                sample(out, "keyid_bulkhead_rejected_total", bulkhead.getRejected(rejection), "bulkhead",
+                       bulkhead.getName(), "reason", rejection.name().toLowerCase());
+            }
+        }
+        type(out, "keyid_bulkhead_active", "gauge");
+        for (KeyIDBulkhead bulkhead : bulkheads)
+            sample(out, "keyid_bulkhead_active", bulkhead.getActive(), "bulkhead", bulkhead.getName());
+        type(out, "keyid_bulkhead_waiting", "gauge");
+        for (KeyIDBulkhead bulkhead : bulkheads)
+            sample(out, "keyid_bulkhead_waiting", bulkhead.getWaiting(), "bulkhead", bulkhead.getName());
+
+        type(out, "keyid_spool_total", "counter");
+        sample(out, "keyid_spool_total", KeyIDEnrollmentSpool.getAppended(), "event", "appended");
+        sample(out, "keyid_spool_total", KeyIDEnrollmentSpool.getDropped(), "event", "dropped");
+        sample(out, "keyid_spool_total", KeyIDEnrollmentSpool.getReplayed(), "event", "replayed");
+        sample(out, "keyid_spool_total", KeyIDEnrollmentSpool.getDiscarded(), "event", "discarded");
+        type(out, "keyid_spool_pending", "gauge");
+        sample(out, "keyid_spool_pending", KeyIDEnrollmentSpool.getPending());
+
+        type(out, "keyid_local_scores_total", "counter");
+        sample(out, "keyid_local_scores_total", KeyIDLocalScorers.getHits(), "result", "hit");
+        sample(out, "keyid_local_scores_total", KeyIDLocalScorers.getMisses(), "result", "miss");
+        sample(out, "keyid_local_scores_total", KeyIDLocalScorers.getErrors(), "result", "error");
+
+        type(out, "keyid_batches_total", "counter");
+        sample(out, "keyid_batches_total", KeyIDBatchingBackend.getBatches());
+        type(out, "keyid_batched_logins_total", "counter");
+        sample(out, "keyid_batched_logins_total", KeyIDBatchingBackend.getBatched());
+        type(out, "keyid_batch_fallbacks_total", "counter");
+        sample(out, "keyid_batch_fallbacks_total", KeyIDBatchingBackend.getFallbacks());
+
+        type(out, "keyid_ready", "gauge");
+        sample(out, "keyid_ready", isReady() ? 1 : 0);
+        type(out, "keyid_clients", "gauge");
+        sample(out, "keyid_clients", KeyIDClientRegistry.getInstance().size());
+        type(out, "keyid_events_dropped_total", "counter");
+        sample(out, "keyid_events_dropped_total", KeyIDEventLog.getInstance().getDropped());
+        type(out, "keyid_spans_exported_total", "counter");
+        sample(out, "keyid_spans_exported_total", KeyIDTracer.getInstance().getExported());
+        type(out, "keyid_spans_dropped_total", "counter");
+        sample(out, "keyid_spans_dropped_total", KeyIDTracer.getInstance().getDropped());
+        return out.toString();
+    }
+
+    private static void type(StringBuilder out, String name, String type)
+    {
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Writes a sample.
+     * @param labels    label names and values, alternating
+     */
+    private static void sample(StringBuilder out, String name, long value, String... labels)
+    {
+        out.append(name);
+
+        for (int i = 0; i < labels.length; i += 2)
+            out.append(i == 0 ? '{' : ',').append(label(labels[i], labels[i + 1]));
+
+        out.append(labels.length > 0 ? "} " : " ").append(value).append('\n');
+    }
+
+    /**
+     * Formats a label, escaping backslashes, double quotes and line feeds in its value.
+     */
+    static String label(String name, String value)
+    {
+        return name + "=\"" + String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") +
+               "\"";
+    }
+
+    private static LongAdder[] adders(int count)
+    {
+        LongAdder[] adders = new LongAdder[count];
+
+        for (int i = 0; i < count; i++)
+            adders[i] = new LongAdder();
+
+        return adders;
+    }
+}
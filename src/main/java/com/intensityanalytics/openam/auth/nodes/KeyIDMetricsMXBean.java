@@ -0,0 +1,47 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+/**
+ * JMX view of the KeyID node metrics.
+ */
+public interface KeyIDMetricsMXBean
+{
+    long getLoginCount();
+
+    double getLoginLatencyP50();
+
+    double getLoginLatencyP99();
+
+    long getRemoveProfileCount();
+
+    double getRemoveProfileLatencyP99();
+
+    int getLoginsInFlight();
+
+    int getRemoveProfilesInFlight();
+
+    long getTrueOutcomes();
+
+    long getFalseOutcomes();
+
+    long getEnrollOutcomes();
+
+    long getInvalidOutcomes();
+
+    long getGrantOnError();
+
+    long getErrors();
+
+    /**
+     * Whether startup warm-up has completed.
+     */
+    boolean isReady();
+
+    /**
+     * All metrics in the Prometheus text exposition format.
+     */
+    String getText();
+}
@@ -20,21 +20,29 @@
 package com.intensityanalytics.openam.auth.nodes;
 
 import com.google.inject.assistedinject.Assisted;
-import com.sun.identity.shared.debug.Debug;
+import com.iplanet.am.util.SystemProperties;
+import com.iplanet.sso.SSOException;
+import com.iplanet.sso.SSOToken;
+import com.iplanet.sso.SSOTokenManager;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.node.api.*;
 import org.forgerock.openam.core.CoreWrapper;
 import org.forgerock.guava.common.collect.ImmutableList;
 import javax.inject.Inject;
-import com.intensityanalytics.keyid.*;
 import com.google.gson.JsonObject;
 import org.forgerock.util.i18n.PreferredLocales;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ResourceBundle;
+import static com.intensityanalytics.openam.auth.nodes.Constants.SUBMITTED;
+import static com.intensityanalytics.openam.auth.nodes.Constants.TRACE;
+import static com.intensityanalytics.openam.auth.nodes.Constants.TRUST;
 import static com.intensityanalytics.openam.auth.nodes.Constants.TSDATA;
-import static com.intensityanalytics.openam.auth.nodes.Utility.*;
+import static com.intensityanalytics.openam.auth.nodes.Constants.TSDATA_HANDLE;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.PASSWORD;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
 
 /**
@@ -44,15 +52,20 @@ import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
 configClass = KeyIDNode.Config.class)
 public class KeyIDNode extends AbstractDecisionNode
 {
-    private KeyIDSettings settings;
-    private KeyIDClient client;
+    private final KeyIDBackend client;
+    private final KeyIDCircuitBreaker breaker;
+    private final KeyIDAdaptiveTimeout adaptiveTimeout;
+    private final KeyIDEnrollmentSpool spool;
     private final Config config;
     private final CoreWrapper coreWrapper;
     private final static String DEBUG_FILE = "KeyIDNode";
-    private Debug debug = Debug.getInstance(DEBUG_FILE);
+    private static final KeyIDLog debug = KeyIDLog.getInstance(DEBUG_FILE);
+    private static final String COOKIE_NAME_PROPERTY = "com.iplanet.am.cookie.name";
     private final static String TRUE_OUTCOME = "true";
     private final static String FALSE_OUTCOME = "false";
     private final static String ENROLL_OUTCOME = "enroll";
+    private final static String INVALID_OUTCOME = "invalid";
+    private static final KeyIDSingleFlight<Evaluation> EVALUATIONS = new KeyIDSingleFlight<>();
 
     /**
      * Configuration for the node.
@@ -89,6 +102,12 @@ public class KeyIDNode extends AbstractDecisionNode
             return ValidationEnrollmentMode.ACTIVE_ACTIVE;
         }
 
+        @Attribute(order = 600)
+        default Boolean shadowEvaluation()
+        {
+            return false;
+        }
+
         @Attribute(order = 800)
         default Boolean customThreshold()
         {
@@ -112,6 +131,192 @@ public class KeyIDNode extends AbstractDecisionNode
         {
             return false;
         }
+
+        @Attribute(order = 1200)
+        default Boolean circuitBreaker()
+        {
+            return false;
+        }
+
+        @Attribute(order = 1300)
+        default Integer breakerFailureRate()
+        {
+            return 50;
+        }
+
+        @Attribute(order = 1400)
+        default Integer breakerSlowCallDuration()
+        {
+            return 2000;
+        }
+
+        @Attribute(order = 1500)
+        default Integer breakerSlowCallRate()
+        {
+            return 80;
+        }
+
+        @Attribute(order = 1600)
+        default Integer breakerWindowSize()
+        {
+            return 20;
+        }
+
+        @Attribute(order = 1700)
+        default Integer breakerOpenDuration()
+        {
+            return 30000;
+        }
+
+        @Attribute(order = 1800)
+        default Integer breakerHalfOpenCalls()
+        {
+            return 3;
+        }
+
+        @Attribute(order = 1900)
+        default Boolean validateTsData()
+        {
+            return false;
+        }
+
+        @Attribute(order = 2000)
+        default Integer tsDataMaxLength()
+        {
+            return 65536;
+        }
+
+        @Attribute(order = 2100)
+        default Integer tsDataMinEvents()
+        {
+            return 10;
+        }
+
+        @Attribute(order = 2200)
+        default Integer replayWindow()
+        {
+            return 300;
+        }
+
+        @Attribute(order = 2300)
+        default Boolean profileCache()
+        {
+            return false;
+        }
+
+        @Attribute(order = 2400)
+        default Integer profileCacheTtl()
+        {
+            return 60;
+        }
+
+        @Attribute(order = 2500)
+        default Integer hedgeDelay()
+        {
+            return 0;
+        }
+
+        @Attribute(order = 2600)
+        default Boolean coalesce()
+        {
+            return false;
+        }
+
+        @Attribute(order = 2800)
+        default Boolean adaptiveTimeout()
+        {
+            return false;
+        }
+
+        @Attribute(order = 2900)
+        default Integer adaptiveTimeoutPercentile()
+        {
+            return 99;
+        }
+
+        @Attribute(order = 3000)
+        default Integer adaptiveTimeoutMultiplier()
+        {
+            return 200;
+        }
+
+        @Attribute(order = 3100)
+        default Integer adaptiveTimeoutFloor()
+        {
+            return 250;
+        }
+
+        @Attribute(order = 3200)
+        default String batchUrl()
+        {
+            return "";
+        }
+
+        @Attribute(order = 3300)
+        default Integer batchDelay()
+        {
+            return 5;
+        }
+
+        @Attribute(order = 3400)
+        default Integer batchSize()
+        {
+            return 32;
+        }
+
+        @Attribute(order = 3500)
+        default Boolean bulkhead()
+        {
+            return false;
+        }
+
+        @Attribute(order = 3600)
+        default Integer bulkheadMaxConcurrent()
+        {
+            return 50;
+        }
+
+        @Attribute(order = 3700)
+        default Integer bulkheadMaxWaiting()
+        {
+            return 50;
+        }
+
+        @Attribute(order = 3800)
+        default Integer rateLimit()
+        {
+            return 0;
+        }
+
+        @Attribute(order = 3900)
+        default Integer rateLimitBurst()
+        {
+            return 20;
+        }
+
+        @Attribute(order = 4000)
+        default Boolean enrollmentSpool()
+        {
+            return false;
+        }
+
+        @Attribute(order = 4300)
+        default Boolean trustWindow()
+        {
+            return false;
+        }
+
+        @Attribute(order = 4400)
+        default Integer trustWindowDuration()
+        {
+            return 300;
+        }
+
+        @Attribute(order = 4500)
+        default Integer trustWindowConfidence()
+        {
+            return 80;
+        }
     }
 
     /**
@@ -126,8 +331,20 @@ public class KeyIDNode extends AbstractDecisionNode
         debug.message("KeyIDNode() called");
         this.config = config;
         this.coreWrapper = coreWrapper;
-        settings = createSettings();
-        client = new KeyIDClient(settings);
+        client = acquireClient();
+
+        // with several endpoints, the routing client keeps a breaker for each of them
+        List<String> endpoints = KeyIDRoutingBackend.parseEndpoints(config.url());
+        breaker = config.circuitBreaker() && endpoints.size() == 1
+                  ? KeyIDCircuitBreaker.forEndpoint(endpoints.get(0), createBreakerSettings())
+                  : null;
+        adaptiveTimeout = config.adaptiveTimeout() ? KeyIDAdaptiveTimeout.forEndpoint(config.url()) : null;
+
+        // opening the spool resumes replaying samples spooled before a restart
+        spool = config.enrollmentSpool() && loginEnrollment()
+                ? KeyIDEnrollmentSpool.forClient(config.url(), config.authKey(), this::acquireClient, breaker,
+                                                 config.timeout())
+                : null;
     }
 
     /**
@@ -137,124 +354,661 @@ public class KeyIDNode extends AbstractDecisionNode
     public Action process(TreeContext context) throws NodeProcessException
     {
         debug.message("KeyIDNode.process() called");
+        long start = System.nanoTime();
+        String username = null;
+        String tsData = null;
+        Evaluation evaluation;
         JsonValue sharedState = context.sharedState.copy();
         JsonValue transientState = context.transientState.copy();
         transientState.remove(PASSWORD);
+        long deadline = deadline(transientState);
+        long fingerprint = config.trustWindow() ? fingerprint(context) : 0;
+        String trustToken = config.trustWindow() ? trustToken(context) : null;
+        String trust = null;
+        KeyIDTracer.Span span = startSpan(sharedState);
 
         try
         {
-            String username = sharedState.get(USERNAME).asString();
-            String tsData = sharedState.get(TSDATA).asString();
-            JsonObject loginResult = keyIDLogin(username, tsData);
+            username = sharedState.get(USERNAME).asString();
+            String realm = sharedState.get(REALM).isNull() ? "/" : sharedState.get(REALM).asString();
+            tsData = resolveTsData(sharedState);
+            String user = username;
+            String sample = tsData;
+            evaluation = config.coalesce()
+                         ? EVALUATIONS.execute(client, Arrays.asList(config.validationEnrollmentMode(), fingerprint,
+                                                                     trustToken),
+                                               username, tsData, deadline,
+                                               () -> evaluate(user, realm, sample, fingerprint, trustToken, deadline,
+                                                              span))
+                         : evaluate(username, realm, tsData, fingerprint, trustToken, deadline, span);
+
+            trust = config.trustWindow() ? trust(evaluation, username, fingerprint, trustToken) : null;
 
-            // handle active enrollment
-            if (config.validationEnrollmentMode() == ValidationEnrollmentMode.ACTIVE_ACTIVE &&
-                !loginResult.get("IsReady").getAsBoolean())
+            if (trust != null)
+                sharedState.put(TRUST, trust);
+        }
+        catch (Exception e)
+        {
+            span.setError(e)
+            .setAttribute("keyid.timed_out", e instanceof KeyIDTimeoutException)
+            .setAttribute("keyid.rejected", e instanceof KeyIDCircuitOpenException ||
+                                            e instanceof KeyIDBulkheadException);
+
+            if (e instanceof KeyIDCircuitOpenException || e instanceof KeyIDBulkheadException)
+                debug.warning(e.getMessage());
+            else
+                debug.error("KeyID evaluation failed", e);
+
+            KeyIDMetrics.getInstance().recordError(e);
+
+            if(config.grantOnError())
             {
-                return Action.goTo(ENROLL_OUTCOME).replaceSharedState(sharedState).replaceTransientState
-                (transientState).build();
+                debug.error("Access grant on error");
+                KeyIDMetrics.getInstance().recordGrantOnError();
+                return outcome(TRUE_OUTCOME, username, null, null, start, span, sharedState, transientState);
+            }
+            else
+            {
+                span.setAttribute("keyid.outcome", "error").end();
+                throw new NodeProcessException("An error occured, please try again.");
             }
+        }
+
+        return outcome(evaluation.outcome, username, evaluation.result, trust, start, span, sharedState,
+                       transientState);
+    }
 
-            // handle successful match and whether passive validation is enabled
-            if (loginResult.get("Match").getAsBoolean() ||
-                config.validationEnrollmentMode() == ValidationEnrollmentMode.PASSIVE_NONE ||
-                config.validationEnrollmentMode() == ValidationEnrollmentMode.PASSIVE_PASSIVE)
+    /**
+     * Starts the evaluation span, in the trace of the collector or in a new trace if there is none.
+     * @param sharedState   shared state
+     * @return              evaluation span
+     */
+    private KeyIDTracer.Span startSpan(JsonValue sharedState)
+    {
+        KeyIDTracer tracer = KeyIDTracer.getInstance();
+        String traceId = sharedState.get(TRACE).isNull() ? tracer.startTrace() : sharedState.get(TRACE).asString();
+        KeyIDTracer.Span span = tracer.start(traceId, "keyid.evaluate");
+
+        if (span.isRecording())
+        {
+            span.setAttribute("keyid.mode", config.validationEnrollmentMode().name())
+            .setAttribute("keyid.coalesce", config.coalesce());
+            if (breaker != null)
+                span.setAttribute("keyid.breaker.state", breaker.getState().name());
+        }
+
+        return span;
+    }
+
+    /**
+     * Evaluates a login, from validating the tsData to routing on the KeyID result.
+     * @param username      username
+     * @param realm         realm
+     * @param tsData        tsData
+     * @param fingerprint   fingerprint of the request headers, if the trust window is enabled
+     * @param trustToken    trust token of an earlier match in the journey or session, or null
+     * @param deadline      time in epoch milliseconds by which the result is needed
+     * @param span          evaluation span
+     * @return              outcome and the KeyID login result it is based on
+     * @throws Exception if the evaluation fails
+     */
+    private Evaluation evaluate(String username, String realm, String tsData, long fingerprint, String trustToken,
+                                long deadline, KeyIDTracer.Span span) throws Exception
+    {
+        if (config.validateTsData())
+        {
+            KeyIDTracer.Span validate = span.child("keyid.validate");
+            TsDataValidator.Result validation = TsDataValidator.getInstance()
+            .validate(username, tsData, config.tsDataMaxLength(), config.tsDataMinEvents(),
+                      config.replayWindow() * 1000L);
+            validate.setAttribute("keyid.validation", validation.name()).end();
+
+            if (validation != TsDataValidator.Result.VALID)
             {
-                String msg = String.format("KeyID behavior match %b, validation / enrollment mode %s",
-                                           loginResult.get("Match").getAsBoolean(),
-                                           config.validationEnrollmentMode().toString());
-                debug.warning(msg);
+                debug.warning("KeyID tsData for user %s rejected: %s", username, validation);
+                return new Evaluation(INVALID_OUTCOME, null);
+            }
+        }
 
-                if (config.resetProfile())
-                    keyIDResetProfile(username, tsData);
+        // passive validation always succeeds, so the evaluation need not hold up the login
+        if (config.shadowEvaluation() && isPassiveValidation())
+        {
+            debug.warning("KeyID shadow evaluation queued for user %s, validation / enrollment mode %s",
+                          username, config.validationEnrollmentMode());
+            if (!KeyIDShadowEvaluator.getInstance().submit(client, breaker, config.timeout(), config.resetProfile(),
+                                                           spool, username, tsData))
+                spool(username, tsData);
+            span.setAttribute("keyid.shadow", true);
+            return new Evaluation(TRUE_OUTCOME, null);
+        }
 
-                return Action.goTo(TRUE_OUTCOME).replaceSharedState(sharedState).replaceTransientState
-                (transientState).build();
+        // users known not to be ready are enrolled without waiting for the evaluation
+        if (config.profileCache() && config.validationEnrollmentMode() == ValidationEnrollmentMode.ACTIVE_ACTIVE)
+        {
+            KeyIDProfileCache.ProfileStatus status = KeyIDProfileCache.getInstance()
+            .get(client, username, config.profileCacheTtl() * 1000L);
+
+            if (status != null && !status.isReady() &&
+                KeyIDShadowEvaluator.getInstance().submit(client, breaker, config.timeout(), false, spool, username,
+                                                          tsData))
+            {
+                debug.warning("KeyID profile for user %s not ready with %d samples, enrolling in the background",
+                              username, status.getProfiles());
+                span.setAttribute("keyid.shadow", true);
+                return new Evaluation(ENROLL_OUTCOME, null);
             }
         }
-        catch (Exception e)
+
+        // a user who matched moments ago in this journey or session from the same device, for example before a
+        // step-up, is not evaluated again
+        if (config.trustWindow() && !isPassiveValidation() && trustToken != null &&
+            KeyIDTrustWindow.getInstance().isTrusted(client, username,
+                                                     KeyIDTrustWindow.fingerprint(trustToken, fingerprint),
+                                                     config.trustWindowDuration() * 1000L,
+                                                     config.trustWindowConfidence()))
         {
-            debug.error("Exception: " + exceptionAsString(e));
+            debug.warning("KeyID login for user %s trusted from a recent match on the same device", username);
+            span.setAttribute("keyid.trusted", true);
+            enrollInBackground(username, tsData);
+            return new Evaluation(TRUE_OUTCOME, null, true);
+        }
 
-            if(config.grantOnError())
+        JsonObject loginResult = KeyIDLocalScorers.getScorer() != null ? localLogin(username, tsData, span) : null;
+
+        if (loginResult == null)
+        {
+            try
             {
-                debug.error("Access grant on error");
-                return Action.goTo(TRUE_OUTCOME).replaceSharedState(sharedState).replaceTransientState
-                (transientState).build();
+                loginResult = keyIDLogin(username, realm, tsData, deadline, span);
             }
-            else
-                throw new NodeProcessException("An error occured, please try again.");
+            catch (Exception e)
+            {
+                // spooled here rather than by each login sharing this evaluation
+                if (KeyIDEnrollmentSpool.isUnsent(e))
+                    spool(username, tsData);
+                throw e;
+            }
+        }
+
+        // handle active enrollment
+        if (config.validationEnrollmentMode() == ValidationEnrollmentMode.ACTIVE_ACTIVE &&
+            !loginResult.get("IsReady").getAsBoolean())
+        {
+            return new Evaluation(ENROLL_OUTCOME, loginResult);
+        }
+
+        // handle successful match and whether passive validation is enabled
+        if (loginResult.get("Match").getAsBoolean() || isPassiveValidation())
+        {
+            debug.warning("KeyID behavior match %b, validation / enrollment mode %s",
+                          loginResult.get("Match").getAsBoolean(), config.validationEnrollmentMode());
+
+            if (config.resetProfile())
+                keyIDResetProfile(username, tsData, span);
+
+            return new Evaluation(TRUE_OUTCOME, loginResult);
         }
 
         // default case is to return failure, rely on default login failed error message
         debug.warning("KeyID behavior match failure");
-        return Action.goTo(FALSE_OUTCOME).replaceSharedState(sharedState).replaceTransientState(transientState)
-        .build();
+        KeyIDTrustWindow.getInstance().invalidate(client, username);
+        return new Evaluation(FALSE_OUTCOME, loginResult);
+    }
+
+    /**
+     * Issues or renews the trust token of a login that matched and records the match in the trust window. Every
+     * journey sharing a coalesced evaluation gets a token of its own.
+     * @param evaluation    evaluation of the login
+     * @param username      username
+     * @param fingerprint   fingerprint of the request headers
+     * @param trustToken    trust token of an earlier match in the journey or session, or null
+     * @return              trust token to keep in the journey and the session, or null if the login did not match
+     */
+    private String trust(Evaluation evaluation, String username, long fingerprint, String trustToken)
+    {
+        if (evaluation.trusted)
+            return trustToken;
+
+        JsonObject result = evaluation.result;
+
+        if (!TRUE_OUTCOME.equals(evaluation.outcome) || result == null || !result.get("Match").getAsBoolean())
+            return null;
+
+        String token = trustToken != null ? trustToken : KeyIDTrustWindow.newToken();
+        KeyIDTrustWindow.getInstance().record(client, username, KeyIDTrustWindow.fingerprint(token, fingerprint),
+                                              result.get("Confidence").getAsDouble());
+        return token;
+    }
+
+    /**
+     * Builds the action for an outcome, counts the outcome and records the evaluation event.
+     * @param outcome           outcome
+     * @param username          username
+     * @param result            KeyID login result, or null if there was none
+     * @param trust             trust token to keep in the session, or null
+     * @param start             System.nanoTime() when the evaluation started
+     * @param span              evaluation span, ended with the outcome
+     * @param sharedState       shared state
+     * @param transientState    transient state
+     * @return                  action
+     */
+    private Action outcome(String outcome, String username, JsonObject result, String trust, long start,
+                           KeyIDTracer.Span span, JsonValue sharedState, JsonValue transientState)
+    {
+        double confidence = result == null ? Double.NaN : result.get("Confidence").getAsDouble();
+        double fidelity = result == null ? Double.NaN : result.get("Fidelity").getAsDouble();
+        KeyIDMetrics.getInstance().recordOutcome(outcome);
+        KeyIDEventLog.getInstance().evaluation(username, outcome, System.nanoTime() - start, confidence, fidelity);
+
+        span.setAttribute("keyid.outcome", outcome);
+        if (result != null)
+        {
+            span.setAttribute("keyid.confidence", confidence)
+            .setAttribute("keyid.fidelity", fidelity)
+            .setAttribute("keyid.match", result.get("Match").getAsBoolean())
+            .setAttribute("keyid.ready", result.get("IsReady").getAsBoolean());
+        }
+        span.end();
+
+        Action.ActionBuilder action = Action.goTo(outcome).replaceSharedState(sharedState)
+                                      .replaceTransientState(transientState);
+
+        if (trust != null)
+            action.putSessionProperty(TRUST, trust);
+
+        return action.build();
     }
 
     /**
      * Executes the KeyID login process and checks the result for errors.
      * @param username  username
+     * @param realm     realm
      * @param tsData    tsData
+     * @param deadline  time in epoch milliseconds by which the result is needed
+     * @param parent    evaluation span
      * @return          KeyID login result.
      * @throws Exception
      */
-    private JsonObject keyIDLogin(String username, String tsData) throws Exception
+    private JsonObject keyIDLogin(String username, String realm, String tsData, long deadline,
+                                  KeyIDTracer.Span parent) throws Exception
     {
-        debug.warning(String.format("KeyID evaluation started for user %s", username));
-        debug.message(String.format("KeyID tsData: %s", tsData));
+        debug.warning("KeyID evaluation started for user %s", username);
 
-        JsonObject result = client.Login(username, tsData, "").get();
+        KeyIDBulkhead realmBulkhead = config.bulkhead() ? KeyIDBulkhead.forRealm(realm, createBulkheadSettings())
+                                                        : null;
+        KeyIDBulkhead globalBulkhead = KeyIDBulkhead.global().isEnabled() ? KeyIDBulkhead.global() : null;
+        KeyIDTracer.Span span = parent.child("keyid.login");
+        JsonObject result;
+
+        try
+        {
+            if (realmBulkhead != null)
+                realmBulkhead.acquire(deadline);
+
+            try
+            {
+                if (globalBulkhead != null)
+                    globalBulkhead.acquire(deadline);
+
+                try
+                {
+                    result = remoteLogin(username, tsData, deadline, span);
+                }
+                finally
+                {
+                    if (globalBulkhead != null)
+                        globalBulkhead.release();
+                }
+            }
+            finally
+            {
+                if (realmBulkhead != null)
+                    realmBulkhead.release();
+            }
+        }
+        catch (Exception e)
+        {
+            span.setError(e).end();
+            throw e;
+        }
+
+        span.end();
 
         if (!result.get("Error").getAsString().isEmpty())
-            throw new NodeProcessException("KeyID Error: " + result.get("Error").getAsString());
-
-        debug.message(String.format("KeyID behavior statistics: Match=%b, Confidence=%f, Fidelity=%f, Profiles=%d, IsReady=%b",
-                                    result.get("Match").getAsBoolean(),
-                                    result.get("Confidence").getAsDouble(),
-                                    result.get("Fidelity").getAsDouble(),
-                                    result.get("Profiles").getAsInt(),
-                                    result.get("IsReady").getAsBoolean()));
+            throw new KeyIDServiceException("KeyID Error: " + result.get("Error").getAsString());
+
+        KeyIDProfileCache.getInstance().update(client, username, result.get("IsReady").getAsBoolean(),
+                                               result.get("Profiles").getAsInt());
+        KeyIDMetrics.getInstance().recordScores(result.get("Confidence").getAsDouble(),
+                                                result.get("Fidelity").getAsDouble());
+
+        if (debug.messageEnabled())
+        {
+            debug.message("KeyID behavior statistics: Match=%b, Confidence=%f, Fidelity=%f, Profiles=%d, IsReady=%b",
+                          result.get("Match").getAsBoolean(),
+                          result.get("Confidence").getAsDouble(),
+                          result.get("Fidelity").getAsDouble(),
+                          result.get("Profiles").getAsInt(),
+                          result.get("IsReady").getAsBoolean());
+        }
         return result;
     }
 
     /**
-     * Resets a KeyID profile
+     * Scores the login with the installed local scorer, enrolling the sample with the web service in the background.
      * @param username  username
      * @param tsData    tsData
-     * @throws Exception
+     * @param parent    evaluation span
+     * @return          KeyID login result, or null if the login must be evaluated by the web service
+     */
+    private JsonObject localLogin(String username, String tsData, KeyIDTracer.Span parent)
+    {
+        KeyIDTracer.Span span = parent.child("keyid.localScore");
+        JsonObject result = KeyIDLocalScorers.login(config.url(), username, tsData,
+                                                    new KeyIDLocalScorer.Thresholds(config.customThreshold(),
+                                                                                    config.thresholdConfidence(),
+                                                                                    config.thresholdFidelity()),
+                                                    KeyIDLocalScorers.getMaxAge());
+        span.setAttribute("keyid.local.hit", result != null).end();
+
+        if (result == null)
+            return null;
+
+        debug.warning("KeyID login for user %s scored locally", username);
+
+        // the web service still enrolls the sample, which also refreshes the replicated profile
+        enrollInBackground(username, tsData);
+
+        KeyIDMetrics.getInstance().recordScores(result.get("Confidence").getAsDouble(),
+                                                result.get("Fidelity").getAsDouble());
+        return result;
+    }
+
+    /**
+     * Enrolls the sample of a login the web service did not evaluate in the background, if the node enrolls samples.
+     * @param username  username
+     * @param tsData    tsData
+     */
+    private void enrollInBackground(String username, String tsData)
+    {
+        if (loginEnrollment() &&
+            !KeyIDShadowEvaluator.getInstance().submit(client, breaker, config.timeout(), false, spool, username,
+                                                       tsData))
+            spool(username, tsData);
+    }
+
+    /**
+     * Spools the sample of a login whose enrollment did not reach KeyID, if the node enrolls samples into a spool.
+     * @param username  username
+     * @param tsData    tsData
+     */
+    private void spool(String username, String tsData)
+    {
+        if (spool != null && spool.append(username, tsData))
+            debug.warning("KeyID enrollment sample for %s spooled", username);
+    }
+
+    /**
+     * Calls KeyID Login through the gateway, within the adaptive timeout if it is enabled.
+     * @param username  username
+     * @param tsData    tsData
+     * @param deadline  time in epoch milliseconds by which the result is needed
+     * @param span      login span
+     * @return          KeyID login result
+     * @throws Exception if the call fails or misses the deadline
+     */
+    private JsonObject remoteLogin(String username, String tsData, long deadline, KeyIDTracer.Span span)
+        throws Exception
+    {
+        long start = System.currentTimeMillis();
+        long timeout = config.timeout();
+        span.setAttribute("keyid.queued_ms", start - span.getStartMillis());
+
+        if (adaptiveTimeout != null)
+        {
+            timeout = adaptiveTimeout.timeout(config.adaptiveTimeoutPercentile(),
+                                              config.adaptiveTimeoutMultiplier() / 100.0,
+                                              config.adaptiveTimeoutFloor(),
+                                              config.timeout());
+            deadline = Math.min(deadline, start + timeout);
+            span.setAttribute("keyid.adaptive_timeout_ms", timeout);
+        }
+
+        span.setAttribute("keyid.timeout_ms", deadline - start);
+
+        JsonObject result;
+
+        try
+        {
+            result = KeyIDGateway.getInstance().login(client, breaker, username, tsData, deadline);
+        }
+        catch (KeyIDTimeoutException e)
+        {
+            // the latency of a call that timed out is at least the timeout, however early the deadline cut it off
+            if (adaptiveTimeout != null && e.isCalled())
+                adaptiveTimeout.record(timeout);
+            throw e;
+        }
+
+        if (adaptiveTimeout != null)
+            adaptiveTimeout.record(System.currentTimeMillis() - start);
+
+        return result;
+    }
+
+    /**
+     * Queues a KeyID profile reset following a match, the reset completes in the background. The trust the match
+     * recorded is kept.
+     * @param username  username
+     * @param tsData    tsData
+     * @param parent    evaluation span
+     */
+    private void keyIDResetProfile(String username, String tsData, KeyIDTracer.Span parent)
+    {
+        debug.warning("Resetting KeyID profile for %s", username);
+        KeyIDTracer.Span span = parent.child("keyid.removeProfile");
+        KeyIDProfileCache.getInstance().invalidate(client, username);
+        boolean queued = KeyIDProfileResetQueue.getInstance().submit(client, breaker, config.timeout(), username,
+                                                                    tsData, false);
+        span.setAttribute("keyid.queued", queued).end();
+    }
+
+    /**
+     * Reads the trust token of an earlier match from the shared state of the journey, or from the AM session the
+     * request already holds, for example when the user steps up.
+     * @param context   tree context
+     * @return          trust token, or null if there is none
+     */
+    private static String trustToken(TreeContext context)
+    {
+        if (context.sharedState.isDefined(TRUST))
+            return context.sharedState.get(TRUST).asString();
+
+        String cookie = SystemProperties.get(COOKIE_NAME_PROPERTY, "iPlanetDirectoryPro");
+        String tokenId = context.request.cookies == null ? null : context.request.cookies.get(cookie);
+
+        if (tokenId == null || tokenId.isEmpty())
+            return null;
+
+        try
+        {
+            SSOTokenManager manager = SSOTokenManager.getInstance();
+            SSOToken session = manager.createSSOToken(tokenId);
+            return manager.isValidToken(session) ? session.getProperty(TRUST) : null;
+        }
+        catch (SSOException e)
+        {
+            debug.message("No AM session to read the KeyID trust token from: %s", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Computes the fingerprint of the User-Agent header and IP address of the device.
+     * @param context   tree context
+     * @return          request header fingerprint
      */
-    private void keyIDResetProfile(String username, String tsData) throws Exception
+    private static long fingerprint(TreeContext context)
     {
-        debug.warning(String.format("Resetting KeyID profile for %s", username));
-        client.RemoveProfile(username, tsData, "").get();
-        //todo need error checking here when rest webservice bug is fixed.
+        String userAgent = null;
+
+        for (String header : context.request.headers.keySet())
+        {
+            if (header.equalsIgnoreCase("User-Agent") && !context.request.headers.get(header).isEmpty())
+                userAgent = context.request.headers.get(header).get(0);
+        }
+
+        return KeyIDTrustWindow.fingerprint(userAgent, context.request.clientIp);
     }
 
     /**
-     * Create a KeyIDSettings object using settings configured for authentication tree node.
-     * @return KeyIDSettings object
+     * Reads the tsData from shared state, resolving it from the tsData store if the collector kept it on the server
+     * and decoding it if the collector script compacted it.
+     * @param sharedState   shared state
+     * @return              tsData
+     * @throws NodeProcessException if the stored tsData has expired, was already resolved or is not validly encoded
      */
-    private KeyIDSettings createSettings()
+    private String resolveTsData(JsonValue sharedState) throws NodeProcessException
     {
-        KeyIDSettings settings = new KeyIDSettings();
-        settings.setUrl(config.url());
-        settings.setLicense(config.authKey());
-        settings.setCustomThreshold(config.customThreshold());
-        settings.setThresholdConfidence(config.thresholdConfidence());
-        settings.setThresholdFidelity(config.thresholdFidelity());
-        settings.setTimeout(config.timeout());
+        JsonValue handle = sharedState.get(TSDATA_HANDLE);
+        String tsData = handle.isNull() ? sharedState.get(TSDATA).asString()
+                                        : TsDataStores.getStore().take(handle.asString());
+
+        if (tsData == null && handle.isNotNull())
+            throw new NodeProcessException("KeyID tsData for handle " + handle.asString() + " is no longer available");
 
-        if (config.validationEnrollmentMode() == ValidationEnrollmentMode.PASSIVE_PASSIVE ||
-            config.validationEnrollmentMode() == ValidationEnrollmentMode.ACTIVE_PASSIVE ||
-            config.validationEnrollmentMode() == ValidationEnrollmentMode.ACTIVE_ACTIVE)
+        try
+        {
+            return TsDataCodec.decode(tsData, config.tsDataMaxLength());
+        }
+        catch (IllegalArgumentException e)
         {
-            settings.setLoginEnrollment(true);
+            throw new NodeProcessException("KeyID tsData rejected: " + e.getMessage());
         }
-        else
-            settings.setLoginEnrollment(false);
+    }
 
-        return settings;
+    /**
+     * Computes the deadline for the KeyID evaluation. The connection timeout is measured from the time the collector
+     * node received the typing data, so time already spent in the tree counts against it.
+     * @param transientState    transient state, the submission time is consumed from it
+     * @return                  deadline in epoch milliseconds
+     */
+    private long deadline(JsonValue transientState)
+    {
+        JsonValue submitted = transientState.get(SUBMITTED);
+        long start = submitted.isNotNull() ? submitted.asLong() : System.currentTimeMillis();
+        transientState.remove(SUBMITTED);
+        return start + config.timeout();
+    }
+
+    /**
+     * Acquires the shared KeyID client for the settings configured for this node.
+     * @return shared KeyID client
+     */
+    private KeyIDBackend acquireClient()
+    {
+        KeyIDClientRegistry.ClientKey key = createClientKey();
+        return KeyIDClientRegistry.getInstance().acquire(key, key::createSettings);
+    }
+
+    /**
+     * Create the key identifying the shared KeyID client for the settings configured for this node.
+     * @return KeyIDClientRegistry key
+     */
+    private KeyIDClientRegistry.ClientKey createClientKey()
+    {
+        boolean routed = KeyIDRoutingBackend.parseEndpoints(config.url()).size() > 1;
+
+        return new KeyIDClientRegistry.ClientKey(config.url(),
+                                                 config.authKey(),
+                                                 config.timeout(),
+                                                 config.customThreshold(),
+                                                 config.thresholdConfidence(),
+                                                 config.thresholdFidelity(),
+                                                 loginEnrollment(),
+                                                 loginEnrollment() ? 0 : config.hedgeDelay(),
+                                                 config.batchUrl(),
+                                                 config.batchDelay(),
+                                                 config.batchSize(),
+                                                 config.circuitBreaker() && routed ? createBreakerSettings() : null);
+    }
+
+    /**
+     * Create the circuit breaker thresholds configured for this node.
+     * @return KeyIDCircuitBreaker settings
+     */
+    private KeyIDCircuitBreaker.Settings createBreakerSettings()
+    {
+        return new KeyIDCircuitBreaker.Settings(config.breakerFailureRate(),
+                                                config.breakerSlowCallDuration(),
+                                                config.breakerSlowCallRate(),
+                                                config.breakerWindowSize(),
+                                                config.breakerOpenDuration(),
+                                                config.breakerHalfOpenCalls());
+    }
+
+    /**
+     * Create the realm bulkhead limits configured for this node.
+     * @return KeyIDBulkhead settings
+     */
+    private KeyIDBulkhead.Settings createBulkheadSettings()
+    {
+        return new KeyIDBulkhead.Settings(config.bulkheadMaxConcurrent(),
+                                          config.bulkheadMaxWaiting(),
+                                          config.rateLimit(),
+                                          config.rateLimitBurst());
+    }
+
+    /**
+     * Whether the configured validation / enrollment mode grants access regardless of the behavior match.
+     */
+    private boolean isPassiveValidation()
+    {
+        return config.validationEnrollmentMode() == ValidationEnrollmentMode.PASSIVE_NONE ||
+               config.validationEnrollmentMode() == ValidationEnrollmentMode.PASSIVE_PASSIVE;
+    }
+
+    /**
+     * Whether the configured validation / enrollment mode enrolls samples as users log in.
+     */
+    private boolean loginEnrollment()
+    {
+        return config.validationEnrollmentMode() == ValidationEnrollmentMode.PASSIVE_PASSIVE ||
+               config.validationEnrollmentMode() == ValidationEnrollmentMode.ACTIVE_PASSIVE ||
+               config.validationEnrollmentMode() == ValidationEnrollmentMode.ACTIVE_ACTIVE;
+    }
+
+    /**
+     * Coalesces duplicate evaluations across node instances.
+     */
+    static KeyIDSingleFlight<?> evaluations()
+    {
+        return EVALUATIONS;
+    }
+
+    /**
+     * The outcome of an evaluation and the KeyID login result it is based on, if any.
+     */
+    private static final class Evaluation
+    {
+        private final String outcome;
+        private final JsonObject result;
+        private final boolean trusted;
+
+        private Evaluation(String outcome, JsonObject result)
+        {
+            this(outcome, result, false);
+        }
+
+        /**
+         * @param trusted   whether the login was passed by the trust window without a KeyID result
+         */
+        private Evaluation(String outcome, JsonObject result, boolean trusted)
+        {
+            this.outcome = outcome;
+            this.result = result;
+            this.trusted = trusted;
+        }
     }
 
     public enum ValidationEnrollmentMode
@@ -275,10 +1029,16 @@ public class KeyIDNode extends AbstractDecisionNode
         @Override
         public List<Outcome> getOutcomes(PreferredLocales locales, JsonValue nodeAttributes) {
             ResourceBundle bundle = locales.getBundleInPreferredLocale(BUNDLE, OutcomeProvider.class.getClassLoader());
-            return ImmutableList.of(
-            new Outcome(TRUE_OUTCOME, bundle.getString("trueOutcome")),
-            new Outcome(FALSE_OUTCOME, bundle.getString("falseOutcome")),
-            new Outcome(ENROLL_OUTCOME, bundle.getString("enrollOutcome")));
+            List<Outcome> outcomes = new ArrayList<>();
+            outcomes.add(new Outcome(TRUE_OUTCOME, bundle.getString("trueOutcome")));
+            outcomes.add(new Outcome(FALSE_OUTCOME, bundle.getString("falseOutcome")));
+            outcomes.add(new Outcome(ENROLL_OUTCOME, bundle.getString("enrollOutcome")));
+
+            // the invalid outcome only needs connecting in trees that validate tsData
+            if (nodeAttributes.isDefined("validateTsData") && nodeAttributes.get("validateTsData").asBoolean())
+                outcomes.add(new Outcome(INVALID_OUTCOME, bundle.getString("invalidOutcome")));
+
+            return ImmutableList.copyOf(outcomes);
         }
     }
 }
\ No newline at end of file
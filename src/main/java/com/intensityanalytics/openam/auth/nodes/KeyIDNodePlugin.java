@@ -54,7 +54,7 @@ public class KeyIDNodePlugin extends AbstractNodeAmPlugin
     @Override
     public String getPluginVersion()
     {
-        return "1.1.0";
+        return "1.18.0";
     }
 
     @Override
@@ -64,6 +64,20 @@ public class KeyIDNodePlugin extends AbstractNodeAmPlugin
         {
             pluginTools.registerAuthNode(nodeClass);
         }
+
+        KeyIDMetrics.getInstance().register();
+        KeyIDWarmup.getInstance().start();
+    }
+
+    @Override
+    public void upgrade(String fromVersion) throws PluginException
+    {
+        for (Class<? extends Node> nodeClass : getNodes())
+        {
+            pluginTools.upgradeAuthNode(nodeClass);
+        }
+
+        super.upgrade(fromVersion);
     }
 
     @Override
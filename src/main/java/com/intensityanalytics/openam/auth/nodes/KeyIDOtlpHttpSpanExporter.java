@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Sends spans to an OpenTelemetry collector with OTLP/HTTP in the JSON encoding.
+ */
+public class KeyIDOtlpHttpSpanExporter implements KeyIDSpanExporter
+{
+    private static final int TIMEOUT = 10000;
+
+    private final URL endpoint;
+
+    /**
+     * @param endpoint  traces endpoint of the collector, for example http://localhost:4318/v1/traces
+     */
+    public KeyIDOtlpHttpSpanExporter(String endpoint) throws IOException
+    {
+        this.endpoint = new URL(endpoint);
+    }
+
+    @Override
+    public void export(List<KeyIDTracer.Span> spans) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+
+        try (OutputStream out = connection.getOutputStream())
+        {
+            out.write(KeyIDTracer.toOtlp(spans).toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+
+        if (in != null)
+            in.close();
+
+        if (status >= 400)
+            throw new IOException("OpenTelemetry collector returned HTTP " + status);
+    }
+}
@@ -19,9 +19,6 @@
 
 package com.intensityanalytics.openam.auth.nodes;
 
-import static org.forgerock.openam.auth.node.api.Action.send;
-import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
-import static org.forgerock.openam.auth.node.api.SharedStateConstants.PASSWORD;
 import static com.intensityanalytics.openam.auth.nodes.Constants.*;
 
 import java.util.List;
@@ -29,32 +26,26 @@ import java.util.ArrayList;
 import java.util.ResourceBundle;
 import javax.inject.Inject;
 import javax.security.auth.callback.Callback;
-import javax.security.auth.callback.NameCallback;
 import javax.security.auth.callback.PasswordCallback;
 import javax.security.auth.callback.TextOutputCallback;
-
 import com.google.inject.assistedinject.Assisted;
-import com.sun.identity.shared.debug.Debug;
 import com.sun.identity.authentication.callbacks.HiddenValueCallback;
 import com.sun.identity.authentication.callbacks.ScriptTextOutputCallback;
-import org.forgerock.guava.common.base.Strings;
-import org.forgerock.json.JsonValue;
 import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.node.api.*;
 import org.forgerock.openam.core.CoreWrapper;
 
 /**
- * A node which collects the username, password and KeyID typing data from the user via callbacks.
+ * A node which collects the password and KeyID typing data from the user via callbacks.
  */
 @Node.Metadata(outcomeProvider = SingleOutcomeNode.OutcomeProvider.class,
 configClass = KeyIDPasswordCollectorNode.Config.class)
-public class KeyIDPasswordCollectorNode extends SingleOutcomeNode
+public class KeyIDPasswordCollectorNode extends KeyIDCollectorNode
 {
     private final Config config;
     private final CoreWrapper coreWrapper;
     private static final String BUNDLE = "com/intensityanalytics/openam/auth/nodes/KeyIDPasswordCollectorNode";
     private final static String DEBUG_FILE = "KeyIDLoginFormNode";
-    protected Debug debug = Debug.getInstance(DEBUG_FILE);
 
     interface Config
     {
@@ -63,6 +54,24 @@ public class KeyIDPasswordCollectorNode extends SingleOutcomeNode
         {
             return "";
         }
+
+        @Attribute(order = 200)
+        default Boolean serverSideTsData()
+        {
+            return false;
+        }
+
+        @Attribute(order = 300)
+        default String loaderScript()
+        {
+            return "";
+        }
+
+        @Attribute(order = 400)
+        default Boolean compactTsData()
+        {
+            return false;
+        }
     }
 
     /**
@@ -74,6 +83,8 @@ public class KeyIDPasswordCollectorNode extends SingleOutcomeNode
     @Inject
     public KeyIDPasswordCollectorNode(@Assisted KeyIDPasswordCollectorNode.Config config, CoreWrapper coreWrapper) throws NodeProcessException
     {
+        super("Password", DEBUG_FILE, BUNDLE, config.library(), config.loaderScript(), config.serverSideTsData(),
+              config.compactTsData());
         debug.message( "KeyIDPasswordCollectorNode() called");
         this.config = config;
         this.coreWrapper = coreWrapper;
@@ -83,45 +94,19 @@ public class KeyIDPasswordCollectorNode extends SingleOutcomeNode
     public Action process(TreeContext context)
     {
         debug.message("KeyIDPasswordCollectorNode.process() called");
-        JsonValue sharedState = context.sharedState.copy();
-        JsonValue transientState = context.transientState.copy();
-
-        context.getCallback(PasswordCallback.class)
-        .map(PasswordCallback::getPassword)
-        .map(String::new)
-        .filter(password -> !Strings.isNullOrEmpty(password))
-        .map(password -> transientState.put(PASSWORD, password));
-
-        context.getCallback(HiddenValueCallback.class)
-        .map(HiddenValueCallback::getValue)
-        .filter(tsData -> !Strings.isNullOrEmpty(tsData))
-        .map(tsData -> sharedState.put(TSDATA, tsData));
-
-        if (transientState.get(PASSWORD).isNotNull() &&
-            sharedState.get(USERNAME).isNotNull() &&
-            sharedState.get(TSDATA).isNotNull())
-        {
-            debug.warning(String.format("Password submitted for user %s", sharedState.get(USERNAME)));
-            debug.message(String.format("KeyID tsData: %s", sharedState.get(TSDATA)));
-            return goToNext().replaceSharedState(sharedState).replaceTransientState(transientState).build();
-        }
-        else
-        {
-            return collectPasswordData(context);
-        }
+        return super.process(context);
     }
 
-    private Action collectPasswordData(TreeContext context)
+    @Override
+    protected List<Callback> createCallbacks(ResourceBundle prompts, String script)
     {
-        debug.message("KeyIDPasswordCollectorNode.collectUsernamePasswordData() called");
-        ResourceBundle bundle = context.request.locales.getBundleInPreferredLocale(BUNDLE, getClass().getClassLoader());
+        debug.message("KeyIDPasswordCollectorNode.createCallbacks() called");
         List<Callback> callBackList = new ArrayList<>();
-        callBackList.add(new TextOutputCallback(TextOutputCallback.INFORMATION, "Please enter your password again to continue enrollment."));
-        callBackList.add(new PasswordCallback(bundle.getString("callback.password"), false));
-        callBackList.add(new ScriptTextOutputCallback(String.format(KEYIDSCRIPT, config.library())));
+        callBackList.add(new TextOutputCallback(TextOutputCallback.INFORMATION,
+                                                prompts.getString("callback.enrollment")));
+        callBackList.add(new PasswordCallback(prompts.getString("callback.password"), false));
+        callBackList.add(new ScriptTextOutputCallback(script));
         callBackList.add(new HiddenValueCallback(TSDATA));
-
-        return send(callBackList).build();
+        return callBackList;
     }
 }
-
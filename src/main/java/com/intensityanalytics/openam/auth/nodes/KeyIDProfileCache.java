@@ -0,0 +1,150 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-capped LRU cache of the profile status the KeyID web service last reported for a user.
+ *
+ * Entries are refreshed by every Login result, expire after the time to live the reading node is configured with, and
+ * are invalidated when the profile is reset.
+ */
+public final class KeyIDProfileCache
+{
+    private static final KeyIDProfileCache INSTANCE =
+        new KeyIDProfileCache(Integer.getInteger("com.intensityanalytics.keyid.profileCache.maxEntries", 100000));
+
+    private final Map<KeyIDUserKey, ProfileStatus> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    KeyIDProfileCache(int maxEntries)
+    {
+        entries = new LinkedHashMap<KeyIDUserKey, ProfileStatus>(1024, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<KeyIDUserKey, ProfileStatus> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public static KeyIDProfileCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Looks up a user's profile status.
+     * @param client    KeyID backend
+     * @param username  username
+     * @param ttlMs     maximum age of the status in milliseconds
+     * @return          the cached status, or null if there is none younger than the time to live
+     */
+    public ProfileStatus get(KeyIDBackend client, String username, long ttlMs)
+    {
+        ProfileStatus status;
+
+        synchronized (entries)
+        {
+            status = entries.get(new KeyIDUserKey(client, username));
+        }
+
+        if (status == null || System.currentTimeMillis() - status.updated > ttlMs)
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return status;
+    }
+
+    /**
+     * Records the profile status reported by a Login result.
+     * @param client    KeyID backend
+     * @param username  username
+     * @param isReady   whether the profile is ready for validation
+     * @param profiles  number of samples in the profile
+     */
+    public void update(KeyIDBackend client, String username, boolean isReady, int profiles)
+    {
+        ProfileStatus status = new ProfileStatus(isReady, profiles, System.currentTimeMillis());
+
+        synchronized (entries)
+        {
+            entries.put(new KeyIDUserKey(client, username), status);
+        }
+    }
+
+    /**
+     * Discards a user's profile status, used when the profile is reset.
+     * @param client    KeyID backend
+     * @param username  username
+     */
+    public void invalidate(KeyIDBackend client, String username)
+    {
+        synchronized (entries)
+        {
+            if (entries.remove(new KeyIDUserKey(client, username)) != null)
+                invalidations.incrementAndGet();
+        }
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getInvalidations()
+    {
+        return invalidations.get();
+    }
+
+    public int size()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Profile status reported by the KeyID web service.
+     */
+    public static final class ProfileStatus
+    {
+        private final boolean isReady;
+        private final int profiles;
+        private final long updated;
+
+        private ProfileStatus(boolean isReady, int profiles, long updated)
+        {
+            this.isReady = isReady;
+            this.profiles = profiles;
+            this.updated = updated;
+        }
+
+        public boolean isReady()
+        {
+            return isReady;
+        }
+
+        public int getProfiles()
+        {
+            return profiles;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import static com.intensityanalytics.openam.auth.nodes.Utility.daemonThreadFactory;
+
+/**
+ * Resets KeyID profiles in the background so the login response does not wait for RemoveProfile.
+ *
+ * Pending resets are de-duplicated per user and client, drained by worker threads in batches and retried with
+ * exponential backoff. Resets that still fail after the last attempt are reported in the debug log. A reset following
+ * a match keeps the user's trust window entries, which the match has just recorded; other resets revoke them.
+ */
+public final class KeyIDProfileResetQueue
+{
+    private final static String DEBUG_FILE = "KeyIDNode";
+    private static final KeyIDLog debug = KeyIDLog.getInstance(DEBUG_FILE);
+    private static final KeyIDProfileResetQueue INSTANCE = new KeyIDProfileResetQueue();
+
+    private static final int MAX_PENDING = 10000;
+    private static final int WORKERS = 4;
+    private static final int BATCH_SIZE = 32;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long INITIAL_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 60000;
+
+    private final Map<KeyIDUserKey, ResetTask> pending = new LinkedHashMap<>();
+    private final ScheduledExecutorService retries =
+        Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("KeyIDProfileReset-retry"));
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private KeyIDProfileResetQueue()
+    {
+        for (int i = 0; i < WORKERS; i++)
+            daemonThreadFactory("KeyIDProfileReset").newThread(this::work).start();
+    }
+
+    public static KeyIDProfileResetQueue getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Queues a profile reset. A reset already pending for the user is replaced rather than repeated.
+     * @param client    KeyID backend
+     * @param breaker   circuit breaker for the endpoint, or null
+     * @param timeout   timeout in milliseconds for each attempt
+     * @param username      username
+     * @param tsData        tsData
+     * @param revokeTrust   whether to revoke the trust window entries of the user once the profile is reset
+     * @return              false if the queue is full and the reset was not accepted
+     */
+    public boolean submit(KeyIDBackend client, KeyIDCircuitBreaker breaker, int timeout, String username,
+                          String tsData, boolean revokeTrust)
+    {
+        return enqueue(new ResetTask(client, breaker, timeout, username, tsData, revokeTrust, 1));
+    }
+
+    public long getCompleted()
+    {
+        return completed.get();
+    }
+
+    public long getFailed()
+    {
+        return failed.get();
+    }
+
+    public long getRejected()
+    {
+        return rejected.get();
+    }
+
+    public int getPending()
+    {
+        synchronized (pending)
+        {
+            return pending.size();
+        }
+    }
+
+    private boolean enqueue(ResetTask task)
+    {
+        synchronized (pending)
+        {
+            KeyIDUserKey key = new KeyIDUserKey(task.client, task.username);
+            ResetTask existing = pending.get(key);
+
+            // a newer request for the same user supersedes a retry of an older one
+            if (existing != null && task.attempt > 1)
+                return true;
+
+            if (existing == null && pending.size() >= MAX_PENDING)
+            {
+                rejected.incrementAndGet();
+                debug.error("KeyID profile reset queue is full, reset for %s was not queued", task.username);
+                return false;
+            }
+
+            // a reset replacing one that revokes trust still revokes it
+            if (existing != null && existing.revokeTrust && !task.revokeTrust)
+            {
+                task = new ResetTask(task.client, task.breaker, task.timeout, task.username, task.tsData, true,
+                                     task.attempt);
+            }
+
+            pending.put(key, task);
+            pending.notify();
+            return true;
+        }
+    }
+
+    private List<ResetTask> takeBatch() throws InterruptedException
+    {
+        synchronized (pending)
+        {
+            while (pending.isEmpty())
+                pending.wait();
+
+            List<ResetTask> batch = new ArrayList<>(Math.min(BATCH_SIZE, pending.size()));
+            Iterator<ResetTask> tasks = pending.values().iterator();
+
+            while (tasks.hasNext() && batch.size() < BATCH_SIZE)
+            {
+                batch.add(tasks.next());
+                tasks.remove();
+            }
+
+            return batch;
+        }
+    }
+
+    private void work()
+    {
+        while (!Thread.currentThread().isInterrupted())
+        {
+            try
+            {
+                for (ResetTask task : takeBatch())
+                    execute(task);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch (RuntimeException e)
+            {
+                debug.error("KeyID profile reset worker error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void execute(ResetTask task)
+    {
+        try
+        {
+            JsonObject result = KeyIDGateway.getInstance().removeProfile(task.client, task.breaker, task.username,
+                                                                         task.tsData,
+                                                                         System.currentTimeMillis() + task.timeout);
+            JsonElement error = result == null ? null : result.get("Error");
+
+            if (error != null && !error.isJsonNull() && !error.getAsString().isEmpty())
+                throw new IllegalStateException("KeyID Error: " + error.getAsString());
+
+            KeyIDProfileCache.getInstance().invalidate(task.client, task.username);
+            if (task.revokeTrust)
+                KeyIDTrustWindow.getInstance().invalidate(task.client, task.username);
+            completed.incrementAndGet();
+            debug.message("KeyID profile reset for %s completed", task.username);
+        }
+        catch (Exception e)
+        {
+            retry(task, e);
+        }
+    }
+
+    private void retry(ResetTask task, Exception cause)
+    {
+        if (task.attempt >= MAX_ATTEMPTS)
+        {
+            failed.incrementAndGet();
+            debug.error("KeyID profile reset for %s failed after %d attempts: %s", task.username, task.attempt,
+                        cause.getMessage());
+            return;
+        }
+
+        long backoff = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << (task.attempt - 1));
+        debug.warning("KeyID profile reset for %s failed, retrying in %d ms: %s", task.username, backoff,
+                      cause.getMessage());
+
+        ResetTask next = new ResetTask(task.client, task.breaker, task.timeout, task.username, task.tsData,
+                                       task.revokeTrust, task.attempt + 1);
+        retries.schedule(() -> enqueue(next), backoff, TimeUnit.MILLISECONDS);
+    }
+
+    private static final class ResetTask
+    {
+        private final KeyIDBackend client;
+        private final KeyIDCircuitBreaker breaker;
+        private final int timeout;
+        private final String username;
+        private final String tsData;
+        private final boolean revokeTrust;
+        private final int attempt;
+
+        private ResetTask(KeyIDBackend client, KeyIDCircuitBreaker breaker, int timeout, String username,
+                          String tsData, boolean revokeTrust, int attempt)
+        {
+            this.client = client;
+            this.breaker = breaker;
+            this.timeout = timeout;
+            this.username = username;
+            this.tsData = tsData;
+            this.revokeTrust = revokeTrust;
+            this.attempt = attempt;
+        }
+    }
+}
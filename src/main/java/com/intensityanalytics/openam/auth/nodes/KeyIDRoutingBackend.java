@@ -0,0 +1,671 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import static com.intensityanalytics.openam.auth.nodes.Utility.daemonThreadFactory;
+import static com.intensityanalytics.openam.auth.nodes.Utility.isConnectFailure;
+import static com.intensityanalytics.openam.auth.nodes.Utility.isLocalFailure;
+
+/**
+ * KeyIDBackend spreading calls over several replicas of the KeyID web service.
+ *
+ * Each call goes to the endpoint with the lowest latency estimate, an exponentially weighted moving average of its
+ * response times multiplied by its outstanding calls plus one. An endpoint that fails is ejected for a back-off period
+ * that doubles with every consecutive failure; ejected endpoints are only used when no other endpoint is left. A call
+ * that fails or times out is retried on the next endpoint before the caller's deadline. While another endpoint is left
+ * to fail over to, an attempt leaves it twice its latency estimate, at least {@value #MIN_RESERVE_MS} ms and at most
+ * half of the remaining time. Half is left when the next endpoint has no estimate yet or the endpoint attempted is
+ * ejected, and only the minimum when the next endpoint is ejected.
+ *
+ * With breaker settings, every endpoint has its own circuit breaker: an endpoint whose breaker is open is skipped, and
+ * the call fails with KeyIDCircuitOpenException only if every breaker is open.
+ *
+ * A login that enrolls its sample may already have been enrolled by an endpoint that failed or timed out afterwards,
+ * so it is only retried on the next endpoint when the connection failed or the breaker was open, and is never
+ * hedged.
+ *
+ * With a hedge delay, a login that has not completed within the delay is also sent to the next endpoint and the first
+ * result wins. At most {@value #MAX_HEDGE_WAITERS} threads wait on hedged calls; while they are all busy, logins are
+ * not hedged.
+ */
+public class KeyIDRoutingBackend implements KeyIDBackend, AutoCloseable
+{
+    private static final double EWMA_WEIGHT = 0.2;
+    private static final long EJECT_BASE_MS = 1000;
+    private static final long EJECT_MAX_MS = 30000;
+    private static final long MIN_RESERVE_MS = 50;
+    private static final int MAX_HEDGE_WAITERS = 64;
+    private static final Map<String, Endpoint> ENDPOINTS = new ConcurrentHashMap<>();
+    private static final ExecutorService HEDGE_WAITERS =
+        new ThreadPoolExecutor(0, MAX_HEDGE_WAITERS, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                               daemonThreadFactory("KeyIDHedgeWaiter"));
+
+    private final List<Route> routes;
+    private final boolean enrolling;
+    private final long hedgeDelay;
+
+    /**
+     * @param clients       backend per endpoint URL
+     * @param enrolling     whether logins enroll their samples
+     * @param hedgeDelay    time in milliseconds after which a login is also sent to a second endpoint, 0 to never hedge
+     */
+    public KeyIDRoutingBackend(Map<String, KeyIDBackend> clients, boolean enrolling, long hedgeDelay)
+    {
+        this(clients, enrolling, hedgeDelay, null);
+    }
+
+    /**
+     * @param clients           backend per endpoint URL
+     * @param enrolling         whether logins enroll their samples
+     * @param hedgeDelay        time in milliseconds after which a login is also sent to a second endpoint, 0 to never
+     *                          hedge
+     * @param breakerSettings   thresholds of the circuit breaker of each endpoint, or null for no breakers
+     */
+    public KeyIDRoutingBackend(Map<String, KeyIDBackend> clients, boolean enrolling, long hedgeDelay,
+                               KeyIDCircuitBreaker.Settings breakerSettings)
+    {
+        List<Route> routes = new ArrayList<>();
+
+        for (Map.Entry<String, KeyIDBackend> client : clients.entrySet())
+        {
+            KeyIDCircuitBreaker breaker = breakerSettings == null
+                                          ? null : KeyIDCircuitBreaker.forEndpoint(client.getKey(), breakerSettings);
+            routes.add(new Route(ENDPOINTS.computeIfAbsent(client.getKey(), Endpoint::new), client.getValue(),
+                                 breaker));
+        }
+
+        this.routes = Collections.unmodifiableList(routes);
+        this.enrolling = enrolling;
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    /**
+     * Splits a list of endpoint URLs separated by commas or whitespace.
+     * @param urls  endpoint URLs
+     * @return      URLs in configured order
+     */
+    public static List<String> parseEndpoints(String urls)
+    {
+        List<String> endpoints = new ArrayList<>();
+
+        for (String url : urls.trim().split("[,\\s]+"))
+        {
+            if (!url.isEmpty() && !endpoints.contains(url))
+                endpoints.add(url);
+        }
+
+        return endpoints;
+    }
+
+    /**
+     * Routing statistics of every endpoint in use.
+     */
+    public static Collection<Endpoint> getEndpoints()
+    {
+        return ENDPOINTS.values();
+    }
+
+    @Override
+    public Future<JsonObject> login(String username, String tsData, long deadline)
+    {
+        return call(true, username, tsData, deadline);
+    }
+
+    @Override
+    public Future<JsonObject> removeProfile(String username, String tsData, long deadline)
+    {
+        return call(false, username, tsData, deadline);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        IOException failure = null;
+
+        for (Route route : routes)
+        {
+            if (!(route.client instanceof AutoCloseable))
+                continue;
+
+            try
+            {
+                ((AutoCloseable) route.client).close();
+            }
+            catch (Exception e)
+            {
+                if (failure == null)
+                    failure = new IOException("Unable to close KeyID backend for " + route.endpoint.url, e);
+                else
+                    failure.addSuppressed(e);
+            }
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Runs the call on the calling thread, returning by the deadline.
+     */
+    private Future<JsonObject> call(boolean login, String username, String tsData, long deadline)
+    {
+        CompletableFuture<JsonObject> result = new CompletableFuture<>();
+
+        try
+        {
+            result.complete(route(login, username, tsData, deadline));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+        }
+        catch (Exception e)
+        {
+            result.completeExceptionally(e);
+        }
+
+        return result;
+    }
+
+    private JsonObject route(boolean login, String username, String tsData, long deadline) throws Exception
+    {
+        boolean enroll = login && enrolling;
+        List<Route> tried = new ArrayList<>(routes.size());
+        Exception failure = null;
+        Route route;
+
+        while ((route = select(tried)) != null)
+        {
+            tried.add(route);
+            long remaining = deadline - System.currentTimeMillis();
+
+            if (remaining <= 0)
+                break;
+
+            // a failed connection is quick to detect, so an enrolling login gives its attempt all the time left
+            Route next = enroll ? null : select(tried);
+            boolean canFailOver = next != null;
+            long budget = remaining - (canFailOver ? reserve(route, next, remaining) : 0);
+
+            try
+            {
+                if (login && !enroll && hedgeDelay > 0 && canFailOver && hedgeDelay < budget)
+                    return hedge(route, tried, username, tsData, System.currentTimeMillis() + budget);
+
+                return attempt(route, login, username, tsData, budget);
+            }
+            catch (InterruptedException e)
+            {
+                throw e;
+            }
+            catch (Exception e)
+            {
+                failure = e;
+
+                if (enroll && !isConnectFailure(e) && !(e instanceof KeyIDCircuitOpenException))
+                    break;
+            }
+        }
+
+        if (failure != null)
+            throw failure;
+
+        throw new KeyIDTimeoutException("No KeyID endpoint could be called before the deadline", false);
+    }
+
+    /**
+     * Time in milliseconds an attempt on a route leaves for failing over to the next one.
+     */
+    private static long reserve(Route route, Route next, long remaining)
+    {
+        long now = System.currentTimeMillis();
+        double estimate = next.endpoint.getLatencyEstimate();
+
+        if (route.endpoint.isEjected(now) || estimate == 0)
+            return remaining / 2;
+        if (next.endpoint.isEjected(now))
+            return Math.min(MIN_RESERVE_MS, remaining / 2);
+
+        return Math.min(Math.max(MIN_RESERVE_MS, (long) Math.ceil(2 * estimate)), remaining / 2);
+    }
+
+    private JsonObject attempt(Route route, boolean login, String username, String tsData, long budget)
+        throws Exception
+    {
+        Call call = new Call(route, login, username, tsData, System.currentTimeMillis() + budget);
+
+        try
+        {
+            JsonObject result = call.poll(budget);
+
+            if (result != null)
+                return result;
+
+            call.abandon(true);
+            throw new KeyIDTimeoutException(String.format("KeyID call to %s did not complete within %d ms",
+                                                          route.endpoint.url, budget));
+        }
+        catch (InterruptedException e)
+        {
+            call.abandon(false);
+            throw e;
+        }
+    }
+
+    /**
+     * Sends the login to the first endpoint and, if it has not answered within the hedge delay, to a second one.
+     */
+    private JsonObject hedge(Route first, List<Route> tried, String username, String tsData, long until)
+        throws Exception
+    {
+        Call[] calls = new Call[2];
+        calls[0] = new Call(first, true, username, tsData, until);
+
+        try
+        {
+            JsonObject result = calls[0].poll(hedgeDelay);
+
+            if (result != null)
+                return result;
+
+            // the client futures cannot notify completion, so a waiter per call hands them over as they finish
+            CompletionService<Call> done = new ExecutorCompletionService<>(HEDGE_WAITERS);
+            Exception failure = null;
+            int pending = 0;
+
+            try
+            {
+                done.submit(calls[0]::await);
+                pending++;
+                Route second = select(tried);
+                tried.add(second);
+                calls[1] = new Call(second, true, username, tsData, until);
+                done.submit(calls[1]::await);
+                pending++;
+            }
+            catch (RejectedExecutionException | KeyIDCircuitOpenException e)
+            {
+                // every hedge waiter is busy or the second breaker is open, so the login waits for the first endpoint
+                if (calls[1] != null)
+                    calls[1].abandon(false);
+            }
+
+            if (pending == 0)
+            {
+                result = calls[0].poll(Math.max(0, until - System.currentTimeMillis()));
+
+                if (result != null)
+                    return result;
+
+                calls[0].abandon(true);
+                throw new KeyIDTimeoutException(String.format("KeyID call to %s did not complete in time",
+                                                              first.endpoint.url));
+            }
+
+            for (; pending > 0; pending--)
+            {
+                Future<Call> next = done.poll(until - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+
+                if (next == null)
+                {
+                    abandon(calls, true);
+                    throw new KeyIDTimeoutException(String.format("Hedged KeyID login to %s did not complete in " +
+                                                                  "time", first.endpoint.url));
+                }
+
+                try
+                {
+                    result = next.get().poll(0);
+                    abandon(calls, false);
+                    return result;
+                }
+                catch (InterruptedException e)
+                {
+                    throw e;
+                }
+                catch (Exception e)
+                {
+                    failure = e;
+                }
+            }
+
+            throw failure;
+        }
+        catch (Exception e)
+        {
+            abandon(calls, false);
+            throw e;
+        }
+    }
+
+    private static void abandon(Call[] calls, boolean timedOut)
+    {
+        for (Call call : calls)
+        {
+            if (call != null)
+                call.abandon(timedOut);
+        }
+    }
+
+    /**
+     * Picks the untried endpoint with the lowest latency estimate, preferring endpoints that are not ejected.
+     */
+    private Route select(List<Route> tried)
+    {
+        long now = System.currentTimeMillis();
+        int offset = ThreadLocalRandom.current().nextInt(routes.size());
+        Route best = null;
+        double bestScore = Double.MAX_VALUE;
+        boolean bestEjected = true;
+
+        for (int i = 0; i < routes.size(); i++)
+        {
+            Route route = routes.get((offset + i) % routes.size());
+
+            if (tried.contains(route))
+                continue;
+
+            boolean ejected = route.endpoint.isEjected(now);
+            double score = route.endpoint.score();
+
+            if (best == null || (bestEjected && !ejected) || (bestEjected == ejected && score < bestScore))
+            {
+                best = route;
+                bestScore = score;
+                bestEjected = ejected;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Routing statistics of one endpoint, shared by every backend calling it.
+     */
+    public static final class Endpoint
+    {
+        private final String url;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private volatile double latencyMs;
+        private volatile long ejectedUntil;
+        private int consecutiveFailures;
+
+        private Endpoint(String url)
+        {
+            this.url = url;
+        }
+
+        public String getUrl()
+        {
+            return url;
+        }
+
+        /**
+         * Moving average of the response time in milliseconds.
+         */
+        public double getLatencyEstimate()
+        {
+            return latencyMs;
+        }
+
+        public int getOutstanding()
+        {
+            return outstanding.get();
+        }
+
+        public long getCalls()
+        {
+            return calls.sum();
+        }
+
+        public long getFailures()
+        {
+            return failures.sum();
+        }
+
+        public boolean isEjected(long now)
+        {
+            return now < ejectedUntil;
+        }
+
+        private double score()
+        {
+            return (latencyMs + 1) * (outstanding.get() + 1);
+        }
+
+        private synchronized void onSuccess(double elapsedMs)
+        {
+            calls.increment();
+            record(elapsedMs);
+            consecutiveFailures = 0;
+            ejectedUntil = 0;
+        }
+
+        private synchronized void onFailure(double elapsedMs)
+        {
+            calls.increment();
+            failures.increment();
+            record(elapsedMs);
+            consecutiveFailures++;
+            long backoff = Math.min(EJECT_BASE_MS << Math.min(consecutiveFailures - 1, 5), EJECT_MAX_MS);
+            ejectedUntil = System.currentTimeMillis() + backoff;
+        }
+
+        /**
+         * Records a call given up while still running, whose response time is at least the time it ran.
+         */
+        private synchronized void onAbandoned(double elapsedMs)
+        {
+            calls.increment();
+            record(elapsedMs);
+        }
+
+        private void record(double elapsedMs)
+        {
+            latencyMs = latencyMs == 0 ? elapsedMs : latencyMs + EWMA_WEIGHT * (elapsedMs - latencyMs);
+        }
+    }
+
+    /**
+     * An endpoint with the backend calling it.
+     */
+    private static final class Route
+    {
+        private final Endpoint endpoint;
+        private final KeyIDBackend client;
+        private final KeyIDCircuitBreaker breaker;
+
+        private Route(Endpoint endpoint, KeyIDBackend client, KeyIDCircuitBreaker breaker)
+        {
+            this.endpoint = endpoint;
+            this.client = client;
+            this.breaker = breaker;
+        }
+    }
+
+    /**
+     * A call started on a route. Its outcome is recorded once, when it completes or is abandoned, by the endpoint and
+     * its breaker.
+     */
+    private static final class Call
+    {
+        private final Endpoint endpoint;
+        private final KeyIDCircuitBreaker breaker;
+        private final long permission;
+        private final Future<JsonObject> future;
+        private final long start = System.nanoTime();
+        private boolean finished;
+
+        /**
+         * @throws KeyIDCircuitOpenException if the breaker of the route is open
+         */
+        private Call(Route route, boolean login, String username, String tsData, long deadline)
+            throws KeyIDCircuitOpenException
+        {
+            endpoint = route.endpoint;
+            breaker = route.breaker;
+            permission = breaker == null ? 0 : breaker.tryAcquirePermission();
+
+            if (permission < 0)
+                throw new KeyIDCircuitOpenException("KeyID call skipped, circuit breaker for " + endpoint.url +
+                                                    " is open");
+
+            endpoint.outstanding.incrementAndGet();
+
+            try
+            {
+                future = login ? route.client.login(username, tsData, deadline)
+                               : route.client.removeProfile(username, tsData, deadline);
+            }
+            catch (RuntimeException e)
+            {
+                finish();
+                endpoint.onFailure(elapsedMs());
+                if (breaker != null)
+                    breaker.onIgnored(permission);
+                throw e;
+            }
+        }
+
+        private boolean isDone()
+        {
+            return future.isDone();
+        }
+
+        /**
+         * Waits for the result.
+         * @param waitMs    maximum wait in milliseconds
+         * @return          result, or null if the call is still running
+         * @throws Exception if the call failed
+         */
+        private JsonObject poll(long waitMs) throws Exception
+        {
+            try
+            {
+                JsonObject result = future.get(waitMs, TimeUnit.MILLISECONDS);
+                if (finish())
+                {
+                    endpoint.onSuccess(elapsedMs());
+                    if (breaker != null)
+                        breaker.onSuccess(permission, (long) elapsedMs());
+                }
+                return result;
+            }
+            catch (TimeoutException e)
+            {
+                return null;
+            }
+            catch (ExecutionException e)
+            {
+                if (finish())
+                {
+                    endpoint.onFailure(elapsedMs());
+                    if (breaker != null && isLocalFailure(e.getCause()))
+                        breaker.onIgnored(permission);
+                    else if (breaker != null)
+                        breaker.onError(permission, (long) elapsedMs());
+                }
+                if (e.getCause() instanceof Exception)
+                    throw (Exception) e.getCause();
+                throw e;
+            }
+            catch (CancellationException e)
+            {
+                if (finish())
+                {
+                    endpoint.onFailure(elapsedMs());
+                    if (breaker != null)
+                        breaker.onIgnored(permission);
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Waits until the call completes or is abandoned.
+         * @return  this call
+         */
+        private Call await() throws InterruptedException
+        {
+            try
+            {
+                future.get();
+            }
+            catch (ExecutionException | CancellationException e)
+            {
+                // the outcome is read by poll
+            }
+
+            return this;
+        }
+
+        /**
+         * Cancels the call if it is still running.
+         * @param timedOut  whether the call is given up because it took too long, which counts as a failure
+         */
+        private void abandon(boolean timedOut)
+        {
+            if (!finish())
+                return;
+
+            future.cancel(true);
+
+            if (timedOut)
+                endpoint.onFailure(elapsedMs());
+            else
+                endpoint.onAbandoned(elapsedMs());
+
+            if (breaker != null && timedOut)
+                breaker.onError(permission, (long) elapsedMs());
+            else if (breaker != null)
+                breaker.onIgnored(permission);
+        }
+
+        /**
+         * Marks the call finished.
+         * @return  false if it already was
+         */
+        private boolean finish()
+        {
+            if (finished)
+                return false;
+
+            finished = true;
+            endpoint.outstanding.decrementAndGet();
+            return true;
+        }
+
+        private double elapsedMs()
+        {
+            return (System.nanoTime() - start) / 1e6;
+        }
+    }
+}
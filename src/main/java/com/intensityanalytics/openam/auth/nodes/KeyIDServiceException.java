@@ -0,0 +1,20 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+
+/**
+ * Thrown when the KeyID web service answers a request with an error.
+ */
+public class KeyIDServiceException extends NodeProcessException
+{
+    private static final long serialVersionUID = 1L;
+
+    public KeyIDServiceException(String message)
+    {
+        super(message);
+    }
+}
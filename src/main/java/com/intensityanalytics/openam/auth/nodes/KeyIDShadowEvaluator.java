@@ -0,0 +1,170 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.google.gson.JsonObject;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import static com.intensityanalytics.openam.auth.nodes.Utility.daemonThreadFactory;
+
+/**
+ * Evaluates logins in the background where the outcome of the node does not depend on the KeyID result: the passive
+ * validation modes, and active enrollment of profiles known not to be ready. The login continues immediately while the
+ * evaluation, and the sample enrollment that comes with it, completes here. The sample of an evaluation that could not
+ * reach KeyID is spooled if the submitting node enrolls samples into a spool.
+ */
+public final class KeyIDShadowEvaluator
+{
+    private final static String DEBUG_FILE = "KeyIDNode";
+    private static final KeyIDLog debug = KeyIDLog.getInstance(DEBUG_FILE);
+    private static final KeyIDShadowEvaluator INSTANCE = new KeyIDShadowEvaluator();
+
+    private static final int WORKERS = 8;
+    private static final int MAX_QUEUED = 10000;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong evaluated = new AtomicLong();
+    private final AtomicLong matched = new AtomicLong();
+    private final AtomicLong notReady = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final DoubleAdder confidence = new DoubleAdder();
+    private final DoubleAdder fidelity = new DoubleAdder();
+
+    private KeyIDShadowEvaluator()
+    {
+        executor = new ThreadPoolExecutor(WORKERS, WORKERS, 60, TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue<>(MAX_QUEUED),
+                                          daemonThreadFactory("KeyIDShadowEvaluator"));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static KeyIDShadowEvaluator getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Queues a login for background evaluation.
+     * @param client        KeyID backend
+     * @param breaker       circuit breaker for the endpoint, or null
+     * @param timeout       timeout in milliseconds for the evaluation
+     * @param resetProfile  whether to reset the profile once the evaluation completed
+     * @param spool         enrollment spool of the node, or null if it does not enroll samples into one
+     * @param username      username
+     * @param tsData        tsData
+     * @return              false if the evaluator is saturated and the login was not evaluated
+     */
+    public boolean submit(KeyIDBackend client, KeyIDCircuitBreaker breaker, int timeout, boolean resetProfile,
+                          KeyIDEnrollmentSpool spool, String username, String tsData)
+    {
+        try
+        {
+            executor.execute(() -> evaluate(client, breaker, timeout, resetProfile, spool, username, tsData));
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            dropped.incrementAndGet();
+            debug.warning("KeyID shadow evaluation queue is full, login for %s not evaluated", username);
+            return false;
+        }
+    }
+
+    public long getEvaluated()
+    {
+        return evaluated.get();
+    }
+
+    public long getMatched()
+    {
+        return matched.get();
+    }
+
+    public long getNotReady()
+    {
+        return notReady.get();
+    }
+
+    public long getErrors()
+    {
+        return errors.get();
+    }
+
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Mean confidence of the completed evaluations.
+     */
+    public double getMeanConfidence()
+    {
+        long count = evaluated.get();
+        return count == 0 ? 0 : confidence.sum() / count;
+    }
+
+    /**
+     * Mean fidelity of the completed evaluations.
+     */
+    public double getMeanFidelity()
+    {
+        long count = evaluated.get();
+        return count == 0 ? 0 : fidelity.sum() / count;
+    }
+
+    private void evaluate(KeyIDBackend client, KeyIDCircuitBreaker breaker, int timeout, boolean resetProfile,
+                          KeyIDEnrollmentSpool spool, String username, String tsData)
+    {
+        try
+        {
+            JsonObject result = KeyIDGateway.getInstance().login(client, breaker, username, tsData,
+                                                                 System.currentTimeMillis() + timeout);
+
+            if (!result.get("Error").getAsString().isEmpty())
+                throw new IllegalStateException("KeyID Error: " + result.get("Error").getAsString());
+
+            boolean match = result.get("Match").getAsBoolean();
+            boolean isReady = result.get("IsReady").getAsBoolean();
+            KeyIDProfileCache.getInstance().update(client, username, isReady, result.get("Profiles").getAsInt());
+
+            confidence.add(result.get("Confidence").getAsDouble());
+            fidelity.add(result.get("Fidelity").getAsDouble());
+            evaluated.incrementAndGet();
+            if (match)
+                matched.incrementAndGet();
+            if (!isReady)
+                notReady.incrementAndGet();
+
+            if (debug.messageEnabled())
+            {
+                debug.message("KeyID shadow evaluation for %s: Match=%b, Confidence=%f, Fidelity=%f, Profiles=%d, " +
+                              "IsReady=%b",
+                              username,
+                              match,
+                              result.get("Confidence").getAsDouble(),
+                              result.get("Fidelity").getAsDouble(),
+                              result.get("Profiles").getAsInt(),
+                              isReady);
+            }
+
+            if (resetProfile)
+                KeyIDProfileResetQueue.getInstance().submit(client, breaker, timeout, username, tsData, !match);
+        }
+        catch (Exception e)
+        {
+            errors.incrementAndGet();
+            debug.warning("KeyID shadow evaluation for %s failed: %s", username, e.getMessage());
+
+            if (spool != null && KeyIDEnrollmentSpool.isUnsent(e) && spool.append(username, tsData))
+                debug.warning("KeyID enrollment sample for %s spooled", username);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces duplicate evaluations of the same submission, such as a double-clicked login button or a client retry.
+ *
+ * Evaluations are keyed by backend, variant, username and a SHA-256 digest of the tsData. The first evaluation runs,
+ * and evaluations of the same key that arrive while it runs wait for it and share its result or failure. Results are
+ * not kept once the evaluation completes, so a later resubmission is evaluated, and replay checked, on its own.
+ *
+ * @param <V> evaluation result
+ */
+public final class KeyIDSingleFlight<V>
+{
+    private final Map<Key, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+    private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(KeyIDSingleFlight::sha256);
+    private final LongAdder joinedInFlight = new LongAdder();
+
+    /**
+     * Runs an evaluation, or shares the result of a duplicate that is running.
+     * @param client        KeyID backend
+     * @param variant       configuration the result depends on besides the backend
+     * @param username      username
+     * @param tsData        tsData
+     * @param deadline      time in epoch milliseconds by which a shared result is needed
+     * @param evaluation    evaluation to run if there is no duplicate
+     * @return              evaluation result
+     * @throws Exception    if the evaluation failed or a shared result did not arrive before the deadline
+     */
+    public V execute(KeyIDBackend client, Object variant, String username, String tsData, long deadline,
+                     Callable<V> evaluation) throws Exception
+    {
+        Key key = new Key(new KeyIDUserKey(client, username), variant, digest(tsData));
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = flights.putIfAbsent(key, flight);
+
+        if (existing != null)
+        {
+            joinedInFlight.increment();
+            return await(existing, deadline);
+        }
+
+        try
+        {
+            V result = evaluation.call();
+            flights.remove(key, flight);
+            flight.complete(result);
+            return result;
+        }
+        catch (Exception | Error e)
+        {
+            flights.remove(key, flight);
+            flight.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Number of evaluations that waited for a running duplicate.
+     */
+    public long getJoinedInFlight()
+    {
+        return joinedInFlight.sum();
+    }
+
+    private static <V> V await(CompletableFuture<V> flight, long deadline) throws Exception
+    {
+        try
+        {
+            return flight.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            throw new KeyIDTimeoutException("Duplicate KeyID evaluation did not complete within the timeout");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    private byte[] digest(String tsData)
+    {
+        MessageDigest digest = digests.get();
+        digest.reset();
+        return digest.digest(tsData.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static MessageDigest sha256()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Key
+    {
+        private final KeyIDUserKey user;
+        private final Object variant;
+        private final byte[] digest;
+        private final int hash;
+
+        private Key(KeyIDUserKey user, Object variant, byte[] digest)
+        {
+            this.user = user;
+            this.variant = variant;
+            this.digest = digest;
+            this.hash = 31 * (31 * user.hashCode() + Objects.hashCode(variant)) + Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key))
+                return false;
+
+            Key other = (Key) o;
+            return user.equals(other.user) && Objects.equals(variant, other.variant) &&
+                   Arrays.equals(digest, other.digest);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import java.util.List;
+
+/**
+ * Exports tracing spans, for example to a file or an OpenTelemetry collector.
+ *
+ * Spans are exported in batches from a single background thread. Implementations are selected with the
+ * {@value KeyIDTracer#EXPORTER_PROPERTY} system property and need a public no-argument constructor.
+ */
+public interface KeyIDSpanExporter
+{
+    /**
+     * Exports a batch of ended spans.
+     * @param spans spans
+     * @throws Exception if the batch could not be exported, it is then dropped
+     */
+    void export(List<KeyIDTracer.Span> spans) throws Exception;
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Encrypts enrollment spool records at rest.
+ *
+ * Samples are spooled only if the {@value KeyIDEnrollmentSpool#CIPHER_PROPERTY} system property names an
+ * implementation with a public no-argument constructor. Implementations must be thread-safe, and must keep decrypting
+ * records written before a key rotation until the spool has drained.
+ */
+public interface KeyIDSpoolCipher
+{
+    /**
+     * Encrypts a record.
+     * @param plaintext serialized record
+     * @return          encrypted record
+     * @throws GeneralSecurityException if the record cannot be encrypted
+     */
+    byte[] encrypt(byte[] plaintext) throws GeneralSecurityException;
+
+    /**
+     * Decrypts a record.
+     * @param ciphertext    encrypted record
+     * @return              serialized record
+     * @throws GeneralSecurityException if the record cannot be decrypted or was tampered with
+     */
+    byte[] decrypt(byte[] ciphertext) throws GeneralSecurityException;
+}
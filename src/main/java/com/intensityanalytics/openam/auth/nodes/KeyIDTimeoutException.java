@@ -0,0 +1,40 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+
+/**
+ * Thrown when a KeyID web service call does not complete within the time budget of the authentication.
+ */
+public class KeyIDTimeoutException extends NodeProcessException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final boolean called;
+
+    public KeyIDTimeoutException(String message)
+    {
+        this(message, true);
+    }
+
+    /**
+     * @param message   detail message
+     * @param called    whether the call was made, false if the time budget was used up before
+     */
+    public KeyIDTimeoutException(String message, boolean called)
+    {
+        super(message);
+        this.called = called;
+    }
+
+    /**
+     * Whether the call was made before the time budget was used up.
+     */
+    public boolean isCalled()
+    {
+        return called;
+    }
+}
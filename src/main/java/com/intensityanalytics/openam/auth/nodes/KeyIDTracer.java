@@ -0,0 +1,382 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import static com.intensityanalytics.openam.auth.nodes.Utility.daemonThreadFactory;
+
+/**
+ * Records the phases of KeyID authentications as tracing spans in the OpenTelemetry data model.
+ *
+ * A trace covers one authentication: the collector starts it on the first visit and keeps its id in shared state, so
+ * the submission and the KeyID node add their spans to it. The sampling decision is made when the trace starts, with
+ * the rate of the {@value #SAMPLE_RATE_PROPERTY} system property, and tracing is off while the rate is 0. Ended spans
+ * are buffered and exported in batches by a background thread; spans that arrive while the buffer is full are dropped
+ * and counted.
+ *
+ * Spans are exported to the KeyIDSpanExporter named by {@value #EXPORTER_PROPERTY}, otherwise to the OTLP/HTTP
+ * endpoint in {@value #ENDPOINT_PROPERTY}, otherwise as OTLP JSON lines to the file in {@value #FILE_PROPERTY}.
+ */
+public final class KeyIDTracer
+{
+    public static final String SAMPLE_RATE_PROPERTY = "com.intensityanalytics.keyid.tracing.sampleRate";
+    public static final String EXPORTER_PROPERTY = "com.intensityanalytics.keyid.tracing.exporter";
+    public static final String ENDPOINT_PROPERTY = "com.intensityanalytics.keyid.tracing.endpoint";
+    public static final String FILE_PROPERTY = "com.intensityanalytics.keyid.tracing.file";
+    private final static String DEBUG_FILE = "KeyIDNode";
+    private static final KeyIDLog debug = KeyIDLog.getInstance(DEBUG_FILE);
+    private static final int CAPACITY = 8192;
+    private static final int BATCH_SIZE = 512;
+    private static final long EPOCH_NANOS = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    private static final long NANO_TIME = System.nanoTime();
+    private static final Span NOOP = new Span(null, null, null, null, 0);
+    private static final KeyIDTracer INSTANCE = createInstance();
+
+    private final double sampleRate;
+    private final BlockingQueue<Span> buffer = new ArrayBlockingQueue<>(CAPACITY);
+    private final AtomicLong exported = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final KeyIDSpanExporter exporter;
+
+    /**
+     * @param sampleRate    fraction of authentications traced
+     * @param exporter      exporter of ended spans, or null to disable tracing
+     */
+    KeyIDTracer(double sampleRate, KeyIDSpanExporter exporter)
+    {
+        this.sampleRate = sampleRate;
+        this.exporter = sampleRate > 0 ? exporter : null;
+
+        if (exporter != null)
+        {
+            Thread thread = daemonThreadFactory("KeyIDTracer").newThread(this::export);
+            thread.start();
+        }
+    }
+
+    public static KeyIDTracer getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts a trace if this authentication is sampled.
+     * @return trace id, or null if the authentication is not traced
+     */
+    public String startTrace()
+    {
+        if (exporter == null || ThreadLocalRandom.current().nextDouble() >= sampleRate)
+            return null;
+
+        return id(16);
+    }
+
+    /**
+     * Starts a span at the top of a trace now.
+     * @param traceId   trace id, or null if the authentication is not traced
+     * @param name      span name
+     * @return          span, which does nothing if the authentication is not traced
+     */
+    public Span start(String traceId, String name)
+    {
+        return start(traceId, null, name, now());
+    }
+
+    /**
+     * Starts a span at the top of a trace at an earlier time.
+     * @param traceId       trace id, or null if the authentication is not traced
+     * @param name          span name
+     * @param epochMillis   start time in epoch milliseconds
+     * @return              span, which does nothing if the authentication is not traced
+     */
+    public Span start(String traceId, String name, long epochMillis)
+    {
+        return start(traceId, null, name, TimeUnit.MILLISECONDS.toNanos(epochMillis));
+    }
+
+    private Span start(String traceId, String parentSpanId, String name, long epochNanos)
+    {
+        if (traceId == null || exporter == null)
+            return NOOP;
+
+        return new Span(this, traceId, parentSpanId, name, epochNanos);
+    }
+
+    public long getExported()
+    {
+        return exported.get();
+    }
+
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Encodes spans as an OTLP/JSON ExportTraceServiceRequest.
+     * @param spans spans
+     * @return      request
+     */
+    public static JsonObject toOtlp(List<Span> spans)
+    {
+        JsonArray encoded = new JsonArray();
+
+        for (Span span : spans)
+            encoded.add(span.toOtlp());
+
+        JsonObject scope = new JsonObject();
+        scope.addProperty("name", "com.intensityanalytics.keyid");
+
+        JsonObject scopeSpans = new JsonObject();
+        scopeSpans.add("scope", scope);
+        scopeSpans.add("spans", encoded);
+
+        JsonArray scopes = new JsonArray();
+        scopes.add(scopeSpans);
+
+        JsonArray resourceAttributes = new JsonArray();
+        resourceAttributes.add(attribute("service.name", "openam-keyid"));
+
+        JsonObject resource = new JsonObject();
+        resource.add("attributes", resourceAttributes);
+
+        JsonObject resourceSpans = new JsonObject();
+        resourceSpans.add("resource", resource);
+        resourceSpans.add("scopeSpans", scopes);
+
+        JsonArray resources = new JsonArray();
+        resources.add(resourceSpans);
+
+        JsonObject request = new JsonObject();
+        request.add("resourceSpans", resources);
+        return request;
+    }
+
+    private void end(Span span)
+    {
+        if (!buffer.offer(span))
+            dropped.incrementAndGet();
+    }
+
+    private void export()
+    {
+        List<Span> batch = new ArrayList<>(BATCH_SIZE);
+
+        while (true)
+        {
+            try
+            {
+                batch.add(buffer.take());
+                buffer.drainTo(batch, BATCH_SIZE - 1);
+                exporter.export(batch);
+                exported.addAndGet(batch.size());
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            catch (Exception e)
+            {
+                dropped.addAndGet(batch.size());
+                debug.error("Unable to export KeyID tracing spans", e);
+            }
+
+            batch.clear();
+        }
+    }
+
+    private static KeyIDTracer createInstance()
+    {
+        double sampleRate = Double.parseDouble(System.getProperty(SAMPLE_RATE_PROPERTY, "0"));
+        return new KeyIDTracer(sampleRate, sampleRate > 0 ? createExporter() : null);
+    }
+
+    private static KeyIDSpanExporter createExporter()
+    {
+        String className = System.getProperty(EXPORTER_PROPERTY);
+        String endpoint = System.getProperty(ENDPOINT_PROPERTY);
+        String file = System.getProperty(FILE_PROPERTY);
+
+        try
+        {
+            if (className != null && !className.isEmpty())
+                return (KeyIDSpanExporter) Class.forName(className).newInstance();
+            if (endpoint != null && !endpoint.isEmpty())
+                return new KeyIDOtlpHttpSpanExporter(endpoint);
+            if (file != null && !file.isEmpty())
+                return new KeyIDFileSpanExporter(file);
+
+            debug.error("KeyID tracing is sampled but no span exporter, endpoint or file is configured");
+        }
+        catch (Exception e)
+        {
+            debug.error("Unable to create KeyID span exporter, tracing is disabled", e);
+        }
+
+        return null;
+    }
+
+    private static long now()
+    {
+        return EPOCH_NANOS + System.nanoTime() - NANO_TIME;
+    }
+
+    private static String id(int bytes)
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        StringBuilder id = new StringBuilder(bytes * 2);
+
+        for (int i = 0; i < bytes; i++)
+            id.append(String.format("%02x", random.nextInt(256)));
+
+        return id.toString();
+    }
+
+    private static JsonObject attribute(String key, Object value)
+    {
+        JsonObject encoded = new JsonObject();
+
+        if (value instanceof Boolean)
+            encoded.addProperty("boolValue", (Boolean) value);
+        else if (value instanceof Double || value instanceof Float)
+            encoded.addProperty("doubleValue", ((Number) value).doubleValue());
+        else if (value instanceof Number)
+            encoded.addProperty("intValue", value.toString());
+        else
+            encoded.addProperty("stringValue", String.valueOf(value));
+
+        JsonObject attribute = new JsonObject();
+        attribute.addProperty("key", key);
+        attribute.add("value", encoded);
+        return attribute;
+    }
+
+    /**
+     * A timed phase of an authentication. Spans are used by one thread at a time and end once.
+     */
+    public static final class Span
+    {
+        private final KeyIDTracer tracer;
+        private final String traceId;
+        private final String spanId;
+        private final String parentSpanId;
+        private final String name;
+        private final long start;
+        private long end;
+        private Map<String, Object> attributes;
+        private String error;
+
+        private Span(KeyIDTracer tracer, String traceId, String parentSpanId, String name, long start)
+        {
+            this.tracer = tracer;
+            this.traceId = traceId;
+            this.spanId = tracer == null ? null : id(8);
+            this.parentSpanId = parentSpanId;
+            this.name = name;
+            this.start = start;
+        }
+
+        /**
+         * Starts a child span now.
+         * @param name  span name
+         * @return      span, which does nothing if this span is not recorded
+         */
+        public Span child(String name)
+        {
+            return tracer == null ? NOOP : tracer.start(traceId, spanId, name, now());
+        }
+
+        /**
+         * Whether the span is recorded, so callers can skip computing attributes otherwise.
+         */
+        public boolean isRecording()
+        {
+            return tracer != null;
+        }
+
+        /**
+         * Sets an attribute.
+         * @param key   attribute name
+         * @param value String, Boolean or Number value
+         * @return      this span
+         */
+        public Span setAttribute(String key, Object value)
+        {
+            if (tracer != null && value != null)
+            {
+                if (attributes == null)
+                    attributes = new LinkedHashMap<>();
+                attributes.put(key, value);
+            }
+
+            return this;
+        }
+
+        /**
+         * Marks the span as failed.
+         * @param e exception the phase failed with
+         * @return  this span
+         */
+        public Span setError(Exception e)
+        {
+            if (tracer != null)
+                error = e.getClass().getSimpleName() + (e.getMessage() == null ? "" : ": " + e.getMessage());
+
+            return this;
+        }
+
+        public long getStartMillis()
+        {
+            return TimeUnit.NANOSECONDS.toMillis(start);
+        }
+
+        public void end()
+        {
+            if (tracer != null && end == 0)
+            {
+                end = now();
+                tracer.end(this);
+            }
+        }
+
+        private JsonObject toOtlp()
+        {
+            JsonObject span = new JsonObject();
+            span.addProperty("traceId", traceId);
+            span.addProperty("spanId", spanId);
+            if (parentSpanId != null)
+                span.addProperty("parentSpanId", parentSpanId);
+            span.addProperty("name", name);
+            span.addProperty("kind", 1);
+            span.addProperty("startTimeUnixNano", Long.toString(start));
+            span.addProperty("endTimeUnixNano", Long.toString(end));
+
+            JsonArray encoded = new JsonArray();
+            if (attributes != null)
+            {
+                for (Map.Entry<String, Object> attribute : attributes.entrySet())
+                    encoded.add(attribute(attribute.getKey(), attribute.getValue()));
+            }
+            span.add("attributes", encoded);
+
+            JsonObject status = new JsonObject();
+            status.addProperty("code", error == null ? 1 : 2);
+            if (error != null)
+                status.addProperty("message", error);
+            span.add("status", status);
+            return span;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-capped LRU cache of the devices a user recently matched their KeyID profile from.
+ *
+ * The User-Agent header can be forged and a client IP address is shared by every device behind the same NAT or proxy,
+ * so neither identifies the device that matched. A match therefore issues a random trust token that the node keeps in
+ * the journey's shared state and in the AM session the journey creates, and a device is identified by a fingerprint
+ * of that token, the User-Agent header and the client IP address. A user keeps up to {@value #MAX_DEVICES} devices.
+ * A match is trusted for the window and above the confidence floor the reading node is configured with. Trust is
+ * revoked for all devices of a user when a login fails to match or the profile is reset other than right after a
+ * match.
+ */
+public final class KeyIDTrustWindow
+{
+    private static final int MAX_DEVICES = 4;
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final KeyIDTrustWindow INSTANCE =
+        new KeyIDTrustWindow(Integer.getInteger("com.intensityanalytics.keyid.trustWindow.maxEntries", 100000));
+
+    private final Map<KeyIDUserKey, Devices> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private KeyIDTrustWindow(int maxEntries)
+    {
+        entries = new LinkedHashMap<KeyIDUserKey, Devices>(1024, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<KeyIDUserKey, Devices> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public static KeyIDTrustWindow getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Issues a trust token for a match.
+     * @return  random token
+     */
+    public static String newToken()
+    {
+        byte[] token = new byte[16];
+        RANDOM.nextBytes(token);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+    }
+
+    /**
+     * Computes the fingerprint of the request headers of a device, which alone do not identify it.
+     * @param userAgent User-Agent header, or null
+     * @param clientIp  client IP address, or null
+     * @return          fingerprint
+     */
+    public static long fingerprint(String userAgent, String clientIp)
+    {
+        MessageDigest digest = DIGEST.get();
+        digest.update(String.valueOf(userAgent).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        return toLong(digest.digest(String.valueOf(clientIp).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Computes the fingerprint of a device.
+     * @param token     trust token issued at the match
+     * @param headers   fingerprint of the request headers
+     * @return          fingerprint
+     */
+    public static long fingerprint(String token, long headers)
+    {
+        MessageDigest digest = DIGEST.get();
+        digest.update(token.getBytes(StandardCharsets.UTF_8));
+
+        for (int i = 56; i >= 0; i -= 8)
+            digest.update((byte) (headers >>> i));
+
+        return toLong(digest.digest());
+    }
+
+    /**
+     * Checks whether a user matched from a device recently.
+     * @param client        KeyID backend
+     * @param username      username
+     * @param fingerprint   device fingerprint
+     * @param windowMs      maximum age of the match in milliseconds
+     * @param floor         minimum confidence of the match
+     * @return              whether the match is trusted
+     */
+    public boolean isTrusted(KeyIDBackend client, String username, long fingerprint, long windowMs, double floor)
+    {
+        long cutoff = System.currentTimeMillis() - windowMs;
+        boolean trusted = false;
+
+        synchronized (entries)
+        {
+            Devices devices = entries.get(new KeyIDUserKey(client, username));
+
+            if (devices != null)
+            {
+                int i = devices.indexOf(fingerprint);
+                trusted = i >= 0 && devices.matched[i] >= cutoff && devices.confidence[i] >= floor;
+            }
+        }
+
+        (trusted ? hits : misses).incrementAndGet();
+        return trusted;
+    }
+
+    /**
+     * Records a successful match. The device replaces the user's least recently matched one if the user has
+     * {@value #MAX_DEVICES} already.
+     * @param client        KeyID backend
+     * @param username      username
+     * @param fingerprint   device fingerprint
+     * @param confidence    confidence of the match
+     */
+    public void record(KeyIDBackend client, String username, long fingerprint, double confidence)
+    {
+        long now = System.currentTimeMillis();
+
+        synchronized (entries)
+        {
+            entries.computeIfAbsent(new KeyIDUserKey(client, username), k -> new Devices())
+            .put(fingerprint, now, confidence);
+        }
+    }
+
+    /**
+     * Revokes the trust in all devices of a user, used when a login fails to match or the profile is reset.
+     * @param client    KeyID backend
+     * @param username  username
+     */
+    public void invalidate(KeyIDBackend client, String username)
+    {
+        synchronized (entries)
+        {
+            if (entries.remove(new KeyIDUserKey(client, username)) != null)
+                invalidations.incrementAndGet();
+        }
+    }
+
+    private static long toLong(byte[] hash)
+    {
+        long value = 0;
+
+        for (int i = 0; i < 8; i++)
+            value = value << 8 | (hash[i] & 0xff);
+
+        return value;
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getInvalidations()
+    {
+        return invalidations.get();
+    }
+
+    public int size()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    /**
+     * The recently matched devices of a user, in parallel arrays.
+     */
+    private static final class Devices
+    {
+        private final long[] fingerprints = new long[MAX_DEVICES];
+        private final long[] matched = new long[MAX_DEVICES];
+        private final double[] confidence = new double[MAX_DEVICES];
+        private int size;
+
+        private int indexOf(long fingerprint)
+        {
+            for (int i = 0; i < size; i++)
+            {
+                if (fingerprints[i] == fingerprint)
+                    return i;
+            }
+
+            return -1;
+        }
+
+        private void put(long fingerprint, long now, double score)
+        {
+            int i = indexOf(fingerprint);
+
+            if (i < 0 && size < MAX_DEVICES)
+            {
+                i = size++;
+            }
+            else if (i < 0)
+            {
+                i = 0;
+                for (int j = 1; j < size; j++)
+                {
+                    if (matched[j] < matched[i])
+                        i = j;
+                }
+            }
+
+            fingerprints[i] = fingerprint;
+            matched[i] = now;
+            confidence[i] = score;
+        }
+    }
+}
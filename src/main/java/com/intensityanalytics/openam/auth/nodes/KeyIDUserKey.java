@@ -0,0 +1,37 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+
+/**
+ * Identifies a user's profile on the KeyID service behind a shared backend.
+ */
+final class KeyIDUserKey
+{
+    private final KeyIDBackend client;
+    private final String username;
+
+    KeyIDUserKey(KeyIDBackend client, String username)
+    {
+        this.client = client;
+        this.username = username;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof KeyIDUserKey))
+            return false;
+
+        KeyIDUserKey other = (KeyIDUserKey) o;
+        return client == other.client && username.equals(other.username);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * System.identityHashCode(client) + username.hashCode();
+    }
+}
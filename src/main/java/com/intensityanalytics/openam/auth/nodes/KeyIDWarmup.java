@@ -0,0 +1,216 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static com.intensityanalytics.openam.auth.nodes.Utility.daemonThreadFactory;
+
+/**
+ * Warms up the KeyID login path in the background so the first logins after a restart do not pay for it.
+ *
+ * When enabled with the {@value #ENABLED_PROPERTY} system property, startup exercises the JSON handling of KeyID
+ * results until the JIT has compiled it, and connects to the endpoints listed in the {@value #URLS_PROPERTY} system
+ * property. Endpoints configured in nodes are connected to once, when the shared client for them is created.
+ * Connecting resolves the host and sends a GET to the endpoint, which sets up a keep-alive connection and a TLS
+ * session; no login is made, because a synthetic login would enroll its sample. The plugin is ready once startup
+ * warm-up has completed, whether or not the endpoints could be reached.
+ */
+public final class KeyIDWarmup
+{
+    public static final String ENABLED_PROPERTY = "com.intensityanalytics.keyid.warmup";
+    public static final String URLS_PROPERTY = "com.intensityanalytics.keyid.warmup.urls";
+    private final static String DEBUG_FILE = "KeyIDNode";
+    private static final KeyIDLog debug = KeyIDLog.getInstance(DEBUG_FILE);
+    private static final int ITERATIONS = 20000;
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final String RESULT = "{\"Error\":\"\",\"Match\":true,\"IsReady\":true,\"Confidence\":87.5," +
+                                         "\"Fidelity\":72.25,\"Profiles\":12,\"EntityID\":\"warmup\"}";
+    private static final KeyIDWarmup INSTANCE = new KeyIDWarmup(Boolean.getBoolean(ENABLED_PROPERTY));
+
+    private final boolean enabled;
+    private final Set<String> endpoints = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ExecutorService executor;
+    private volatile boolean started;
+
+    KeyIDWarmup(boolean enabled)
+    {
+        this.enabled = enabled;
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                                                         daemonThreadFactory("KeyIDWarmup"));
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+    }
+
+    public static KeyIDWarmup getInstance()
+    {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Whether startup warm-up has completed, or is disabled.
+     */
+    public boolean isReady()
+    {
+        return !enabled || (started && pending.get() == 0);
+    }
+
+    /**
+     * Starts the startup warm-up in the background. Subsequent calls do nothing.
+     */
+    public synchronized void start()
+    {
+        if (!enabled || started)
+            return;
+
+        pending.incrementAndGet();
+        started = true;
+        executor.execute(() -> {
+            long begin = System.nanoTime();
+
+            try
+            {
+                // initializes the shared components of the login path
+                KeyIDGateway.getInstance();
+                KeyIDClientRegistry.getInstance();
+                KeyIDEventLog.getInstance();
+                exerciseResultHandling();
+                debug.message("KeyID warm-up of the login path completed in %d ms",
+                              TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+            }
+            catch (Exception e)
+            {
+                debug.error("KeyID warm-up failed", e);
+            }
+            finally
+            {
+                pending.decrementAndGet();
+            }
+        });
+
+        warmEndpoints(System.getProperty(URLS_PROPERTY, ""), true);
+    }
+
+    /**
+     * Connects to endpoints in the background, unless they were connected to before.
+     * @param urls  endpoint URLs separated by commas or whitespace, or null
+     */
+    public void warmEndpoints(String urls)
+    {
+        warmEndpoints(urls, false);
+    }
+
+    private void warmEndpoints(String urls, boolean startup)
+    {
+        if (!enabled || urls == null || urls.trim().isEmpty())
+            return;
+
+        for (String url : KeyIDRoutingBackend.parseEndpoints(urls))
+        {
+            if (!endpoints.add(url))
+                continue;
+
+            if (startup)
+                pending.incrementAndGet();
+
+            executor.execute(() -> {
+                try
+                {
+                    connect(url);
+                }
+                finally
+                {
+                    if (startup)
+                        pending.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    private static void connect(String url)
+    {
+        long begin = System.nanoTime();
+
+        try
+        {
+            URL endpoint = new URL(url);
+            InetAddress.getAllByName(endpoint.getHost());
+
+            HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(CONNECT_TIMEOUT);
+            int status = connection.getResponseCode();
+
+            // reading the whole response returns the connection to the keep-alive cache
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+
+            if (in != null)
+            {
+                try (InputStream body = in)
+                {
+                    byte[] buffer = new byte[4096];
+                    while (body.read(buffer) != -1)
+                    {
+                        // discard
+                    }
+                }
+            }
+
+            debug.message("KeyID endpoint %s warmed up in %d ms, HTTP %d", url,
+                          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin), status);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            debug.warning("KeyID endpoint %s could not be warmed up: %s", url, e.getMessage());
+        }
+    }
+
+    /**
+     * Parses and reads a KeyID result, and hashes usernames, as every login does.
+     */
+    private static void exerciseResultHandling() throws Exception
+    {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        double sink = 0;
+
+        for (int i = 0; i < ITERATIONS; i++)
+        {
+            JsonObject result = new JsonParser().parse(RESULT).getAsJsonObject();
+
+            if (result.get("Error").getAsString().isEmpty() && result.get("Match").getAsBoolean() &&
+                result.get("IsReady").getAsBoolean())
+            {
+                sink += result.get("Confidence").getAsDouble() + result.get("Fidelity").getAsDouble() +
+                        result.get("Profiles").getAsInt();
+            }
+
+            sink += digest.digest(("warmup" + i).getBytes(StandardCharsets.UTF_8))[0];
+            sink += result.toString().length();
+        }
+
+        if (Double.isNaN(sink))
+            debug.message("KeyID warm-up produced no result");
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Decodes the compact tsData encoding produced by the collector script when compact typing data is enabled.
+ *
+ * The script LZW-compresses the UTF-8 bytes of the tsData and writes the codes most significant bit first as base64url
+ * characters, 6 bits each, prefixed with {@value #PREFIX}. The width of the n-th code is the bit length of 256 + n,
+ * from 9 bits up to 16, and no codes are added once the dictionary has 65536 entries. The concatenated tsData
+ * repeats the same timing fields for every key event, which LZW compresses well, and the result can be posted without
+ * escaping.
+ *
+ * Decoding reads the base64url characters directly into the LZW decoder, so no intermediate buffer is created. The
+ * dictionary tables are sized from the number of codes the encoded length can hold, so a typical sample needs a few
+ * kilobytes and nothing is kept between calls.
+ */
+public final class TsDataCodec
+{
+    public static final String PREFIX = "kz1.";
+    private static final int FIRST_CODE = 256;
+    private static final int MAX_CODES = 65536;
+    private static final int MAX_WIDTH = 16;
+    private static final int MIN_OUT = 1024;
+    private static final byte[] BASE64URL = new byte[128];
+
+    static
+    {
+        Arrays.fill(BASE64URL, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+        for (int i = 0; i < alphabet.length(); i++)
+            BASE64URL[alphabet.charAt(i)] = (byte) i;
+    }
+
+    private TsDataCodec()
+    {
+    }
+
+    /**
+     * Whether the tsData is in the compact encoding.
+     */
+    public static boolean isEncoded(String tsData)
+    {
+        return tsData != null && tsData.startsWith(PREFIX);
+    }
+
+    /**
+     * Decodes compact tsData, tsData in the original encoding is returned unchanged.
+     * @param tsData    tsData
+     * @param maxLength maximum length in bytes of the decoded tsData
+     * @return          tsData in the original encoding
+     * @throws IllegalArgumentException if the tsData is not validly encoded or decodes to more than maxLength bytes
+     */
+    public static String decode(String tsData, int maxLength)
+    {
+        if (!isEncoded(tsData))
+            return tsData;
+
+        // every code takes at least 9 bits, and each code after the first adds a dictionary entry
+        int entries = Math.min(MAX_CODES, FIRST_CODE + (tsData.length() - PREFIX.length()) * 6 / 9);
+        int[] prefix = new int[entries];
+        byte[] suffix = new byte[entries];
+        int[] length = new int[entries];
+        byte[] out = new byte[Math.max(0, Math.min(maxLength, Math.max(MIN_OUT, tsData.length() * 4)))];
+        int size = 0;
+        int next = FIRST_CODE;
+        int width = 9;
+        int codes = 0;
+        int previous = -1;
+        int bits = 0;
+        int accumulator = 0;
+
+        for (int i = PREFIX.length(); i < tsData.length(); i++)
+        {
+            char c = tsData.charAt(i);
+            int value = c < 128 ? BASE64URL[c] : -1;
+
+            if (value < 0)
+                throw new IllegalArgumentException("Invalid character in compact tsData");
+
+            accumulator = (accumulator << 6) | value;
+            bits += 6;
+
+            if (bits < width)
+                continue;
+
+            bits -= width;
+            int code = (accumulator >>> bits) & ((1 << width) - 1);
+            accumulator &= (1 << bits) - 1;
+
+            int entry;
+            int first;
+
+            if (code < next)
+            {
+                entry = code;
+            }
+            else if (code == next && previous >= 0)
+            {
+                // the code being defined by this step, the previous entry followed by its own first byte
+                entry = -1;
+            }
+            else
+            {
+                throw new IllegalArgumentException("Invalid code in compact tsData");
+            }
+
+            int entryLength = entry < 0 ? length(length, previous) + 1 : length(length, entry);
+
+            if (size + entryLength > maxLength)
+                throw new IllegalArgumentException("Compact tsData decodes to more than " + maxLength + " bytes");
+
+            if (size + entryLength > out.length)
+                out = Arrays.copyOf(out, Math.max(out.length * 2, size + entryLength));
+
+            if (entry >= 0)
+            {
+                first = write(out, size, entry, prefix, suffix, length);
+            }
+            else
+            {
+                first = write(out, size, previous, prefix, suffix, length);
+                out[size + entryLength - 1] = (byte) first;
+            }
+
+            if (previous >= 0 && next < MAX_CODES)
+            {
+                prefix[next] = previous;
+                suffix[next] = (byte) first;
+                length[next] = length(length, previous) + 1;
+                next++;
+            }
+
+            previous = entry >= 0 ? entry : next - 1;
+            size += entryLength;
+            codes++;
+
+            if (FIRST_CODE + codes >= 1 << width && width < MAX_WIDTH)
+                width++;
+        }
+
+        return new String(out, 0, size, StandardCharsets.UTF_8);
+    }
+
+    private static int length(int[] length, int code)
+    {
+        return code < FIRST_CODE ? 1 : length[code];
+    }
+
+    /**
+     * Writes the bytes of a dictionary entry by following its prefixes back to a single byte.
+     * @return first byte of the entry
+     */
+    private static int write(byte[] out, int offset, int code, int[] prefix, byte[] suffix, int[] length)
+    {
+        int position = offset + length(length, code) - 1;
+
+        while (code >= FIRST_CODE)
+        {
+            out[position--] = suffix[code];
+            code = prefix[code];
+        }
+
+        out[position] = (byte) code;
+        return code;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+/**
+ * Keeps tsData on the server so only a compact handle travels in the authentication shared state.
+ *
+ * Deployments with several AM servers must use an implementation backed by a store every server can reach, because the
+ * collector and the KeyID node may run on different servers. Implementations must be thread-safe and are selected with
+ * the {@value TsDataStores#STORE_PROPERTY} system property.
+ */
+public interface TsDataStore
+{
+    /**
+     * Stores tsData.
+     * @param tsData    tsData
+     * @return          handle to resolve the tsData with
+     */
+    String put(String tsData);
+
+    /**
+     * Resolves a handle and discards the stored tsData, so each handle resolves once.
+     * @param handle    handle returned by put
+     * @return          tsData, or null if it was already resolved, expired or was evicted
+     */
+    String take(String handle);
+
+    /**
+     * Discards stored tsData.
+     * @param handle    handle returned by put
+     */
+    void remove(String handle);
+}
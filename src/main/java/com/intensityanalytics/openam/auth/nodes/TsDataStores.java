@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import com.sun.identity.shared.debug.Debug;
+
+/**
+ * Provides the TsDataStore used by the collector and KeyID nodes.
+ *
+ * The in-memory store is used unless the {@value #STORE_PROPERTY} system property names a TsDataStore implementation
+ * with a public no-argument constructor, or a store is installed with setStore.
+ */
+public final class TsDataStores
+{
+    public static final String STORE_PROPERTY = "com.intensityanalytics.keyid.tsDataStore";
+    private final static String DEBUG_FILE = "KeyIDNode";
+    private static final Debug debug = Debug.getInstance(DEBUG_FILE);
+    private static volatile TsDataStore store;
+
+    private TsDataStores()
+    {
+    }
+
+    public static TsDataStore getStore()
+    {
+        TsDataStore current = store;
+
+        if (current == null)
+        {
+            synchronized (TsDataStores.class)
+            {
+                if (store == null)
+                    store = createStore();
+                current = store;
+            }
+        }
+
+        return current;
+    }
+
+    public static void setStore(TsDataStore tsDataStore)
+    {
+        store = tsDataStore;
+    }
+
+    private static TsDataStore createStore()
+    {
+        String className = System.getProperty(STORE_PROPERTY);
+
+        if (className != null && !className.isEmpty())
+        {
+            try
+            {
+                return (TsDataStore) Class.forName(className).newInstance();
+            }
+            catch (Exception e)
+            {
+                debug.error(String.format("Unable to create tsData store %s, using the in-memory store: %s",
+                                          className, e.getMessage()));
+            }
+        }
+
+        return new InMemoryTsDataStore(Integer.getInteger(STORE_PROPERTY + ".maxEntries", 100000),
+                                       Long.getLong(STORE_PROPERTY + ".maxBytes", 64L * 1024 * 1024),
+                                       Long.getLong(STORE_PROPERTY + ".ttl", 300000L));
+    }
+}
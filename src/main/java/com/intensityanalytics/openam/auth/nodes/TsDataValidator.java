@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+/**
+ * Rejects tsData that cannot produce a useful evaluation before it is sent to the KeyID web service.
+ *
+ * The concatenated tsData encoding belongs to the KeyID JavaScript library, so only format independent invariants are
+ * checked: size, printable ASCII content, the number of numeric fields, which each keystroke event contributes to,
+ * and the magnitude of those fields. Samples are also rejected when the same user submits the same sample again within
+ * the replay window. A check makes a single pass over the tsData and does not allocate.
+ */
+public final class TsDataValidator
+{
+    private static final TsDataValidator INSTANCE = new TsDataValidator();
+
+    // numeric fields longer than an epoch timestamp in milliseconds are not timings
+    private static final int MAX_FIELD_DIGITS = 13;
+    private static final int REPLAY_SLOTS = 1 << 16;
+    private static final int REPLAY_PROBES = 4;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long[] fingerprints = new long[REPLAY_SLOTS];
+    private final long[] expires = new long[REPLAY_SLOTS];
+
+    public enum Result
+    {
+        VALID,
+        EMPTY,
+        TOO_LONG,
+        MALFORMED,
+        TOO_FEW_EVENTS,
+        IMPLAUSIBLE_TIMING,
+        REPLAYED
+    }
+
+    private TsDataValidator()
+    {
+    }
+
+    public static TsDataValidator getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Validates a tsData sample.
+     * @param username          username
+     * @param tsData            tsData
+     * @param maxLength         maximum tsData length
+     * @param minEvents         minimum number of numeric fields
+     * @param replayWindowMs    milliseconds within which a repeated sample is a replay, 0 to disable
+     * @return                  VALID or the reason the sample was rejected
+     */
+    public Result validate(String username, String tsData, int maxLength, int minEvents, long replayWindowMs)
+    {
+        if (tsData == null || tsData.isEmpty())
+            return Result.EMPTY;
+
+        int length = tsData.length();
+
+        if (length > maxLength)
+            return Result.TOO_LONG;
+
+        long hash = hash(FNV_OFFSET, username);
+        int fields = 0;
+        int digits = 0;
+
+        for (int i = 0; i < length; i++)
+        {
+            char c = tsData.charAt(i);
+
+            if (c < 0x20 || c > 0x7e)
+                return Result.MALFORMED;
+
+            if (c >= '0' && c <= '9')
+            {
+                if (++digits > MAX_FIELD_DIGITS)
+                    return Result.IMPLAUSIBLE_TIMING;
+            }
+            else if (digits > 0)
+            {
+                fields++;
+                digits = 0;
+            }
+
+            hash = (hash ^ c) * FNV_PRIME;
+        }
+
+        if (digits > 0)
+            fields++;
+
+        if (fields < minEvents)
+            return Result.TOO_FEW_EVENTS;
+
+        if (replayWindowMs > 0 && isReplay(hash, replayWindowMs))
+            return Result.REPLAYED;
+
+        return Result.VALID;
+    }
+
+    private static long hash(long hash, String value)
+    {
+        if (value != null)
+        {
+            for (int i = 0; i < value.length(); i++)
+                hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+
+        // separates the username from the tsData
+        return (hash ^ 0xff) * FNV_PRIME;
+    }
+
+    /**
+     * Records the sample fingerprint and checks whether it was already seen within the window. The table is a fixed
+     * size, so under heavy load the oldest fingerprints are forgotten before their window ends.
+     */
+    private synchronized boolean isReplay(long fingerprint, long replayWindowMs)
+    {
+        long now = System.currentTimeMillis();
+        int first = (int) (fingerprint ^ (fingerprint >>> 32)) & (REPLAY_SLOTS - 1);
+        int victim = first;
+
+        for (int probe = 0; probe < REPLAY_PROBES; probe++)
+        {
+            int slot = (first + probe) & (REPLAY_SLOTS - 1);
+
+            if (fingerprints[slot] == fingerprint && expires[slot] > now)
+                return true;
+
+            if (expires[slot] < expires[victim])
+                victim = slot;
+        }
+
+        fingerprints[victim] = fingerprint;
+        expires[victim] = now + replayWindowMs;
+        return false;
+    }
+}
@@ -1,14 +1,53 @@
 package com.intensityanalytics.openam.auth.nodes;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Utility
 {
-    public static String exceptionAsString(Exception e)
+    /**
+     * Creates a thread factory for background daemon threads so they never keep AM from shutting down.
+     * @param name  thread name prefix
+     * @return      thread factory
+     */
+    public static ThreadFactory daemonThreadFactory(String name)
     {
-        StringWriter sw = new StringWriter();
-        e.printStackTrace(new PrintWriter(sw));
-        return sw.toString();
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Whether a call failed to connect to the KeyID web service, so the request was never sent.
+     * @param e exception the call failed with
+     */
+    public static boolean isConnectFailure(Throwable e)
+    {
+        for (Throwable cause = e; cause != null; cause = cause.getCause())
+        {
+            if (cause instanceof ConnectException || cause instanceof NoRouteToHostException ||
+                cause instanceof UnknownHostException)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Whether a call failed in this process, for example because an executor was saturated, rather than at the
+     * endpoint, so it says nothing about the endpoint's health.
+     * @param e exception the call failed with
+     */
+    public static boolean isLocalFailure(Throwable e)
+    {
+        return e instanceof RejectedExecutionException || e instanceof KeyIDCircuitOpenException ||
+               e instanceof KeyIDBulkheadException || e instanceof InterruptedException;
     }
 }
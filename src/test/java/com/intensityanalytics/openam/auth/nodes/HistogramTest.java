@@ -0,0 +1,44 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+public class HistogramTest
+{
+    @Test
+    public void percentileIsTheUpperBoundOfItsBucket()
+    {
+        Histogram histogram = new Histogram(10, 100, 1000);
+
+        for (int i = 0; i < 98; i++)
+            histogram.record(5);
+        histogram.record(50);
+        histogram.record(500);
+
+        assertEquals(histogram.getCount(), 100);
+        assertEquals(histogram.getSum(), 98 * 5 + 50 + 500, 0.001);
+        assertEquals(histogram.getPercentile(50), 10.0);
+        assertEquals(histogram.getPercentile(99), 100.0);
+        assertEquals(histogram.getPercentile(100), 1000.0);
+    }
+
+    @Test
+    public void valuesAboveTheLastBoundFallIntoTheOverflowBucket()
+    {
+        Histogram histogram = new Histogram(10);
+        histogram.record(20);
+
+        assertEquals(histogram.getPercentile(50), Double.POSITIVE_INFINITY);
+    }
+
+    @Test
+    public void emptyHistogramReportsZero()
+    {
+        assertEquals(new Histogram(10).getPercentile(99), 0.0);
+    }
+}
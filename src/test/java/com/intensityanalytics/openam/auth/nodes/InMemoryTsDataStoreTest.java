@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+
+import org.testng.annotations.Test;
+
+public class InMemoryTsDataStoreTest
+{
+    @Test
+    public void handleResolvesOnce()
+    {
+        InMemoryTsDataStore store = new InMemoryTsDataStore(10, 1000, 60000);
+        String handle = store.put("tsData");
+
+        assertEquals(store.take(handle), "tsData");
+        assertNull(store.take(handle));
+        assertEquals(store.size(), 0);
+    }
+
+    @Test
+    public void handlesAreUnique()
+    {
+        InMemoryTsDataStore store = new InMemoryTsDataStore(10, 1000, 60000);
+
+        assertNotEquals(store.put("tsData"), store.put("tsData"));
+    }
+
+    @Test
+    public void expiredHandleDoesNotResolve() throws Exception
+    {
+        InMemoryTsDataStore store = new InMemoryTsDataStore(10, 1000, 20);
+        String handle = store.put("tsData");
+
+        Thread.sleep(40);
+
+        assertNull(store.take(handle));
+    }
+
+    @Test
+    public void oldestEntriesAreEvictedBeyondTheEntryLimit()
+    {
+        InMemoryTsDataStore store = new InMemoryTsDataStore(2, 1000, 60000);
+        String first = store.put("first");
+        String second = store.put("second");
+        String third = store.put("third");
+
+        assertEquals(store.size(), 2);
+        assertNull(store.take(first));
+        assertEquals(store.take(second), "second");
+        assertEquals(store.take(third), "third");
+    }
+
+    @Test
+    public void oldestEntriesAreEvictedBeyondTheSizeLimit()
+    {
+        // 20 bytes hold 10 characters
+        InMemoryTsDataStore store = new InMemoryTsDataStore(10, 20, 60000);
+        String first = store.put("123456");
+        String second = store.put("1234");
+        String third = store.put("12");
+
+        assertNull(store.take(first));
+        assertEquals(store.take(second), "1234");
+        assertEquals(store.take(third), "12");
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.annotations.Test;
+
+public class KeyIDAdaptiveTimeoutTest
+{
+    private static final AtomicInteger ENDPOINT = new AtomicInteger();
+
+    @Test
+    public void ceilingAppliesUntilEnoughCallsWereRecorded()
+    {
+        KeyIDAdaptiveTimeout timeout = timeout();
+
+        for (int i = 0; i < 10; i++)
+            timeout.record(100);
+
+        assertEquals(timeout.timeout(99, 2, 50, 5000), 5000);
+    }
+
+    @Test
+    public void timeoutIsThePercentileTimesTheMultiplier()
+    {
+        KeyIDAdaptiveTimeout timeout = timeout();
+
+        for (int i = 1; i <= 100; i++)
+            timeout.record(i);
+
+        assertEquals(timeout.timeout(90, 2, 10, 5000), 180);
+        assertEquals(timeout.getEffectiveTimeout(), 180);
+    }
+
+    @Test
+    public void timeoutIsClampedBetweenTheFloorAndTheCeiling()
+    {
+        KeyIDAdaptiveTimeout timeout = timeout();
+
+        for (int i = 1; i <= 100; i++)
+            timeout.record(i);
+
+        assertEquals(timeout.timeout(50, 1, 200, 5000), 200);
+        assertEquals(timeout.timeout(99, 100, 10, 5000), 5000);
+    }
+
+    @Test
+    public void endpointsShareTheirTimeout()
+    {
+        assertSame(KeyIDAdaptiveTimeout.forEndpoint("http://keyid-shared"),
+                   KeyIDAdaptiveTimeout.forEndpoint("http://keyid-shared"));
+    }
+
+    private static KeyIDAdaptiveTimeout timeout()
+    {
+        return KeyIDAdaptiveTimeout.forEndpoint("http://keyid-" + ENDPOINT.incrementAndGet());
+    }
+}
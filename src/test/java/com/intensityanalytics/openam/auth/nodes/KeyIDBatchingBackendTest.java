@@ -0,0 +1,288 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class KeyIDBatchingBackendTest
+{
+    private static final int LOGINS = 3;
+
+    private HttpServer server;
+    private ExecutorService callers;
+    private final AtomicInteger batches = new AtomicInteger();
+    private final List<String> encodings = Collections.synchronizedList(new ArrayList<>());
+    private volatile int status;
+    private volatile long answerDelay;
+
+    @BeforeMethod
+    public void startServer() throws Exception
+    {
+        batches.set(0);
+        encodings.clear();
+        status = 200;
+        answerDelay = 0;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/batch", this::answer);
+        server.start();
+        callers = Executors.newFixedThreadPool(LOGINS);
+    }
+
+    @AfterMethod
+    public void stopServer()
+    {
+        server.stop(0);
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void batchReturnsTheResultsInOrder() throws Exception
+    {
+        FakeBackend delegate = new FakeBackend();
+
+        try (KeyIDBatchingBackend backend = backend(delegate))
+        {
+            List<JsonObject> results = login(backend, "tsData");
+
+            for (int i = 0; i < LOGINS; i++)
+                assertEquals(results.get(i).get("Username").getAsString(), "user" + i);
+        }
+
+        assertEquals(delegate.calls.get(), 1);
+        assertEquals(batches.get(), 1);
+    }
+
+    @Test
+    public void loneLoginIsSentWithoutWaitingForABatch() throws Exception
+    {
+        FakeBackend delegate = new FakeBackend();
+
+        try (KeyIDBatchingBackend backend = backend(delegate))
+        {
+            long start = System.nanoTime();
+            JsonObject result = backend.login("user0", "tsData", System.currentTimeMillis() + 5000).get();
+
+            assertEquals(result.get("Username").getAsString(), "user0");
+            assertTrue(System.nanoTime() - start < 250000000L, "Lone login waited for the batch delay");
+        }
+
+        assertEquals(delegate.calls.get(), 1);
+        assertEquals(batches.get(), 0);
+    }
+
+    @Test
+    public void batchTimesOutAtTheEarliestDeadline() throws Exception
+    {
+        answerDelay = 3000;
+
+        try (KeyIDBatchingBackend backend = new KeyIDBatchingBackend(new FakeBackend(), url(), new JsonObject(),
+                                                                     10000, 500, 2))
+        {
+            backend.login("primer", "tsData", System.currentTimeMillis() + 5000).get();
+            long start = System.currentTimeMillis();
+            Future<Future<JsonObject>> early = callers.submit(() -> backend.login("user0", "tsData", start + 800));
+            Future<Future<JsonObject>> late = callers.submit(() -> backend.login("user1", "tsData", start + 8000));
+
+            try
+            {
+                late.get().get();
+                fail("Batch answered after the earliest deadline");
+            }
+            catch (ExecutionException e)
+            {
+                assertTrue(e.getCause() instanceof KeyIDTimeoutException, String.valueOf(e.getCause()));
+            }
+
+            assertTrue(System.currentTimeMillis() - start < 2500, "Batch read timeout ignored the earliest deadline");
+            early.get();
+        }
+    }
+
+    @Test
+    public void missingBatchEndpointFallsBackToTheDelegate() throws Exception
+    {
+        FakeBackend delegate = new FakeBackend();
+        long fallbacks = KeyIDBatchingBackend.getFallbacks();
+        status = 404;
+
+        try (KeyIDBatchingBackend backend = backend(delegate))
+        {
+            List<JsonObject> results = login(backend, "tsData");
+
+            for (int i = 0; i < LOGINS; i++)
+                assertEquals(results.get(i).get("Username").getAsString(), "user" + i);
+        }
+
+        assertEquals(delegate.calls.get(), LOGINS + 1);
+        assertEquals(KeyIDBatchingBackend.getFallbacks() - fallbacks, LOGINS);
+    }
+
+    @Test
+    public void compressedBatchRejectedWith415IsSentUncompressed() throws Exception
+    {
+        FakeBackend delegate = new FakeBackend();
+        StringBuilder tsData = new StringBuilder();
+
+        while (tsData.length() < 2048)
+            tsData.append("0,1,2,3,");
+
+        try (KeyIDBatchingBackend backend = backend(delegate))
+        {
+            List<JsonObject> results = login(backend, tsData.toString());
+
+            for (int i = 0; i < LOGINS; i++)
+                assertEquals(results.get(i).get("Username").getAsString(), "user" + i);
+        }
+
+        assertEquals(delegate.calls.get(), 1);
+        assertEquals(encodings, Arrays.asList("gzip", "identity"));
+    }
+
+    /**
+     * Sends a login that goes to the delegate alone, then a login per user concurrently, and returns the results of
+     * the users in order.
+     */
+    private List<JsonObject> login(KeyIDBatchingBackend backend, String tsData) throws Exception
+    {
+        List<Future<JsonObject>> logins = new ArrayList<>();
+        List<JsonObject> results = new ArrayList<>();
+
+        backend.login("primer", tsData, System.currentTimeMillis() + 5000).get();
+
+        for (int i = 0; i < LOGINS; i++)
+        {
+            String username = "user" + i;
+            logins.add(callers.submit(() -> backend.login(username, tsData, System.currentTimeMillis() + 5000)
+                                                   .get()));
+        }
+
+        for (Future<JsonObject> login : logins)
+            results.add(login.get());
+
+        return results;
+    }
+
+    /**
+     * A backend collecting all logins in a single batch.
+     */
+    private KeyIDBatchingBackend backend(KeyIDBackend delegate)
+    {
+        return new KeyIDBatchingBackend(delegate, url(), new JsonObject(), 2000, 500, LOGINS);
+    }
+
+    private String url()
+    {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/batch";
+    }
+
+    /**
+     * Answers HTTP 415 to compressed batches and otherwise the configured status, echoing the usernames on success.
+     */
+    private void answer(HttpExchange exchange) throws IOException
+    {
+        batches.incrementAndGet();
+        String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        boolean compressed = "gzip".equalsIgnoreCase(encoding);
+        encodings.add(compressed ? "gzip" : "identity");
+
+        InputStream in = compressed ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody();
+        JsonArray requests;
+
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8))
+        {
+            requests = new JsonParser().parse(reader).getAsJsonObject().getAsJsonArray("Requests");
+        }
+
+        int code = compressed ? 415 : status;
+
+        try
+        {
+            Thread.sleep(answerDelay);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        if (code != 200)
+        {
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+            return;
+        }
+
+        JsonArray results = new JsonArray();
+
+        for (JsonElement request : requests)
+            results.add(result(request.getAsJsonObject().get("Username").getAsString()));
+
+        JsonObject body = new JsonObject();
+        body.add("Results", results);
+        byte[] content = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, content.length);
+
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(content);
+        }
+    }
+
+    private static JsonObject result(String username)
+    {
+        JsonObject result = new JsonObject();
+        result.addProperty("Username", username);
+        result.addProperty("Match", true);
+        return result;
+    }
+
+    private static final class FakeBackend implements KeyIDBackend
+    {
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public Future<JsonObject> login(String username, String tsData, long deadline)
+        {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture(result(username));
+        }
+
+        @Override
+        public Future<JsonObject> removeProfile(String username, String tsData, long deadline)
+        {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture(result(username));
+        }
+    }
+}
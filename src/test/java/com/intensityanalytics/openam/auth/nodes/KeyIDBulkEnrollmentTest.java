@@ -0,0 +1,153 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import org.testng.annotations.Test;
+
+public class KeyIDBulkEnrollmentTest
+{
+    @Test
+    public void interruptedRunResumesAfterTheCheckpoint() throws Exception
+    {
+        Path file = samples("user1", "user2", "user3", "user4");
+        FakeBackend backend = new FakeBackend(Collections.emptyMap());
+
+        assertEquals(run(file, "enroll", backend), 0);
+        assertEquals(new String(Files.readAllBytes(checkpoint(file)), StandardCharsets.UTF_8), "4");
+
+        Files.write(file, Arrays.asList("user5\ttsData", "user6\ttsData"), StandardCharsets.UTF_8,
+                    StandardOpenOption.APPEND);
+        assertEquals(run(file, "enroll", backend), 0);
+
+        assertEquals(sorted(backend.calls), Arrays.asList("user1", "user2", "user3", "user4", "user5", "user6"));
+        assertEquals(new String(Files.readAllBytes(checkpoint(file)), StandardCharsets.UTF_8), "6");
+    }
+
+    @Test
+    public void enrollmentIsRetriedOnlyWhenTheConnectionFailed() throws Exception
+    {
+        Path file = samples("user1", "user2");
+        Map<String, Exception> failures = new HashMap<>();
+        failures.put("user1", new ConnectException("Connection refused"));
+        failures.put("user2", new IOException("Connection reset"));
+        FakeBackend backend = new FakeBackend(failures);
+
+        assertEquals(run(file, "enroll", backend), 1);
+
+        assertEquals(sorted(backend.calls), Arrays.asList("user1", "user1", "user2"));
+        List<String> failed = Files.readAllLines(file.resolveSibling(file.getFileName() + ".failures"));
+        assertEquals(failed.size(), 1);
+        assertTrue(failed.get(0).startsWith("2\tuser2\t"), failed.get(0));
+    }
+
+    @Test
+    public void removalIsRetriedAfterAnyFailure() throws Exception
+    {
+        Path file = samples("user1");
+        FakeBackend backend = new FakeBackend(Collections.singletonMap("user1", new IOException("Connection reset")));
+
+        assertEquals(run(file, "reset", backend), 0);
+
+        assertEquals(backend.calls, Arrays.asList("user1", "user1"));
+    }
+
+    private static long run(Path file, String operation, KeyIDBackend backend) throws Exception
+    {
+        Map<String, String> options = new HashMap<>();
+        options.put("file", file.toString());
+        options.put("operation", operation);
+        options.put("rate", "0");
+
+        try (KeyIDBulkEnrollment enrollment = new KeyIDBulkEnrollment(options, backend))
+        {
+            return enrollment.run();
+        }
+    }
+
+    private static Path samples(String... usernames) throws IOException
+    {
+        Path file = Files.createTempDirectory("keyid-bulk").resolve("samples.tsv");
+        List<String> lines = new ArrayList<>();
+
+        for (String username : usernames)
+            lines.add(username + "\ttsData");
+
+        return Files.write(file, lines, StandardCharsets.UTF_8);
+    }
+
+    private static Path checkpoint(Path file)
+    {
+        return file.resolveSibling(file.getFileName() + ".checkpoint");
+    }
+
+    private static List<String> sorted(List<String> calls)
+    {
+        List<String> sorted = new ArrayList<>(calls);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Fails the first call for each user with the given exception and answers every other call.
+     */
+    private static final class FakeBackend implements KeyIDBackend
+    {
+        private final Map<String, Exception> failures;
+        private final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+
+        private FakeBackend(Map<String, Exception> failures)
+        {
+            this.failures = new HashMap<>(failures);
+        }
+
+        @Override
+        public Future<JsonObject> login(String username, String tsData, long deadline)
+        {
+            return call(username);
+        }
+
+        @Override
+        public Future<JsonObject> removeProfile(String username, String tsData, long deadline)
+        {
+            return call(username);
+        }
+
+        private synchronized Future<JsonObject> call(String username)
+        {
+            calls.add(username);
+            CompletableFuture<JsonObject> result = new CompletableFuture<>();
+            Exception failure = failures.remove(username);
+
+            if (failure != null)
+            {
+                result.completeExceptionally(failure);
+                return result;
+            }
+
+            JsonObject answer = new JsonObject();
+            answer.addProperty("Error", "");
+            result.complete(answer);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.annotations.Test;
+
+public class KeyIDBulkheadTest
+{
+    private static final AtomicInteger REALM = new AtomicInteger();
+
+    @Test
+    public void fullBulkheadRejectsWithoutUsingTheRate() throws Exception
+    {
+        KeyIDBulkhead bulkhead = bulkhead(new KeyIDBulkhead.Settings(1, 0, 1, 2));
+
+        bulkhead.acquire(deadline(1000));
+        assertRejected(bulkhead, 1000, KeyIDBulkhead.Rejection.FULL);
+        bulkhead.release();
+
+        bulkhead.acquire(deadline(1000));
+        bulkhead.release();
+        assertRejected(bulkhead, 1000, KeyIDBulkhead.Rejection.RATE);
+    }
+
+    @Test
+    public void rateLimitAdmitsTheBurstThenRejects() throws Exception
+    {
+        KeyIDBulkhead bulkhead = bulkhead(new KeyIDBulkhead.Settings(0, 0, 1, 3));
+
+        for (int i = 0; i < 3; i++)
+            bulkhead.acquire(deadline(1000));
+
+        assertRejected(bulkhead, 1000, KeyIDBulkhead.Rejection.RATE);
+        assertEquals(bulkhead.getActive(), 3);
+    }
+
+    @Test
+    public void tokenBucketRefillsOverTime() throws Exception
+    {
+        KeyIDBulkhead bulkhead = bulkhead(new KeyIDBulkhead.Settings(0, 0, 100, 1));
+
+        bulkhead.acquire(deadline(1000));
+        assertRejected(bulkhead, 1000, KeyIDBulkhead.Rejection.RATE);
+
+        Thread.sleep(30);
+        bulkhead.acquire(deadline(1000));
+    }
+
+    @Test
+    public void waitingCallIsAdmittedWhenASlotIsReleased() throws Exception
+    {
+        KeyIDBulkhead bulkhead = bulkhead(new KeyIDBulkhead.Settings(1, 1, 0, 0));
+        bulkhead.acquire(deadline(1000));
+
+        CompletableFuture<Void> waiter = CompletableFuture.runAsync(() ->
+        {
+            try
+            {
+                bulkhead.acquire(deadline(5000));
+            }
+            catch (Exception e)
+            {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        while (bulkhead.getWaiting() == 0)
+            Thread.sleep(1);
+
+        assertRejected(bulkhead, 1000, KeyIDBulkhead.Rejection.FULL);
+        bulkhead.release();
+        waiter.get(5, TimeUnit.SECONDS);
+        assertEquals(bulkhead.getActive(), 1);
+    }
+
+    @Test
+    public void waitingCallIsRejectedAtTheDeadline() throws Exception
+    {
+        KeyIDBulkhead bulkhead = bulkhead(new KeyIDBulkhead.Settings(1, 1, 0, 0));
+        bulkhead.acquire(deadline(1000));
+
+        assertRejected(bulkhead, 50, KeyIDBulkhead.Rejection.WAIT);
+        assertEquals(bulkhead.getWaiting(), 0);
+    }
+
+    private static void assertRejected(KeyIDBulkhead bulkhead, long timeout, KeyIDBulkhead.Rejection rejection)
+        throws Exception
+    {
+        long rejected = bulkhead.getRejected(rejection);
+
+        try
+        {
+            bulkhead.acquire(deadline(timeout));
+            fail("Expected KeyIDBulkheadException");
+        }
+        catch (KeyIDBulkheadException e)
+        {
+            assertEquals(bulkhead.getRejected(rejection), rejected + 1);
+        }
+    }
+
+    private static long deadline(long timeout)
+    {
+        return System.currentTimeMillis() + timeout;
+    }
+
+    private static KeyIDBulkhead bulkhead(KeyIDBulkhead.Settings settings)
+    {
+        return KeyIDBulkhead.forRealm("/realm-" + REALM.incrementAndGet(), settings);
+    }
+}
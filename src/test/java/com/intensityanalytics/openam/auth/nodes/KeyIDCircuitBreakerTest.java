@@ -0,0 +1,228 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import com.google.gson.JsonObject;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.annotations.Test;
+
+public class KeyIDCircuitBreakerTest
+{
+    private static final int OPEN_DURATION = 50;
+    private static final AtomicInteger ENDPOINT = new AtomicInteger();
+
+    @Test
+    public void opensWhenTheFailureRateOfAFullWindowIsReached()
+    {
+        KeyIDCircuitBreaker breaker = breaker();
+
+        for (int i = 0; i < 3; i++)
+            breaker.onSuccess(breaker.tryAcquirePermission(), 1);
+
+        assertEquals(breaker.getState(), KeyIDCircuitBreaker.State.CLOSED);
+        breaker.onError(breaker.tryAcquirePermission(), 1);
+        assertEquals(breaker.getState(), KeyIDCircuitBreaker.State.CLOSED);
+        breaker.onError(breaker.tryAcquirePermission(), 1);
+        assertEquals(breaker.getState(), KeyIDCircuitBreaker.State.OPEN);
+        assertEquals(breaker.tryAcquirePermission(), -1);
+    }
+
+    @Test
+    public void opensWhenTheSlowCallRateIsReached()
+    {
+        KeyIDCircuitBreaker breaker = breaker();
+
+        for (int i = 0; i < 5; i++)
+            breaker.onSuccess(breaker.tryAcquirePermission(), 1000);
+
+        assertEquals(breaker.getState(), KeyIDCircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void zeroRatesNeverOpen()
+    {
+        KeyIDCircuitBreaker breaker =
+            KeyIDCircuitBreaker.forEndpoint("http://keyid-" + ENDPOINT.incrementAndGet(),
+                                            new KeyIDCircuitBreaker.Settings(0, 500, 0, 5, OPEN_DURATION, 2));
+
+        for (int i = 0; i < 5; i++)
+            breaker.onError(breaker.tryAcquirePermission(), 1000);
+
+        assertEquals(breaker.getState(), KeyIDCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void closesAfterTheTrialCallsSucceed() throws Exception
+    {
+        KeyIDCircuitBreaker breaker = openBreaker();
+        Thread.sleep(OPEN_DURATION + 10);
+
+        long first = breaker.tryAcquirePermission();
+        long second = breaker.tryAcquirePermission();
+        assertEquals(breaker.getState(), KeyIDCircuitBreaker.State.HALF_OPEN);
+        assertTrue(first >= 0 && second >= 0);
+        assertEquals(breaker.tryAcquirePermission(), -1);
+
+        breaker.onSuccess(first, 1);
+        assertEquals(breaker.getState(), KeyIDCircuitBreaker.State.HALF_OPEN);
+        breaker.onSuccess(second, 1);
+        assertEquals(breaker.getState(), KeyIDCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void reopensWhenATrialCallFails() throws Exception
+    {
+        KeyIDCircuitBreaker breaker = openBreaker();
+        Thread.sleep(OPEN_DURATION + 10);
+
+        breaker.onError(breaker.tryAcquirePermission(), 1);
+
+        assertEquals(breaker.getState(), KeyIDCircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void callPermittedWhileClosedIsNotATrialCall() throws Exception
+    {
+        KeyIDCircuitBreaker breaker = breaker();
+        long stale = breaker.tryAcquirePermission();
+
+        for (int i = 0; i < 5; i++)
+            breaker.onError(breaker.tryAcquirePermission(), 1);
+
+        Thread.sleep(OPEN_DURATION + 10);
+        long first = breaker.tryAcquirePermission();
+        long second = breaker.tryAcquirePermission();
+
+        breaker.onSuccess(stale, 1);
+        breaker.onSuccess(first, 1);
+        assertEquals(breaker.getState(), KeyIDCircuitBreaker.State.HALF_OPEN);
+        breaker.onSuccess(second, 1);
+        assertEquals(breaker.getState(), KeyIDCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void ignoredTrialCallFreesItsPlace() throws Exception
+    {
+        KeyIDCircuitBreaker breaker = openBreaker();
+        Thread.sleep(OPEN_DURATION + 10);
+
+        long first = breaker.tryAcquirePermission();
+        breaker.tryAcquirePermission();
+        breaker.onIgnored(first);
+
+        assertTrue(breaker.tryAcquirePermission() >= 0);
+        assertEquals(breaker.getState(), KeyIDCircuitBreaker.State.HALF_OPEN);
+    }
+
+    @Test
+    public void gatewayDoesNotCountLocalRejectionsAsFailures() throws Exception
+    {
+        KeyIDCircuitBreaker breaker = breaker();
+        KeyIDBackend rejecting = new KeyIDBackend()
+        {
+            @Override
+            public Future<JsonObject> login(String username, String tsData, long deadline)
+            {
+                throw new RejectedExecutionException();
+            }
+
+            @Override
+            public Future<JsonObject> removeProfile(String username, String tsData, long deadline)
+            {
+                CompletableFuture<JsonObject> result = new CompletableFuture<>();
+                result.completeExceptionally(new RejectedExecutionException());
+                return result;
+            }
+        };
+
+        for (int i = 0; i < 10; i++)
+        {
+            call(() -> KeyIDGateway.getInstance().login(rejecting, breaker, "user", "tsData",
+                                                        System.currentTimeMillis() + 1000));
+            call(() -> KeyIDGateway.getInstance().removeProfile(rejecting, breaker, "user", "tsData",
+                                                                System.currentTimeMillis() + 1000));
+            call(() -> KeyIDGateway.getInstance().login(rejecting, breaker, "user", "tsData",
+                                                        System.currentTimeMillis() - 1));
+        }
+
+        assertEquals(breaker.getState(), KeyIDCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void gatewayFailsFastWhileTheBreakerIsOpen() throws Exception
+    {
+        KeyIDCircuitBreaker breaker = openBreaker();
+        AtomicInteger calls = new AtomicInteger();
+        KeyIDBackend client = new KeyIDBackend()
+        {
+            @Override
+            public Future<JsonObject> login(String username, String tsData, long deadline)
+            {
+                calls.incrementAndGet();
+                return new CompletableFuture<>();
+            }
+
+            @Override
+            public Future<JsonObject> removeProfile(String username, String tsData, long deadline)
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        try
+        {
+            KeyIDGateway.getInstance().login(client, breaker, "user", "tsData", System.currentTimeMillis() + 1000);
+            fail("Expected KeyIDCircuitOpenException");
+        }
+        catch (KeyIDCircuitOpenException e)
+        {
+            assertEquals(calls.get(), 0);
+        }
+    }
+
+    private static void call(KeyIDCall call)
+    {
+        try
+        {
+            call.run();
+        }
+        catch (Exception e)
+        {
+            // the breaker state is asserted
+        }
+    }
+
+    private static KeyIDCircuitBreaker openBreaker()
+    {
+        KeyIDCircuitBreaker breaker = breaker();
+
+        for (int i = 0; i < 5; i++)
+            breaker.onError(breaker.tryAcquirePermission(), 1);
+
+        assertEquals(breaker.getState(), KeyIDCircuitBreaker.State.OPEN);
+        return breaker;
+    }
+
+    /**
+     * A breaker opening at 40% failures or slow calls over 5 calls and letting 2 trial calls through.
+     */
+    private static KeyIDCircuitBreaker breaker()
+    {
+        return KeyIDCircuitBreaker.forEndpoint("http://keyid-" + ENDPOINT.incrementAndGet(),
+                                               new KeyIDCircuitBreaker.Settings(40, 500, 40, 5, OPEN_DURATION, 2));
+    }
+
+    private interface KeyIDCall
+    {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import com.google.gson.JsonObject;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class KeyIDEnrollmentSpoolTest
+{
+    /**
+     * Room for four records of 60 bytes: the record length, submission time, username "userN", tsData length and 37
+     * bytes of tsData.
+     */
+    private static final int MAX_BYTES = 16 + 4 * 60;
+    private static final String TS_DATA = "0123456789012345678901234567890123456";
+    private static final AtomicInteger ACCOUNT = new AtomicInteger();
+
+    private Path directory;
+
+    @BeforeClass
+    public void configure() throws Exception
+    {
+        directory = Files.createTempDirectory("keyid-spool");
+        System.setProperty(KeyIDEnrollmentSpool.DIRECTORY_PROPERTY, directory.toString());
+        System.setProperty(KeyIDEnrollmentSpool.MAX_BYTES_PROPERTY, String.valueOf(MAX_BYTES));
+        System.setProperty(KeyIDEnrollmentSpool.RATE_PROPERTY, "1000");
+        System.setProperty(KeyIDEnrollmentSpool.CIPHER_PROPERTY, TestCipher.class.getName());
+    }
+
+    @AfterClass
+    public void restore()
+    {
+        System.clearProperty(KeyIDEnrollmentSpool.DIRECTORY_PROPERTY);
+        System.clearProperty(KeyIDEnrollmentSpool.MAX_BYTES_PROPERTY);
+        System.clearProperty(KeyIDEnrollmentSpool.RATE_PROPERTY);
+        System.clearProperty(KeyIDEnrollmentSpool.CIPHER_PROPERTY);
+    }
+
+    @Test
+    public void samplesAreNotSpooledWithoutACipher()
+    {
+        System.clearProperty(KeyIDEnrollmentSpool.CIPHER_PROPERTY);
+
+        try
+        {
+            assertNull(KeyIDEnrollmentSpool.forClient(url(), "key", GatedBackend::new, null, 1000));
+        }
+        finally
+        {
+            System.setProperty(KeyIDEnrollmentSpool.CIPHER_PROPERTY, TestCipher.class.getName());
+        }
+    }
+
+    @Test
+    public void spoolFileIsEncryptedAndPrivate() throws Exception
+    {
+        GatedBackend backend = new GatedBackend();
+
+        try (KeyIDEnrollmentSpool spool = KeyIDEnrollmentSpool.forClient(url(), "key", () -> backend, null, 1000))
+        {
+            assertNotNull(spool);
+            assertTrue(spool.append("user1", TS_DATA));
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.spool"))
+        {
+            for (Path file : files)
+            {
+                String contents = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+                assertFalse(contents.contains(TS_DATA));
+
+                if (file.getFileSystem().supportedFileAttributeViews().contains("posix"))
+                    assertEquals(PosixFilePermissions.toString(Files.getPosixFilePermissions(file)), "rw-------");
+            }
+        }
+    }
+
+    @Test
+    public void fullSpoolDropsAndWrapsAroundOnceReplayed() throws Exception
+    {
+        GatedBackend backend = new GatedBackend();
+        String url = url();
+
+        try (KeyIDEnrollmentSpool spool = KeyIDEnrollmentSpool.forClient(url, "key", () -> backend, null, 1000))
+        {
+            for (int i = 1; i <= 4; i++)
+                assertTrue(spool.append("user" + i, TS_DATA));
+
+            assertFalse(spool.append("user5", TS_DATA));
+
+            backend.release(2);
+            await(() -> spool.size() == 2);
+
+            // the ring has room only at its start, ahead of the record being replayed
+            assertTrue(spool.append("user6", TS_DATA));
+            assertTrue(spool.append("user7", TS_DATA));
+            assertFalse(spool.append("user8", TS_DATA));
+
+            backend.release(4);
+            await(() -> spool.size() == 0);
+        }
+
+        assertEquals(backend.replayed, Arrays.asList("user1", "user2", "user3", "user4", "user6", "user7"));
+    }
+
+    @Test
+    public void reopenedSpoolReplaysRecordsSpooledBeforeTheRestart() throws Exception
+    {
+        GatedBackend backend = new GatedBackend();
+        String url = url();
+
+        try (KeyIDEnrollmentSpool spool = KeyIDEnrollmentSpool.forClient(url, "key", () -> backend, null, 1000))
+        {
+            for (int i = 1; i <= 3; i++)
+                assertTrue(spool.append("user" + i, TS_DATA));
+        }
+
+        try (KeyIDEnrollmentSpool spool = KeyIDEnrollmentSpool.forClient(url, "key", () -> backend, null, 1000))
+        {
+            assertEquals(spool.size(), 3);
+
+            backend.release(3);
+            await(() -> spool.size() == 0);
+        }
+
+        assertEquals(backend.replayed, Arrays.asList("user1", "user2", "user3"));
+    }
+
+    @Test
+    public void shadowEvaluationThatCannotReachKeyIDIsSpooled() throws Exception
+    {
+        GatedBackend replayBackend = new GatedBackend();
+        KeyIDBackend unreachable = new KeyIDBackend()
+        {
+            @Override
+            public Future<JsonObject> login(String username, String tsData, long deadline)
+            {
+                CompletableFuture<JsonObject> result = new CompletableFuture<>();
+                result.completeExceptionally(new ConnectException("Connection refused"));
+                return result;
+            }
+
+            @Override
+            public Future<JsonObject> removeProfile(String username, String tsData, long deadline)
+            {
+                return login(username, tsData, deadline);
+            }
+        };
+
+        try (KeyIDEnrollmentSpool spool = KeyIDEnrollmentSpool.forClient(url(), "key", () -> replayBackend, null,
+                                                                         1000))
+        {
+            assertTrue(KeyIDShadowEvaluator.getInstance().submit(unreachable, null, 1000, false, spool, "user1",
+                                                                 TS_DATA));
+            await(() -> spool.size() == 1);
+
+            replayBackend.release(1);
+            await(() -> spool.size() == 0);
+        }
+
+        assertEquals(replayBackend.replayed, Collections.singletonList("user1"));
+    }
+
+    private static String url()
+    {
+        return "http://keyid-" + ACCOUNT.incrementAndGet();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (!condition.getAsBoolean())
+        {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for the spool");
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Length-preserving stand-in for a real cipher, so records keep the size MAX_BYTES is computed from.
+     */
+    public static final class TestCipher implements KeyIDSpoolCipher
+    {
+        @Override
+        public byte[] encrypt(byte[] plaintext)
+        {
+            byte[] ciphertext = plaintext.clone();
+
+            for (int i = 0; i < ciphertext.length; i++)
+                ciphertext[i] ^= 0x5a;
+
+            return ciphertext;
+        }
+
+        @Override
+        public byte[] decrypt(byte[] ciphertext)
+        {
+            return encrypt(ciphertext);
+        }
+    }
+
+    /**
+     * Answers a login for every permit released, blocking the replay until then.
+     */
+    private static final class GatedBackend implements KeyIDBackend
+    {
+        private final Semaphore permits = new Semaphore(0);
+        private final List<String> replayed = Collections.synchronizedList(new ArrayList<>());
+
+        private void release(int logins)
+        {
+            permits.release(logins);
+        }
+
+        @Override
+        public Future<JsonObject> login(String username, String tsData, long deadline)
+        {
+            try
+            {
+                permits.acquire();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                CompletableFuture<JsonObject> result = new CompletableFuture<>();
+                result.completeExceptionally(e);
+                return result;
+            }
+
+            replayed.add(username);
+            JsonObject result = new JsonObject();
+            result.addProperty("Error", "");
+            return CompletableFuture.completedFuture(result);
+        }
+
+        @Override
+        public Future<JsonObject> removeProfile(String username, String tsData, long deadline)
+        {
+            return login(username, tsData, deadline);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+
+import com.sun.identity.shared.debug.Debug;
+import org.testng.annotations.Test;
+
+public class KeyIDEventLogTest
+{
+    @Test
+    public void eventsBeyondTheBufferAreDroppedAndCounted()
+    {
+        Debug debug = Debug.getInstance("KeyIDEventLogTest.full");
+        debug.setDebug("warning");
+        KeyIDEventLog log = new KeyIDEventLog(debug, 4);
+
+        for (int i = 0; i < 10; i++)
+            log.evaluation("user", "true", 1000000, 90, 80);
+
+        assertEquals(log.getDropped(), 6);
+    }
+
+    @Test
+    public void nothingIsRecordedBelowWarningLevel()
+    {
+        Debug debug = Debug.getInstance("KeyIDEventLogTest.off");
+        debug.setDebug("error");
+        KeyIDEventLog log = new KeyIDEventLog(debug, 4);
+
+        for (int i = 0; i < 10; i++)
+            log.evaluation("user", "true", 1000000, 90, 80);
+
+        assertEquals(log.getDropped(), 0);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.annotations.Test;
+
+public class KeyIDGatewayTest
+{
+    @Test
+    public void loginReturnsTheClientResult() throws Exception
+    {
+        JsonObject result = new JsonObject();
+        result.addProperty("Match", true);
+
+        JsonObject login = KeyIDGateway.getInstance().login(new FakeClient(CompletableFuture.completedFuture(result)),
+                                                            null, "user", "tsData",
+                                                            System.currentTimeMillis() + 1000);
+
+        assertEquals(login, result);
+    }
+
+    @Test
+    public void loginMissingTheDeadlineIsCancelled() throws Exception
+    {
+        CompletableFuture<JsonObject> pending = new CompletableFuture<>();
+        long start = System.currentTimeMillis();
+
+        try
+        {
+            KeyIDGateway.getInstance().login(new FakeClient(pending), null, "user", "tsData", start + 100);
+            fail("Expected KeyIDTimeoutException");
+        }
+        catch (KeyIDTimeoutException e)
+        {
+            assertTrue(e.isCalled());
+            assertTrue(pending.isCancelled());
+            assertTrue(System.currentTimeMillis() - start < 1000);
+        }
+    }
+
+    @Test
+    public void expiredDeadlineSkipsTheCall() throws Exception
+    {
+        FakeClient client = new FakeClient(new CompletableFuture<>());
+
+        try
+        {
+            KeyIDGateway.getInstance().removeProfile(client, null, "user", "tsData",
+                                                     System.currentTimeMillis() - 1);
+            fail("Expected KeyIDTimeoutException");
+        }
+        catch (KeyIDTimeoutException e)
+        {
+            assertFalse(e.isCalled());
+            assertEquals(client.calls.get(), 0);
+        }
+    }
+
+    @Test
+    public void failedCallThrowsItsCause() throws Exception
+    {
+        IOException failure = new IOException("Connection reset");
+        CompletableFuture<JsonObject> failed = new CompletableFuture<>();
+        failed.completeExceptionally(failure);
+
+        try
+        {
+            KeyIDGateway.getInstance().login(new FakeClient(failed), null, "user", "tsData",
+                                             System.currentTimeMillis() + 1000);
+            fail("Expected IOException");
+        }
+        catch (IOException e)
+        {
+            assertSame(e, failure);
+        }
+    }
+
+    @Test
+    public void loginIsCountedInTheMetrics() throws Exception
+    {
+        KeyIDMetrics metrics = KeyIDMetrics.getInstance();
+        long count = metrics.getLoginCount();
+
+        KeyIDGateway.getInstance().login(new FakeClient(CompletableFuture.completedFuture(new JsonObject())), null,
+                                         "user", "tsData", System.currentTimeMillis() + 1000);
+
+        assertEquals(metrics.getLoginCount(), count + 1);
+        assertEquals(metrics.getLoginsInFlight(), 0);
+    }
+
+    private static final class FakeClient implements KeyIDBackend
+    {
+        private final CompletableFuture<JsonObject> result;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private FakeClient(CompletableFuture<JsonObject> result)
+        {
+            this.result = result;
+        }
+
+        @Override
+        public CompletableFuture<JsonObject> login(String username, String tsData, long deadline)
+        {
+            calls.incrementAndGet();
+            return result;
+        }
+
+        @Override
+        public CompletableFuture<JsonObject> removeProfile(String username, String tsData, long deadline)
+        {
+            calls.incrementAndGet();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+public class KeyIDLocalScorersTest
+{
+    private static final String URL = "https://keyid.example.com";
+    private static final KeyIDLocalScorer.Thresholds THRESHOLDS = new KeyIDLocalScorer.Thresholds(false, 0, 0);
+
+    @AfterMethod
+    public void removeScorer()
+    {
+        KeyIDLocalScorers.setScorer(null);
+    }
+
+    @Test
+    public void scoreIsReturnedAsALoginResult()
+    {
+        long hits = KeyIDLocalScorers.getHits();
+        KeyIDLocalScorers.setScorer((url, username, tsData, thresholds, maxAge) ->
+            new KeyIDLocalScorer.Score(true, 90, 80, 10, true));
+
+        JsonObject result = KeyIDLocalScorers.login(URL, "user", "tsData", THRESHOLDS, 1000);
+
+        assertEquals(result.get("Error").getAsString(), "");
+        assertEquals(result.get("Match").getAsBoolean(), true);
+        assertEquals(result.get("Confidence").getAsDouble(), 90.0);
+        assertEquals(result.get("Fidelity").getAsDouble(), 80.0);
+        assertEquals(result.get("Profiles").getAsInt(), 10);
+        assertEquals(result.get("IsReady").getAsBoolean(), true);
+        assertEquals(KeyIDLocalScorers.getHits(), hits + 1);
+    }
+
+    @Test
+    public void scorerIsGivenTheReplicasInACanonicalOrder()
+    {
+        List<String> services = new ArrayList<>();
+        KeyIDLocalScorers.setScorer((url, username, tsData, thresholds, maxAge) ->
+        {
+            services.add(url);
+            return new KeyIDLocalScorer.Score(true, 90, 80, 10, true);
+        });
+
+        KeyIDLocalScorers.login("https://keyid-b.example.com, https://keyid-a.example.com", "user", "tsData",
+                                THRESHOLDS, 1000);
+        KeyIDLocalScorers.login("https://keyid-a.example.com,https://keyid-b.example.com,https://keyid-a.example.com",
+                                "user", "tsData", THRESHOLDS, 1000);
+        KeyIDLocalScorers.login(URL, "user", "tsData", THRESHOLDS, 1000);
+
+        assertEquals(services, Arrays.asList("https://keyid-a.example.com,https://keyid-b.example.com",
+                                             "https://keyid-a.example.com,https://keyid-b.example.com",
+                                             URL));
+    }
+
+    @Test
+    public void loginWithoutALocalProfileIsLeftToTheWebService()
+    {
+        long misses = KeyIDLocalScorers.getMisses();
+        KeyIDLocalScorers.setScorer((url, username, tsData, thresholds, maxAge) -> null);
+
+        assertNull(KeyIDLocalScorers.login(URL, "user", "tsData", THRESHOLDS, 1000));
+        assertEquals(KeyIDLocalScorers.getMisses(), misses + 1);
+    }
+
+    @Test
+    public void failingScorerIsLeftToTheWebService()
+    {
+        long errors = KeyIDLocalScorers.getErrors();
+        KeyIDLocalScorers.setScorer((url, username, tsData, thresholds, maxAge) ->
+        {
+            throw new IllegalStateException("profile store unavailable");
+        });
+
+        assertNull(KeyIDLocalScorers.login(URL, "user", "tsData", THRESHOLDS, 1000));
+        assertEquals(KeyIDLocalScorers.getErrors(), errors + 1);
+    }
+
+    @Test
+    public void loginIsNotScoredWithoutAScorer()
+    {
+        assertNull(KeyIDLocalScorers.login(URL, "user", "tsData", THRESHOLDS, 1000));
+    }
+}
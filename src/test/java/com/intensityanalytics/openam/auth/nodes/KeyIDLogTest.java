@@ -0,0 +1,55 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+
+import com.sun.identity.shared.debug.Debug;
+import org.testng.annotations.Test;
+
+public class KeyIDLogTest
+{
+    @Test
+    public void disabledLevelsDoNotFormat()
+    {
+        Debug.getInstance("KeyIDLogTest.disabled").setDebug("error");
+        KeyIDLog log = KeyIDLog.getInstance("KeyIDLogTest.disabled");
+        CountingArg arg = new CountingArg();
+
+        log.message("user %s", arg);
+        log.message("user %s %s", arg, arg);
+        log.message("user %s %s %s", arg, arg, arg);
+        log.warning("user %s", arg);
+        log.warning("user %s %s", arg, arg);
+
+        assertEquals(arg.formatted, 0);
+    }
+
+    @Test
+    public void enabledLevelsFormatOnce()
+    {
+        Debug.getInstance("KeyIDLogTest.enabled").setDebug("message");
+        KeyIDLog log = KeyIDLog.getInstance("KeyIDLogTest.enabled");
+        CountingArg arg = new CountingArg();
+
+        log.message("user %s", arg);
+        log.warning("user %s", arg);
+        log.error("user %s", arg);
+
+        assertEquals(arg.formatted, 3);
+    }
+
+    private static final class CountingArg
+    {
+        private int formatted;
+
+        @Override
+        public String toString()
+        {
+            formatted++;
+            return "arg";
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static com.intensityanalytics.openam.auth.nodes.Constants.TSDATA;
+import static com.intensityanalytics.openam.auth.nodes.Constants.TSDATA_HANDLE;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import com.sun.identity.authentication.callbacks.HiddenValueCallback;
+import com.sun.identity.authentication.callbacks.ScriptTextOutputCallback;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.util.i18n.PreferredLocales;
+import org.testng.annotations.Test;
+
+public class KeyIDLoginCollectorNodeTest
+{
+    private static final String TS_DATA = "KeyDown,72,0,112";
+
+    @Test
+    public void submissionPutsTheTsDataIntoSharedState() throws Exception
+    {
+        Action action = submit(false);
+
+        assertEquals(action.sharedState.get(USERNAME).asString(), "user");
+        assertEquals(action.sharedState.get(TSDATA).asString(), TS_DATA);
+        assertFalse(action.sharedState.isDefined(TSDATA_HANDLE));
+    }
+
+    @Test
+    public void submissionKeepsTheTsDataOnTheServer() throws Exception
+    {
+        Action action = submit(true);
+        String handle = action.sharedState.get(TSDATA_HANDLE).asString();
+
+        assertFalse(action.sharedState.isDefined(TSDATA));
+        assertEquals(TsDataStores.getStore().take(handle), TS_DATA);
+        assertNull(TsDataStores.getStore().take(handle));
+    }
+
+    @Test
+    public void firstVisitReusesTheRenderedScript() throws Exception
+    {
+        String library = "https://keyid.example.com/first-visit.js";
+
+        assertSame(script(node(library, ""), Locale.ENGLISH), script(node(library, ""), Locale.ENGLISH));
+    }
+
+    @Test
+    public void configurationChangesRenderANewScript() throws Exception
+    {
+        String library = "https://keyid.example.com/changed.js";
+        String other = "https://keyid.example.com/other.js";
+        String loader = "https://keyid.example.com/loader.js";
+        String script = script(node(library, ""), Locale.ENGLISH);
+
+        assertTrue(script.contains(library));
+        assertTrue(script(node(other, ""), Locale.ENGLISH).contains(other));
+        assertTrue(script(node(library, loader), Locale.ENGLISH).contains(loader));
+        assertNotEquals(script(node(library, loader), Locale.ENGLISH), script);
+    }
+
+    @Test
+    public void eachLocaleIsRenderedSeparately() throws Exception
+    {
+        String library = "https://keyid.example.com/locales.js";
+        String english = script(node(library, ""), Locale.ENGLISH);
+
+        assertNotSame(script(node(library, ""), Locale.FRENCH), english);
+        assertSame(script(node(library, ""), Locale.ENGLISH), english);
+    }
+
+    private static KeyIDLoginCollectorNode node(String library, String loaderScript) throws Exception
+    {
+        return new KeyIDLoginCollectorNode(new KeyIDLoginCollectorNode.Config()
+        {
+            @Override
+            public String library()
+            {
+                return library;
+            }
+
+            @Override
+            public String loaderScript()
+            {
+                return loaderScript;
+            }
+        }, null);
+    }
+
+    /**
+     * Visits the node without submitting anything and returns the script it sends.
+     */
+    private static String script(KeyIDLoginCollectorNode node, Locale locale) throws Exception
+    {
+        ExternalRequestContext request = new ExternalRequestContext.Builder()
+            .locales(new PreferredLocales(Collections.singletonList(locale)))
+            .build();
+        Action action = node.process(new TreeContext(json(object()), json(object()), request,
+                                                     Collections.<Callback>emptyList()));
+
+        return action.callbacks.stream()
+                     .filter(ScriptTextOutputCallback.class::isInstance)
+                     .map(callback -> ((ScriptTextOutputCallback) callback).getMessage())
+                     .findFirst()
+                     .orElseThrow(AssertionError::new);
+    }
+
+    private static Action submit(boolean serverSideTsData) throws Exception
+    {
+        KeyIDLoginCollectorNode node = new KeyIDLoginCollectorNode(new KeyIDLoginCollectorNode.Config()
+        {
+            @Override
+            public Boolean serverSideTsData()
+            {
+                return serverSideTsData;
+            }
+        }, null);
+
+        NameCallback name = new NameCallback("User Name");
+        name.setName("user");
+        PasswordCallback password = new PasswordCallback("Password", false);
+        password.setPassword("password".toCharArray());
+        HiddenValueCallback tsData = new HiddenValueCallback(TSDATA);
+        tsData.setValue(TS_DATA);
+
+        return node.process(new TreeContext(json(object()), json(object()),
+                                            new ExternalRequestContext.Builder().build(),
+                                            Arrays.asList(name, password, tsData)));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.testng.annotations.Test;
+
+public class KeyIDMetricsTest
+{
+    @Test
+    public void labelValuesAreEscaped()
+    {
+        assertEquals(KeyIDMetrics.label("endpoint", "http://a\"b\\c\nd"), "endpoint=\"http://a\\\"b\\\\c\\nd\"");
+    }
+
+    @Test
+    public void everyFamilyHasOneTypeFollowedByItsSamples()
+    {
+        List<String> lines = Arrays.asList(KeyIDMetrics.getInstance().getText().split("\n"));
+        Set<String> families = new HashSet<>();
+        String family = null;
+        String type = null;
+
+        for (String line : lines)
+        {
+            if (line.startsWith("# TYPE "))
+            {
+                String[] fields = line.split(" ");
+                assertEquals(fields.length, 4, line);
+                family = fields[2];
+                type = fields[3];
+                assertTrue(families.add(family), "Duplicate TYPE for " + family);
+                continue;
+            }
+
+            assertNotNull(family, "Sample without a TYPE: " + line);
+            String name = line.split("[{ ]", 2)[0];
+
+            if (type.equals("histogram"))
+                name = name.replaceFirst("_(bucket|sum|count)$", "");
+
+            assertEquals(name, family, "Sample outside its family: " + line);
+        }
+    }
+
+    @Test
+    public void breakerStateIsOneSeriesPerState()
+    {
+        KeyIDCircuitBreaker breaker =
+            KeyIDCircuitBreaker.forEndpoint("http://keyid-metrics\"", new KeyIDCircuitBreaker.Settings(40, 500, 40, 5,
+                                                                                                       1000, 2));
+        for (int i = 0; i < 5; i++)
+            breaker.onError(breaker.tryAcquirePermission(), 1);
+
+        String text = KeyIDMetrics.getInstance().getText();
+        String endpoint = "endpoint=\"http://keyid-metrics\\\"\"";
+
+        assertTrue(text.contains("keyid_circuit_breaker_state{" + endpoint + ",state=\"open\"} 1\n"));
+        assertTrue(text.contains("keyid_circuit_breaker_state{" + endpoint + ",state=\"closed\"} 0\n"));
+        assertTrue(text.contains("keyid_circuit_breaker_state{" + endpoint + ",state=\"half_open\"} 0\n"));
+        assertTrue(text.contains("keyid_circuit_breaker_open{" + endpoint + "} 1\n"));
+        assertFalse(text.contains("keyid_circuit_breaker_open{" + endpoint + ",state="));
+    }
+}
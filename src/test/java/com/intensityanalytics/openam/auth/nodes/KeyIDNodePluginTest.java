@@ -0,0 +1,53 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import org.forgerock.openam.auth.node.api.AbstractNodeAmPlugin;
+import org.forgerock.openam.auth.node.api.PluginTools;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class KeyIDNodePluginTest
+{
+    private PluginTools pluginTools;
+    private KeyIDNodePlugin plugin;
+
+    @BeforeMethod
+    public void setUp() throws Exception
+    {
+        pluginTools = mock(PluginTools.class);
+        plugin = new KeyIDNodePlugin(null);
+
+        Field field = AbstractNodeAmPlugin.class.getDeclaredField("pluginTools");
+        field.setAccessible(true);
+        field.set(plugin, pluginTools);
+    }
+
+    @Test
+    public void startupRegistersTheNodesAndMetrics() throws Exception
+    {
+        plugin.onStartup();
+
+        verify(pluginTools).registerAuthNode(KeyIDNode.class);
+        verify(pluginTools).registerAuthNode(KeyIDLoginCollectorNode.class);
+        verify(pluginTools).registerAuthNode(KeyIDPasswordCollectorNode.class);
+        assertTrue(KeyIDMetrics.getInstance().getText().contains("keyid_remote_latency_ms"));
+    }
+
+    @Test
+    public void upgradeUpdatesTheSchemaOfEveryNode() throws Exception
+    {
+        plugin.upgrade("1.1.0");
+
+        verify(pluginTools).upgradeAuthNode(KeyIDNode.class);
+        verify(pluginTools).upgradeAuthNode(KeyIDLoginCollectorNode.class);
+        verify(pluginTools).upgradeAuthNode(KeyIDPasswordCollectorNode.class);
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static com.intensityanalytics.openam.auth.nodes.Constants.TRUST;
+import static com.intensityanalytics.openam.auth.nodes.Constants.TSDATA;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import com.google.gson.JsonObject;
+import com.intensityanalytics.keyid.KeyIDSettings;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.forgerock.guava.common.collect.ArrayListMultimap;
+import org.forgerock.guava.common.collect.ListMultimap;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+public class KeyIDNodeTest
+{
+    private static final AtomicInteger AUTH_KEY = new AtomicInteger();
+
+    @AfterMethod
+    public void restoreBackendFactory()
+    {
+        KeyIDClientRegistry.getInstance().setBackendFactory(KeyIDClientBackend::new);
+    }
+
+    @Test
+    public void constructsWithTheDefaultConfiguration() throws Exception
+    {
+        new KeyIDNode(new KeyIDNode.Config() {}, null);
+    }
+
+    @Test
+    public void constructsWithAWebServiceUrl() throws Exception
+    {
+        new KeyIDNode(new KeyIDNode.Config()
+        {
+            @Override
+            public String url()
+            {
+                return "http://localhost:1/keyid";
+            }
+        }, null);
+    }
+
+    @Test
+    public void nodesWithTheSameSettingsShareAClient()
+    {
+        KeyIDClientRegistry registry = KeyIDClientRegistry.getInstance();
+
+        assertSame(registry.acquire(key("shared"), KeyIDSettings::new),
+                   registry.acquire(key("shared"), KeyIDSettings::new));
+        assertNotSame(registry.acquire(key("shared"), KeyIDSettings::new),
+                      registry.acquire(key("other"), KeyIDSettings::new));
+    }
+
+    @Test
+    public void registryHoldsAtMostItsMaximumNumberOfClients()
+    {
+        KeyIDClientRegistry registry = KeyIDClientRegistry.getInstance();
+
+        for (int i = 0; i < 100; i++)
+            registry.acquire(key("key" + i), KeyIDSettings::new);
+
+        assertTrue(registry.size() <= 64, "Registry holds " + registry.size() + " clients");
+    }
+
+    @Test
+    public void matchKeepsItsTrustTokenInTheSession() throws Exception
+    {
+        AtomicInteger logins = new AtomicInteger();
+        KeyIDClientRegistry.getInstance().setBackendFactory(settings -> new MatchingBackend(logins));
+        KeyIDNode node = new KeyIDNode(trustWindowConfig("trust" + AUTH_KEY.incrementAndGet()), null);
+
+        Action match = node.process(context(null));
+        String token = match.sessionProperties.get(TRUST);
+
+        assertEquals(match.outcome, "true");
+        assertNotNull(token);
+        assertEquals(logins.get(), 1);
+
+        Action trusted = node.process(context(token));
+
+        assertEquals(trusted.outcome, "true");
+        assertEquals(trusted.sessionProperties.get(TRUST), token);
+        assertEquals(logins.get(), 1);
+    }
+
+    private static KeyIDNode.Config trustWindowConfig(String authKey)
+    {
+        return new KeyIDNode.Config()
+        {
+            @Override
+            public String url()
+            {
+                return "http://localhost:1/keyid";
+            }
+
+            @Override
+            public String authKey()
+            {
+                return authKey;
+            }
+
+            @Override
+            public KeyIDNode.ValidationEnrollmentMode validationEnrollmentMode()
+            {
+                return KeyIDNode.ValidationEnrollmentMode.ACTIVE_NONE;
+            }
+
+            @Override
+            public Boolean trustWindow()
+            {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * A login from the same device, in a journey that carries the trust token of an earlier match if it is not null.
+     */
+    private static TreeContext context(String trustToken)
+    {
+        JsonValue sharedState = json(object());
+        sharedState.put(USERNAME, "user");
+        sharedState.put(TSDATA, "KeyDown,72,0,112");
+        if (trustToken != null)
+            sharedState.put(TRUST, trustToken);
+
+        ListMultimap<String, String> headers = ArrayListMultimap.create();
+        headers.put("User-Agent", "Mozilla/5.0");
+        ExternalRequestContext request = new ExternalRequestContext.Builder()
+            .headers(headers)
+            .cookies(Collections.emptyMap())
+            .clientIp("192.0.2.1")
+            .build();
+
+        return new TreeContext(sharedState, request, Collections.emptyList());
+    }
+
+    private static KeyIDClientRegistry.ClientKey key(String authKey)
+    {
+        return new KeyIDClientRegistry.ClientKey("http://localhost:1/keyid", authKey, 1000, false, 70, 50, true, 0, "",
+                                                 0, 0, null);
+    }
+
+    private static final class MatchingBackend implements KeyIDBackend
+    {
+        private final AtomicInteger logins;
+
+        private MatchingBackend(AtomicInteger logins)
+        {
+            this.logins = logins;
+        }
+
+        @Override
+        public Future<JsonObject> login(String username, String tsData, long deadline)
+        {
+            logins.incrementAndGet();
+            JsonObject result = new JsonObject();
+            result.addProperty("Error", "");
+            result.addProperty("Match", true);
+            result.addProperty("IsReady", true);
+            result.addProperty("Confidence", 90);
+            result.addProperty("Fidelity", 80);
+            result.addProperty("Profiles", 3);
+            return CompletableFuture.completedFuture(result);
+        }
+
+        @Override
+        public Future<JsonObject> removeProfile(String username, String tsData, long deadline)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
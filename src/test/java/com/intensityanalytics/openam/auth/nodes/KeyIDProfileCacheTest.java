@@ -0,0 +1,70 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import com.intensityanalytics.keyid.KeyIDSettings;
+import org.testng.annotations.Test;
+
+public class KeyIDProfileCacheTest
+{
+    private final KeyIDBackend client = new KeyIDClientBackend(new KeyIDSettings());
+
+    @Test
+    public void statusIsReturnedWithinItsTimeToLive()
+    {
+        KeyIDProfileCache cache = new KeyIDProfileCache(10);
+        cache.update(client, "user", true, 4);
+
+        KeyIDProfileCache.ProfileStatus status = cache.get(client, "user", 60000);
+
+        assertNotNull(status);
+        assertTrue(status.isReady());
+        assertEquals(status.getProfiles(), 4);
+        assertEquals(cache.getHits(), 1);
+    }
+
+    @Test
+    public void statusExpiresAfterItsTimeToLive() throws Exception
+    {
+        KeyIDProfileCache cache = new KeyIDProfileCache(10);
+        cache.update(client, "user", true, 4);
+
+        Thread.sleep(30);
+
+        assertNull(cache.get(client, "user", 10));
+        assertEquals(cache.getMisses(), 1);
+    }
+
+    @Test
+    public void leastRecentlyUsedStatusIsEvicted()
+    {
+        KeyIDProfileCache cache = new KeyIDProfileCache(2);
+        cache.update(client, "first", true, 4);
+        cache.update(client, "second", true, 4);
+        cache.get(client, "first", 60000);
+        cache.update(client, "third", true, 4);
+
+        assertEquals(cache.size(), 2);
+        assertNotNull(cache.get(client, "first", 60000));
+        assertNull(cache.get(client, "second", 60000));
+        assertNotNull(cache.get(client, "third", 60000));
+    }
+
+    @Test
+    public void invalidateDiscardsTheStatus()
+    {
+        KeyIDProfileCache cache = new KeyIDProfileCache(10);
+        cache.update(client, "user", true, 4);
+        cache.invalidate(client, "user");
+
+        assertNull(cache.get(client, "user", 60000));
+        assertEquals(cache.getInvalidations(), 1);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.testng.annotations.Test;
+
+public class KeyIDProfileResetQueueTest
+{
+    private static final int WORKERS = 4;
+    private static final int MAX_PENDING = 10000;
+    private static final AtomicInteger USER = new AtomicInteger();
+
+    private final KeyIDProfileResetQueue queue = KeyIDProfileResetQueue.getInstance();
+
+    @Test
+    public void pendingResetsAreKeptOncePerUser() throws Exception
+    {
+        FakeClient client = new FakeClient();
+        CompletableFuture<JsonObject> workers = blockWorkers();
+        String username = username();
+
+        assertTrue(queue.submit(client, null, 10000, username, "tsData", true));
+        assertTrue(queue.submit(client, null, 10000, username, "tsData", true));
+        assertEquals(queue.getPending(), 1);
+
+        workers.complete(result(""));
+        await(() -> queue.getPending() == 0 && client.calls.size() == 1);
+        assertEquals(client.calls, Collections.singletonList(username));
+    }
+
+    @Test
+    public void fullQueueRejectsNewUsers() throws Exception
+    {
+        FakeClient client = new FakeClient();
+        CompletableFuture<JsonObject> workers = blockWorkers();
+        long rejected = queue.getRejected();
+
+        for (int i = 0; i < MAX_PENDING; i++)
+            assertTrue(queue.submit(client, null, 10000, username(), "tsData", true));
+
+        assertFalse(queue.submit(client, null, 10000, username(), "tsData", true));
+        assertEquals(queue.getRejected(), rejected + 1);
+
+        workers.complete(result(""));
+        await(() -> queue.getPending() == 0);
+    }
+
+    @Test
+    public void resetReplacingOneThatRevokesTrustStillRevokesIt() throws Exception
+    {
+        FakeClient client = new FakeClient();
+        CompletableFuture<JsonObject> workers = blockWorkers();
+        String username = username();
+        long device = KeyIDTrustWindow.fingerprint("Mozilla/5.0", "192.0.2.1");
+        KeyIDTrustWindow.getInstance().record(client, username, device, 90);
+
+        assertTrue(queue.submit(client, null, 10000, username, "tsData", true));
+        assertTrue(queue.submit(client, null, 10000, username, "tsData", false));
+
+        workers.complete(result(""));
+        await(() -> client.calls.size() == 1 && queue.getPending() == 0);
+        await(() -> !KeyIDTrustWindow.getInstance().isTrusted(client, username, device, 60000, 0));
+    }
+
+    @Test
+    public void failedResetIsRetriedAfterABackoff() throws Exception
+    {
+        long completed = queue.getCompleted();
+        FakeClient client = new FakeClient(result("Profile locked"), result(""));
+
+        assertTrue(queue.submit(client, null, 1000, username(), "tsData", true));
+        await(() -> queue.getCompleted() > completed);
+
+        assertEquals(client.calls.size(), 2);
+        assertTrue(client.times.get(1) - client.times.get(0) >= 1000);
+    }
+
+    /**
+     * Occupies every worker with a reset that completes with the returned future.
+     */
+    private CompletableFuture<JsonObject> blockWorkers() throws Exception
+    {
+        CompletableFuture<JsonObject> gate = new CompletableFuture<>();
+        AtomicInteger started = new AtomicInteger();
+        KeyIDBackend blocking = new KeyIDBackend()
+        {
+            @Override
+            public CompletableFuture<JsonObject> login(String username, String tsData, long deadline)
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletableFuture<JsonObject> removeProfile(String username, String tsData, long deadline)
+            {
+                started.incrementAndGet();
+                return gate;
+            }
+        };
+
+        for (int i = 1; i <= WORKERS; i++)
+        {
+            int expected = i;
+            assertTrue(queue.submit(blocking, null, 10000, username(), "tsData", true));
+            await(() -> started.get() == expected);
+        }
+
+        return gate;
+    }
+
+    private static JsonObject result(String error)
+    {
+        JsonObject result = new JsonObject();
+        result.addProperty("Error", error);
+        return result;
+    }
+
+    private static String username()
+    {
+        return "user" + USER.incrementAndGet();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (!condition.getAsBoolean())
+        {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for the queue");
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Answers RemoveProfile with the given results in turn, then with the last one.
+     */
+    private static final class FakeClient implements KeyIDBackend
+    {
+        private final JsonObject[] results;
+        private final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+        private final List<Long> times = Collections.synchronizedList(new ArrayList<>());
+
+        private FakeClient(JsonObject... results)
+        {
+            this.results = results.length == 0 ? new JsonObject[] { result("") } : results;
+        }
+
+        @Override
+        public CompletableFuture<JsonObject> login(String username, String tsData, long deadline)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<JsonObject> removeProfile(String username, String tsData, long deadline)
+        {
+            times.add(System.currentTimeMillis());
+            calls.add(username);
+            return CompletableFuture.completedFuture(results[Math.min(calls.size(), results.length) - 1]);
+        }
+    }
+}
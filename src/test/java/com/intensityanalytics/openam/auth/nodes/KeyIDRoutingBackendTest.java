@@ -0,0 +1,300 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import org.testng.annotations.Test;
+
+public class KeyIDRoutingBackendTest
+{
+    private static final AtomicInteger ENDPOINT = new AtomicInteger();
+    private static final KeyIDCircuitBreaker.Settings BREAKER = new KeyIDCircuitBreaker.Settings(40, 500, 40, 5,
+                                                                                                  60000, 2);
+
+    @Test
+    public void endpointsAreParsedInConfiguredOrderWithoutDuplicates()
+    {
+        assertEquals(KeyIDRoutingBackend.parseEndpoints(" http://a, http://b http://a,,http://c "),
+                     Arrays.asList("http://a", "http://b", "http://c"));
+    }
+
+    @Test
+    public void enrollingLoginFailsOverWhenTheConnectionFails() throws Exception
+    {
+        AtomicInteger calls = new AtomicInteger();
+        KeyIDRoutingBackend backend = backend(true, 0, calls, call -> call == 1 ? failed(new ConnectException())
+                                                                               : succeeded());
+
+        assertEquals(login(backend, 1000).get("Match").getAsBoolean(), true);
+        assertEquals(calls.get(), 2);
+    }
+
+    @Test
+    public void enrollingLoginIsNotRetriedAfterAReadFailure() throws Exception
+    {
+        AtomicInteger calls = new AtomicInteger();
+        KeyIDRoutingBackend backend = backend(true, 0, calls, call -> call == 1 ? failed(new IOException("reset"))
+                                                                               : succeeded());
+
+        assertFailure(backend, 1000, IOException.class);
+        assertEquals(calls.get(), 1);
+    }
+
+    @Test
+    public void enrollingLoginIsNotRetriedAfterATimeout() throws Exception
+    {
+        AtomicInteger calls = new AtomicInteger();
+        KeyIDRoutingBackend backend = backend(true, 0, calls, call -> call == 1 ? new CompletableFuture<>()
+                                                                               : succeeded());
+
+        assertFailure(backend, 100, KeyIDTimeoutException.class);
+        assertEquals(calls.get(), 1);
+    }
+
+    @Test
+    public void loginWithoutEnrollmentFailsOverAfterAReadFailure() throws Exception
+    {
+        AtomicInteger calls = new AtomicInteger();
+        KeyIDRoutingBackend backend = backend(false, 0, calls, call -> call == 1 ? failed(new IOException("reset"))
+                                                                                : succeeded());
+
+        assertEquals(login(backend, 1000).get("Match").getAsBoolean(), true);
+        assertEquals(calls.get(), 2);
+    }
+
+    @Test
+    public void failedEndpointIsEjected() throws Exception
+    {
+        AtomicInteger calls = new AtomicInteger();
+        Map<String, KeyIDBackend> clients = new LinkedHashMap<>();
+        FakeBackend failing = new FakeBackend(calls, call -> failed(new IOException("reset")));
+        FakeBackend healthy = new FakeBackend(calls, call -> succeeded());
+        clients.put(url(), failing);
+        clients.put(url(), healthy);
+        KeyIDRoutingBackend backend = new KeyIDRoutingBackend(clients, false, 0);
+
+        for (int i = 0; i < 10; i++)
+            assertEquals(login(backend, 1000).get("Match").getAsBoolean(), true);
+
+        assertTrue(failing.calls.get() <= 1, "Ejected endpoint was called " + failing.calls.get() + " times");
+        assertEquals(healthy.calls.get(), 10);
+    }
+
+    @Test
+    public void endpointWithAnOpenBreakerIsSkipped() throws Exception
+    {
+        AtomicInteger calls = new AtomicInteger();
+        Map<String, KeyIDBackend> clients = new LinkedHashMap<>();
+        String open = url();
+        String closed = url();
+        FakeBackend skipped = new FakeBackend(calls, call -> succeeded());
+        clients.put(open, skipped);
+        clients.put(closed, new FakeBackend(calls, call -> succeeded()));
+        KeyIDRoutingBackend backend = new KeyIDRoutingBackend(clients, true, 0, BREAKER);
+        open(open);
+
+        for (int i = 0; i < 5; i++)
+            assertEquals(login(backend, 1000).get("Match").getAsBoolean(), true);
+
+        assertEquals(skipped.calls.get(), 0);
+        assertEquals(KeyIDCircuitBreaker.forEndpoint(closed, BREAKER).getState(), KeyIDCircuitBreaker.State.CLOSED);
+
+        open(closed);
+        assertFailure(backend, 1000, KeyIDCircuitOpenException.class);
+        assertEquals(calls.get(), 5);
+    }
+
+    @Test
+    public void failoverStaysWithinTheCallersDeadline() throws Exception
+    {
+        AtomicInteger calls = new AtomicInteger();
+        KeyIDRoutingBackend backend = backend(false, 0, calls, call -> new CompletableFuture<>());
+        long start = System.currentTimeMillis();
+
+        assertFailure(backend, 200, KeyIDTimeoutException.class);
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(calls.get(), 2);
+    }
+
+    @Test
+    public void attemptLeavesTheNextEndpointTwiceItsLatency() throws Exception
+    {
+        String fast = url();
+        String slow = url();
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<JsonObject> late = new CompletableFuture<>();
+
+        // gives the first endpoint an estimate of about 1 ms and the second one of about 20 ms
+        login(new KeyIDRoutingBackend(Collections.singletonMap(fast, new FakeBackend(calls, call -> succeeded())),
+                                      false, 0), 1000);
+        login(new KeyIDRoutingBackend(Collections.singletonMap(slow, new FakeBackend(calls, call -> delayed(20))),
+                                      false, 0), 1000);
+
+        Map<String, KeyIDBackend> clients = new LinkedHashMap<>();
+        FakeBackend first = new FakeBackend(calls, call -> late);
+        FakeBackend second = new FakeBackend(calls, call -> succeeded());
+        clients.put(fast, first);
+        clients.put(slow, second);
+        KeyIDRoutingBackend backend = new KeyIDRoutingBackend(clients, false, 0);
+
+        // answers after half of the deadline, within the time left by a 50 ms reserve
+        CompletableFuture.runAsync(() -> {
+            sleep(600);
+            late.complete(result("first"));
+        });
+
+        assertEquals(login(backend, 1000).get("Endpoint").getAsString(), "first");
+        assertEquals(second.calls.get(), 0);
+    }
+
+    @Test
+    public void hedgedLoginReturnsTheFirstResult() throws Exception
+    {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<JsonObject> slow = new CompletableFuture<>();
+        KeyIDRoutingBackend backend = backend(false, 20, calls, call -> call == 1 ? slow : succeeded());
+
+        assertEquals(login(backend, 2000).get("Match").getAsBoolean(), true);
+        assertEquals(calls.get(), 2);
+        assertTrue(slow.isCancelled());
+    }
+
+    private static JsonObject login(KeyIDRoutingBackend backend, long timeout) throws Exception
+    {
+        try
+        {
+            return backend.login("user", "tsData", System.currentTimeMillis() + timeout).get();
+        }
+        catch (ExecutionException e)
+        {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    private static void assertFailure(KeyIDRoutingBackend backend, long timeout, Class<? extends Exception> type)
+        throws Exception
+    {
+        try
+        {
+            login(backend, timeout);
+            fail("Expected " + type.getSimpleName());
+        }
+        catch (Exception e)
+        {
+            assertTrue(type.isInstance(e), e.toString());
+        }
+    }
+
+    /**
+     * Creates a backend over two endpoints that answer the n-th call made to either of them with the given result.
+     */
+    private static KeyIDRoutingBackend backend(boolean enrolling, long hedgeDelay, AtomicInteger calls,
+                                               IntFunction<Future<JsonObject>> results)
+    {
+        Map<String, KeyIDBackend> clients = new LinkedHashMap<>();
+
+        for (int i = 0; i < 2; i++)
+            clients.put(url(), new FakeBackend(calls, results));
+
+        return new KeyIDRoutingBackend(clients, enrolling, hedgeDelay);
+    }
+
+    private static void open(String endpoint)
+    {
+        KeyIDCircuitBreaker breaker = KeyIDCircuitBreaker.forEndpoint(endpoint, BREAKER);
+
+        for (int i = 0; i < 5; i++)
+            breaker.onError(breaker.tryAcquirePermission(), 1);
+
+        assertEquals(breaker.getState(), KeyIDCircuitBreaker.State.OPEN);
+    }
+
+    private static String url()
+    {
+        return "http://keyid-" + ENDPOINT.incrementAndGet();
+    }
+
+    private static Future<JsonObject> succeeded()
+    {
+        return CompletableFuture.completedFuture(result("any"));
+    }
+
+    private static Future<JsonObject> delayed(long millis)
+    {
+        return CompletableFuture.supplyAsync(() -> {
+            sleep(millis);
+            return result("any");
+        });
+    }
+
+    private static JsonObject result(String endpoint)
+    {
+        JsonObject result = new JsonObject();
+        result.addProperty("Match", true);
+        result.addProperty("Endpoint", endpoint);
+        return result;
+    }
+
+    private static void sleep(long millis)
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Future<JsonObject> failed(Exception e)
+    {
+        CompletableFuture<JsonObject> result = new CompletableFuture<>();
+        result.completeExceptionally(e);
+        return result;
+    }
+
+    private static final class FakeBackend implements KeyIDBackend
+    {
+        private final AtomicInteger total;
+        private final AtomicInteger calls = new AtomicInteger();
+        private final IntFunction<Future<JsonObject>> results;
+
+        private FakeBackend(AtomicInteger total, IntFunction<Future<JsonObject>> results)
+        {
+            this.total = total;
+            this.results = results;
+        }
+
+        @Override
+        public Future<JsonObject> login(String username, String tsData, long deadline)
+        {
+            calls.incrementAndGet();
+            return results.apply(total.incrementAndGet());
+        }
+
+        @Override
+        public Future<JsonObject> removeProfile(String username, String tsData, long deadline)
+        {
+            calls.incrementAndGet();
+            return results.apply(total.incrementAndGet());
+        }
+    }
+}
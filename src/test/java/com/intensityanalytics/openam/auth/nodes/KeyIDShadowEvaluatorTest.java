@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import com.google.gson.JsonObject;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.testng.annotations.Test;
+
+public class KeyIDShadowEvaluatorTest
+{
+    private static final int WORKERS = 8;
+    private static final int MAX_QUEUED = 10000;
+
+    private final KeyIDShadowEvaluator evaluator = KeyIDShadowEvaluator.getInstance();
+
+    @Test
+    public void matchIsCountedAndTheProfileReset() throws Exception
+    {
+        long matched = evaluator.getMatched();
+        FakeClient client = new FakeClient(CompletableFuture.completedFuture(login(true)));
+
+        assertTrue(evaluator.submit(client, null, 1000, true, null, "user", "tsData"));
+
+        await(() -> evaluator.getMatched() == matched + 1 && client.resets.get() == 1);
+    }
+
+    @Test
+    public void fullQueueDropsTheEvaluation() throws Exception
+    {
+        CompletableFuture<JsonObject> gate = new CompletableFuture<>();
+        FakeClient blocking = new FakeClient(gate);
+        long evaluated = evaluator.getEvaluated();
+        long dropped = evaluator.getDropped();
+
+        for (int i = 1; i <= WORKERS; i++)
+        {
+            int expected = i;
+            assertTrue(evaluator.submit(blocking, null, 10000, false, null, "user", "tsData"));
+            await(() -> blocking.logins.get() == expected);
+        }
+
+        int queued = 0;
+
+        while (evaluator.submit(blocking, null, 10000, false, null, "user", "tsData"))
+            queued++;
+
+        assertEquals(queued, MAX_QUEUED);
+        assertEquals(evaluator.getDropped(), dropped + 1);
+
+        gate.complete(login(false));
+        await(() -> evaluator.getEvaluated() == evaluated + WORKERS + MAX_QUEUED);
+    }
+
+    private static JsonObject login(boolean match)
+    {
+        JsonObject result = new JsonObject();
+        result.addProperty("Error", "");
+        result.addProperty("Match", match);
+        result.addProperty("IsReady", true);
+        result.addProperty("Confidence", match ? 90 : 10);
+        result.addProperty("Fidelity", 80);
+        result.addProperty("Profiles", 3);
+        return result;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (!condition.getAsBoolean())
+        {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for the evaluator");
+            Thread.sleep(5);
+        }
+    }
+
+    private static final class FakeClient implements KeyIDBackend
+    {
+        private final CompletableFuture<JsonObject> login;
+        private final AtomicInteger logins = new AtomicInteger();
+        private final AtomicInteger resets = new AtomicInteger();
+
+        private FakeClient(CompletableFuture<JsonObject> login)
+        {
+            this.login = login;
+        }
+
+        @Override
+        public CompletableFuture<JsonObject> login(String username, String tsData, long deadline)
+        {
+            logins.incrementAndGet();
+            return login;
+        }
+
+        @Override
+        public CompletableFuture<JsonObject> removeProfile(String username, String tsData, long deadline)
+        {
+            resets.incrementAndGet();
+            JsonObject result = new JsonObject();
+            result.addProperty("Error", "");
+            return CompletableFuture.completedFuture(result);
+        }
+    }
+}
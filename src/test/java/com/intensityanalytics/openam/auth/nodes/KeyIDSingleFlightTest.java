@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+public class KeyIDSingleFlightTest
+{
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterClass
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void concurrentDuplicatesShareOneEvaluation() throws Exception
+    {
+        KeyIDSingleFlight<Integer> flights = new KeyIDSingleFlight<>();
+        AtomicInteger evaluations = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        Future<Integer> first = running(flights, "mode", evaluations, release);
+        Future<Integer> duplicate = executor.submit(() -> flights.execute(null, "mode", "user", "tsData", deadline(),
+                                                                          evaluations::incrementAndGet));
+
+        Thread.sleep(50);
+        release.countDown();
+
+        assertEquals(first.get(1, TimeUnit.SECONDS).intValue(), 1);
+        assertEquals(duplicate.get(1, TimeUnit.SECONDS).intValue(), 1);
+        assertEquals(evaluations.get(), 1);
+        assertEquals(flights.getJoinedInFlight(), 1);
+    }
+
+    @Test
+    public void completedResultIsNotShared() throws Exception
+    {
+        KeyIDSingleFlight<Integer> flights = new KeyIDSingleFlight<>();
+        AtomicInteger evaluations = new AtomicInteger();
+
+        assertEquals(flights.execute(null, "mode", "user", "tsData", deadline(),
+                                     evaluations::incrementAndGet).intValue(), 1);
+        assertEquals(flights.execute(null, "mode", "user", "tsData", deadline(),
+                                     evaluations::incrementAndGet).intValue(), 2);
+        assertEquals(flights.getJoinedInFlight(), 0);
+    }
+
+    @Test
+    public void differentVariantsAreNotCoalesced() throws Exception
+    {
+        KeyIDSingleFlight<Integer> flights = new KeyIDSingleFlight<>();
+        AtomicInteger evaluations = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        Future<Integer> first = running(flights, "device-1", evaluations, release);
+        flights.execute(null, "device-2", "user", "tsData", deadline(), evaluations::incrementAndGet);
+        flights.execute(null, "device-1", "other", "tsData", deadline(), evaluations::incrementAndGet);
+        release.countDown();
+        first.get(1, TimeUnit.SECONDS);
+
+        assertEquals(evaluations.get(), 3);
+        assertEquals(flights.getJoinedInFlight(), 0);
+    }
+
+    @Test
+    public void failuresAreNotKept() throws Exception
+    {
+        KeyIDSingleFlight<Integer> flights = new KeyIDSingleFlight<>();
+
+        try
+        {
+            flights.execute(null, "mode", "user", "tsData", deadline(), () -> {
+                throw new IOException("unreachable");
+            });
+            fail("Expected IOException");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+
+        assertEquals(flights.execute(null, "mode", "user", "tsData", deadline(), () -> 7).intValue(), 7);
+    }
+
+    /**
+     * Starts an evaluation of user and tsData that runs until released.
+     */
+    private Future<Integer> running(KeyIDSingleFlight<Integer> flights, String variant, AtomicInteger evaluations,
+                                    CountDownLatch release) throws InterruptedException
+    {
+        CountDownLatch started = new CountDownLatch(1);
+        Future<Integer> evaluation = executor.submit(() -> flights.execute(null, variant, "user", "tsData",
+                                                                           deadline(), () -> {
+                                                                               started.countDown();
+                                                                               release.await();
+                                                                               return evaluations.incrementAndGet();
+                                                                           }));
+        started.await();
+        return evaluation;
+    }
+
+    private static long deadline()
+    {
+        return System.currentTimeMillis() + 1000;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.testng.annotations.Test;
+
+public class KeyIDTracerTest
+{
+    @Test
+    public void unsampledAuthenticationIsNotRecorded()
+    {
+        List<KeyIDTracer.Span> exported = Collections.synchronizedList(new ArrayList<>());
+        KeyIDTracer tracer = new KeyIDTracer(0, exported::addAll);
+
+        String traceId = tracer.startTrace();
+        KeyIDTracer.Span span = tracer.start(traceId, "KeyIDNode.process");
+
+        assertNull(traceId);
+        assertFalse(span.isRecording());
+        assertFalse(span.child("KeyID.login").setAttribute("key", "value").isRecording());
+    }
+
+    @Test
+    public void endedSpansAreExported() throws Exception
+    {
+        List<KeyIDTracer.Span> exported = Collections.synchronizedList(new ArrayList<>());
+        KeyIDTracer tracer = new KeyIDTracer(1, exported::addAll);
+
+        KeyIDTracer.Span span = tracer.start(tracer.startTrace(), "KeyIDNode.process");
+        span.child("KeyID.login").end();
+        span.end();
+        span.end();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (tracer.getExported() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+
+        assertEquals(exported.size(), 2);
+        assertEquals(tracer.getDropped(), 0);
+    }
+
+    @Test
+    public void spansAreEncodedAsOtlpJson()
+    {
+        KeyIDTracer tracer = new KeyIDTracer(1, spans -> { });
+        String traceId = tracer.startTrace();
+        KeyIDTracer.Span parent = tracer.start(traceId, "KeyIDNode.process");
+        KeyIDTracer.Span child = parent.child("KeyID.login")
+                                       .setAttribute("keyid.match", true)
+                                       .setAttribute("keyid.confidence", 87.5)
+                                       .setAttribute("keyid.timeout_ms", 1000L)
+                                       .setAttribute("keyid.outcome", "true")
+                                       .setError(new IOException("reset"));
+
+        JsonObject request = KeyIDTracer.toOtlp(Collections.singletonList(child));
+        JsonObject resourceSpans = request.getAsJsonArray("resourceSpans").get(0).getAsJsonObject();
+        JsonObject span = resourceSpans.getAsJsonArray("scopeSpans").get(0).getAsJsonObject()
+                                       .getAsJsonArray("spans").get(0).getAsJsonObject();
+
+        assertEquals(span.get("traceId").getAsString(), traceId);
+        assertEquals(span.get("traceId").getAsString().length(), 32);
+        assertEquals(span.get("spanId").getAsString().length(), 16);
+        assertTrue(span.has("parentSpanId"));
+        assertEquals(span.get("name").getAsString(), "KeyID.login");
+
+        JsonArray attributes = span.getAsJsonArray("attributes");
+        assertEquals(value(attributes, 0).get("boolValue").getAsBoolean(), true);
+        assertEquals(value(attributes, 1).get("doubleValue").getAsDouble(), 87.5);
+        assertEquals(value(attributes, 2).get("intValue").getAsString(), "1000");
+        assertEquals(value(attributes, 3).get("stringValue").getAsString(), "true");
+
+        JsonObject status = span.getAsJsonObject("status");
+        assertEquals(status.get("code").getAsInt(), 2);
+        assertEquals(status.get("message").getAsString(), "IOException: reset");
+    }
+
+    private static JsonObject value(JsonArray attributes, int index)
+    {
+        return attributes.get(index).getAsJsonObject().getAsJsonObject("value");
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+
+import com.google.gson.JsonObject;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.annotations.Test;
+
+public class KeyIDTrustWindowTest
+{
+    private static final long WINDOW_MS = 60000;
+    private static final AtomicInteger USER = new AtomicInteger();
+
+    private final KeyIDBackend client = new FakeBackend();
+    private final long headers = KeyIDTrustWindow.fingerprint("Mozilla/5.0", "192.0.2.1");
+
+    @Test
+    public void matchIsTrustedOnlyWithItsTrustToken()
+    {
+        String username = username();
+        String token = KeyIDTrustWindow.newToken();
+        KeyIDTrustWindow.getInstance().record(client, username, KeyIDTrustWindow.fingerprint(token, headers), 90);
+
+        assertTrue(trusted(username, token, headers));
+        assertFalse(trusted(username, KeyIDTrustWindow.newToken(), headers));
+        assertFalse(trusted(username, token, KeyIDTrustWindow.fingerprint("Mozilla/5.0", "192.0.2.2")));
+    }
+
+    @Test
+    public void matchBelowTheConfidenceFloorIsNotTrusted()
+    {
+        String username = username();
+        String token = KeyIDTrustWindow.newToken();
+        KeyIDTrustWindow.getInstance().record(client, username, KeyIDTrustWindow.fingerprint(token, headers), 70);
+
+        assertFalse(trusted(username, token, headers));
+    }
+
+    @Test
+    public void leastRecentlyMatchedDeviceIsReplaced()
+    {
+        String username = username();
+        String[] tokens = new String[5];
+
+        for (int i = 0; i < tokens.length; i++)
+        {
+            tokens[i] = KeyIDTrustWindow.newToken();
+            KeyIDTrustWindow.getInstance().record(client, username, KeyIDTrustWindow.fingerprint(tokens[i], headers),
+                                                  90);
+        }
+
+        assertFalse(trusted(username, tokens[0], headers));
+        for (int i = 1; i < tokens.length; i++)
+            assertTrue(trusted(username, tokens[i], headers));
+    }
+
+    @Test
+    public void trustTokensAreUnique()
+    {
+        assertNotEquals(KeyIDTrustWindow.newToken(), KeyIDTrustWindow.newToken());
+    }
+
+    @Test
+    public void resetFollowingAMatchKeepsTheTrust() throws Exception
+    {
+        String username = username();
+        String token = KeyIDTrustWindow.newToken();
+        KeyIDTrustWindow.getInstance().record(client, username, KeyIDTrustWindow.fingerprint(token, headers), 90);
+
+        reset(username, false);
+        assertTrue(trusted(username, token, headers));
+
+        reset(username, true);
+        assertFalse(trusted(username, token, headers));
+    }
+
+    private boolean trusted(String username, String token, long headers)
+    {
+        return KeyIDTrustWindow.getInstance().isTrusted(client, username, KeyIDTrustWindow.fingerprint(token, headers),
+                                                        WINDOW_MS, 80);
+    }
+
+    private void reset(String username, boolean revokeTrust) throws InterruptedException
+    {
+        KeyIDProfileResetQueue queue = KeyIDProfileResetQueue.getInstance();
+        long completed = queue.getCompleted();
+        assertTrue(queue.submit(client, null, 1000, username, "tsData", revokeTrust));
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (queue.getCompleted() == completed)
+        {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for the reset");
+            Thread.sleep(5);
+        }
+    }
+
+    private static String username()
+    {
+        return "user" + USER.incrementAndGet();
+    }
+
+    private static final class FakeBackend implements KeyIDBackend
+    {
+        @Override
+        public Future<JsonObject> login(String username, String tsData, long deadline)
+        {
+            return removeProfile(username, tsData, deadline);
+        }
+
+        @Override
+        public Future<JsonObject> removeProfile(String username, String tsData, long deadline)
+        {
+            JsonObject result = new JsonObject();
+            result.addProperty("Error", "");
+            return CompletableFuture.completedFuture(result);
+        }
+    }
+}
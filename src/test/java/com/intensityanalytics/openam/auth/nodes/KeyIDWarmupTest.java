@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class KeyIDWarmupTest
+{
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @BeforeMethod
+    public void startServer() throws Exception
+    {
+        requests.set(0);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterMethod
+    public void stopServer()
+    {
+        server.stop(0);
+        System.clearProperty(KeyIDWarmup.URLS_PROPERTY);
+    }
+
+    @Test
+    public void startupConnectsToTheListedEndpointsBeforeItIsReady() throws Exception
+    {
+        System.setProperty(KeyIDWarmup.URLS_PROPERTY, url("/startup"));
+        KeyIDWarmup warmup = new KeyIDWarmup(true);
+
+        warmup.start();
+        await(warmup::isReady);
+
+        assertEquals(requests.get(), 1);
+    }
+
+    @Test
+    public void endpointIsConnectedToOnce() throws Exception
+    {
+        KeyIDWarmup warmup = new KeyIDWarmup(true);
+        String url = url("/keyid");
+
+        warmup.warmEndpoints(url + ", " + url);
+        warmup.warmEndpoints(url);
+        await(() -> requests.get() > 0);
+        Thread.sleep(100);
+
+        assertEquals(requests.get(), 1);
+    }
+
+    @Test
+    public void unsetEndpointsAreSkipped() throws Exception
+    {
+        KeyIDWarmup warmup = new KeyIDWarmup(true);
+
+        warmup.warmEndpoints(null);
+        warmup.warmEndpoints(" ");
+        warmup.warmEndpoints(url("/keyid"));
+        await(() -> requests.get() > 0);
+        Thread.sleep(100);
+
+        assertEquals(requests.get(), 1);
+    }
+
+    @Test
+    public void disabledWarmupIsReadyWithoutConnecting() throws Exception
+    {
+        KeyIDWarmup warmup = new KeyIDWarmup(false);
+
+        warmup.start();
+        warmup.warmEndpoints(url("/keyid"));
+        Thread.sleep(100);
+
+        assertTrue(warmup.isReady());
+        assertEquals(requests.get(), 0);
+    }
+
+    private String url(String path)
+    {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (!condition.getAsBoolean())
+        {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for the warm-up");
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.testng.annotations.Test;
+
+public class TsDataCodecTest
+{
+    /**
+     * Samples and their encoding by the collector script, one per line separated by a tab.
+     */
+    private static final String FIXTURES = "compact-tsdata.txt";
+
+    @Test
+    public void decodesTheOutputOfTheCollectorScript() throws Exception
+    {
+        List<String[]> fixtures = fixtures();
+        assertFalse(fixtures.isEmpty());
+
+        for (String[] fixture : fixtures)
+        {
+            assertTrue(TsDataCodec.isEncoded(fixture[1]));
+            assertEquals(TsDataCodec.decode(fixture[1], 1 << 20), fixture[0]);
+        }
+    }
+
+    @Test
+    public void plainTsDataIsReturnedUnchanged()
+    {
+        assertEquals(TsDataCodec.decode("KeyDown,72,0,112", 100), "KeyDown,72,0,112");
+    }
+
+    @Test
+    public void rejectsTsDataDecodingToMoreThanTheMaximumLength() throws Exception
+    {
+        String[] longest = fixtures().get(fixtures().size() - 1);
+
+        try
+        {
+            TsDataCodec.decode(longest[1], longest[0].length() - 1);
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertTrue(e.getMessage().contains("more than"), e.getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsInvalidEncodings()
+    {
+        for (String encoded : new String[] { TsDataCodec.PREFIX + "MI!", TsDataCodec.PREFIX + "____" })
+        {
+            try
+            {
+                TsDataCodec.decode(encoded, 100);
+                fail("Expected IllegalArgumentException for " + encoded);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    private static List<String[]> fixtures() throws Exception
+    {
+        List<String[]> fixtures = new ArrayList<>();
+
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+            TsDataCodecTest.class.getResourceAsStream(FIXTURES), StandardCharsets.UTF_8)))
+        {
+            String line;
+
+            while ((line = in.readLine()) != null)
+            {
+                if (!line.isEmpty())
+                    fixtures.add(line.split("\t"));
+            }
+        }
+
+        return fixtures;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 Intensity Analytics Corporation
+ */
+
+package com.intensityanalytics.openam.auth.nodes;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.UUID;
+import org.testng.annotations.Test;
+
+public class TsDataValidatorTest
+{
+    private static final TsDataValidator VALIDATOR = TsDataValidator.getInstance();
+
+    @Test
+    public void acceptsWellFormedSamples()
+    {
+        assertEquals(validate("alice", sample(), 0), TsDataValidator.Result.VALID);
+    }
+
+    @Test
+    public void rejectsMalformedSamples()
+    {
+        assertEquals(validate("alice", "", 0), TsDataValidator.Result.EMPTY);
+        assertEquals(validate("alice", null, 0), TsDataValidator.Result.EMPTY);
+        assertEquals(validate("alice", sample() + "\n", 0), TsDataValidator.Result.MALFORMED);
+        assertEquals(validate("alice", sample() + "\u00e9", 0), TsDataValidator.Result.MALFORMED);
+        assertEquals(validate("alice", "1,2,3", 0), TsDataValidator.Result.TOO_FEW_EVENTS);
+        assertEquals(validate("alice", sample() + ",12345678901234", 0), TsDataValidator.Result.IMPLAUSIBLE_TIMING);
+        assertEquals(VALIDATOR.validate("alice", sample(), 10, 5, 0), TsDataValidator.Result.TOO_LONG);
+    }
+
+    @Test
+    public void rejectsASampleReplayedWithinTheWindow()
+    {
+        String username = UUID.randomUUID().toString();
+        String sample = sample();
+
+        assertEquals(validate(username, sample, 60000), TsDataValidator.Result.VALID);
+        assertEquals(validate(username, sample, 60000), TsDataValidator.Result.REPLAYED);
+        assertEquals(validate(username + "x", sample, 60000), TsDataValidator.Result.VALID);
+    }
+
+    @Test
+    public void acceptsASampleAgainAfterTheWindow() throws Exception
+    {
+        String username = UUID.randomUUID().toString();
+        String sample = sample();
+
+        assertEquals(validate(username, sample, 20), TsDataValidator.Result.VALID);
+        Thread.sleep(40);
+        assertEquals(validate(username, sample, 20), TsDataValidator.Result.VALID);
+    }
+
+    @Test
+    public void replayDetectionSurvivesManyOtherSamples()
+    {
+        String username = UUID.randomUUID().toString();
+        String sample = sample();
+
+        assertEquals(validate(username, sample, 60000), TsDataValidator.Result.VALID);
+
+        for (int i = 0; i < 1000; i++)
+            validate(UUID.randomUUID().toString(), sample, 60000);
+
+        assertEquals(validate(username, sample, 60000), TsDataValidator.Result.REPLAYED);
+    }
+
+    private static TsDataValidator.Result validate(String username, String tsData, long replayWindowMs)
+    {
+        return VALIDATOR.validate(username, tsData, 100000, 5, replayWindowMs);
+    }
+
+    private static String sample()
+    {
+        StringBuilder sample = new StringBuilder("v2");
+
+        for (int i = 0; i < 20; i++)
+            sample.append(',').append(65 + i).append(',').append(80 + i * 7).append(',').append(120 + i * 3);
+
+        return sample.toString();
+    }
+}